@@ -1,10 +1,16 @@
 package de.javawi.jstun.attribute;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
 import de.javawi.jstun.attribute.exception.MessageAttributeException;
 import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
 import de.javawi.jstun.util.Address;
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.IPv6Address;
 import de.javawi.jstun.util.Utility;
-import de.javawi.jstun.util.UtilityException;
 
 public abstract class AbstractMappedAddress extends AbstractMessageAttribute {
 
@@ -14,6 +20,7 @@ public abstract class AbstractMappedAddress extends AbstractMessageAttribute {
 
 	final static int HEADER_LENGTH = 4;
 	final static int IPv4_LENGTH = 4;
+	final static int IPv6_LENGTH = 16;
 
 	public AbstractMappedAddress(MessageAttributeType type) {
 		super(type);
@@ -28,7 +35,19 @@ public abstract class AbstractMappedAddress extends AbstractMessageAttribute {
 		parseData(data);
 	}
 	
-	abstract protected void parseData(byte[] data) throws MessageAttributeParsingException;
+	protected void parseData(byte[] data) throws MessageAttributeParsingException {
+		parseData(ByteBuffer.wrap(data), 0, data.length);
+	}
+
+	/**
+	 * Parses the attribute value in place.
+	 *
+	 * @param data		the buffer containing the value
+	 * @param offset	the absolute index of the first value byte
+	 * @param length	the value length
+	 */
+	abstract protected void parseData(ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException;
 
 	public int getPort() {
 		return port;
@@ -47,31 +66,63 @@ public abstract class AbstractMappedAddress extends AbstractMessageAttribute {
 
 	public void setAddress(Address address) {
 		this.address = address;
+		this.family = address.getFamily();
+	}
+
+	/**
+	 * Sets the address of the family of <b>address</b>, e.g. the source of a
+	 * received datagram.
+	 *
+	 * @throws MessageAttributeException if the address is neither IPv4 nor IPv6
+	 */
+	public void setAddress(InetAddress address) throws MessageAttributeException {
+		if (address instanceof Inet4Address)
+			setAddress(new IPv4Address((Inet4Address) address));
+		else if (address instanceof Inet6Address)
+			setAddress(new IPv6Address((Inet6Address) address));
+		else
+			throw new MessageAttributeException("Address " + address + " is not supported");
+	}
+
+	/**
+	 * Checks the family and the length of the value starting at <b>offset</b>.
+	 *
+	 * @return the family encoding
+	 */
+	static int parseFamily(ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException {
+		if (length < HEADER_LENGTH + IPv4_LENGTH)
+			throw new MessageAttributeParsingException("Data array too short");
+
+		int family = data.get(offset + 1) & 0xFF;
+		if (family == Address.IPv4) {
+			return family;
+		} else if (family == Address.IPv6) {
+			if (length < HEADER_LENGTH + IPv6_LENGTH)
+				throw new MessageAttributeParsingException("Data array too short");
+			return family;
+		}
+		throw new MessageAttributeParsingException("Family " + family + " is not supported");
 	}
 
 	@Override
-	public byte[] getBytes() throws UtilityException {
-		// 4 common bytes header + 4B own header + 4B address
-		byte[] result = new byte[COMMONHEADERSIZE + HEADER_LENGTH + IPv4_LENGTH]; // TODO this should be variable
-		// message attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		// length
-		// TODO should be variable
-		System.arraycopy(Utility.integerToTwoBytes(HEADER_LENGTH + IPv4_LENGTH), 0, result, 2, 2);
+	public int getValueLength() {
+		// 4B own header + 4B or 16B address
+		return HEADER_LENGTH + ((family == Address.Family.IPv6) ? IPv6_LENGTH : IPv4_LENGTH);
+	}
 
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
 		// mappedaddress header
 		// padding
-		result[4] = 0x0;
+		buffer.put(offset, (byte) 0x0);
 		// family
-		result[5] = Utility.integerToOneByte(family.getEncoding());
+		buffer.put(offset + 1, (byte) family.getEncoding());
 
 		// port
-		System.arraycopy(Utility.integerToTwoBytes(port), 0, result, 6, 2);
+		Utility.putUnsignedShort(buffer, offset + 2, port);
 		// address
-		System.arraycopy(address.getBytes(), 0, result, 8, 4);
-
-		return result;
+		address.writeTo(buffer, offset + HEADER_LENGTH);
 	}
 
 	public String toString() {
@@ -11,17 +11,18 @@
 
 package de.javawi.jstun.attribute;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.logging.Logger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
-import de.javawi.jstun.attribute.exception.AttributeReflectionException;
 import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
 import de.javawi.jstun.attribute.exception.UnknownMessageAttributeException;
+import de.javawi.jstun.header.TransactionId;
+import de.javawi.jstun.jfr.StunParseFailureEvent;
+import de.javawi.jstun.trace.TraceEvent;
+import de.javawi.jstun.trace.Tracer;
 import de.javawi.jstun.util.Utility;
-import de.javawi.jstun.util.UtilityException;
 
 public abstract class AbstractMessageAttribute {
-	private static Logger logger = Logger.getLogger("de.javawi.stun.util.MessageAttribute");
 
 	/*
 	    0                   1                   2                   3
@@ -34,8 +35,9 @@ public abstract class AbstractMessageAttribute {
 	*/
 
 	public enum MessageAttributeType {
-		MappedAddress(0x0001), Username(0x0006), ErrorCode(0x0009),
-		UnknownAttribute(0x000A), XORMappedAddress(0x0020), Dummy(0x0000), Software(0x8022);
+		MappedAddress(0x0001), Username(0x0006), MessageIntegrity(0x0008), ErrorCode(0x0009),
+		UnknownAttribute(0x000A), Realm(0x0014), Nonce(0x0015), MessageIntegritySHA256(0x001C),
+		XORMappedAddress(0x0020), Dummy(0x0000), Software(0x8022), Fingerprint(0x8028);
 
 		private final int e;
 
@@ -52,13 +54,19 @@ public abstract class AbstractMessageAttribute {
 	final static int DUMMY = 0x0;
 	final static int MAPPED_ADDRESS = 0x0001;
 	final static int USERNAME = 0x0006; // TODO do we support this?
+	final static int MESSAGE_INTEGRITY = 0x0008;
 	final static int ERROR_CODE = 0x0009;
 	final static int UNKNOWN_ATTRIBUTE = 0x000A;
+	final static int REALM = 0x0014;
+	final static int NONCE = 0x0015;
+	final static int MESSAGE_INTEGRITY_SHA256 = 0x001C;
 	final static int XOR_MAPPED_ADDRESS = 0x0020;
 	final static int SOFTWARE = 0x8022;
+	final static int FINGERPRINT = 0x8028;
 
-	final static int[] ATTRIBUTES = { DUMMY, MAPPED_ADDRESS, USERNAME, ERROR_CODE,
-		UNKNOWN_ATTRIBUTE, XOR_MAPPED_ADDRESS, SOFTWARE };
+	final static int[] ATTRIBUTES = { DUMMY, MAPPED_ADDRESS, USERNAME, MESSAGE_INTEGRITY, ERROR_CODE,
+		UNKNOWN_ATTRIBUTE, REALM, NONCE, MESSAGE_INTEGRITY_SHA256, XOR_MAPPED_ADDRESS, SOFTWARE,
+		FINGERPRINT };
 
 	final static int TRY_ALTERNATE = 300;
 	final static int BAD_REQUEST = 400;
@@ -74,6 +82,8 @@ public abstract class AbstractMessageAttribute {
 	final static int LENGTH_SIZE = 2;
 
 	protected MessageAttributeType type;
+	// the type as encoded, also for the types MessageAttributeType lacks
+	private final int typeEncoding;
 
 	/**
 	 * Sets the <b>type</b> instance field with the specified {@link MessageAttributeType}
@@ -81,6 +91,22 @@ public abstract class AbstractMessageAttribute {
 	 */
 	public AbstractMessageAttribute(MessageAttributeType type) {
 		setType(type);
+		this.typeEncoding = type.getEncoding();
+	}
+
+	/**
+	 * For the types {@link MessageAttributeType} lacks, e.g. the ones of the
+	 * decoders added to the {@link MessageAttributeRegistry} or unknown
+	 * optional ones, which are then encoded with their own type.
+	 *
+	 * @param typeEncoding	the type, 0x0000 to 0xFFFF
+	 * @throws IllegalArgumentException if the type does not fit in 16 bits
+	 */
+	protected AbstractMessageAttribute(int typeEncoding) {
+		if ((typeEncoding < 0) || (typeEncoding > 0xFFFF))
+			throw new IllegalArgumentException("Attribute type " + typeEncoding + " out of range");
+		setType(intToType(typeEncoding));
+		this.typeEncoding = typeEncoding;
 	}
 
 	/**
@@ -92,10 +118,21 @@ public abstract class AbstractMessageAttribute {
 		this.type = type;
 	}
 
+	/**
+	 * @return the type, or null if {@link MessageAttributeType} lacks it
+	 * @see #getTypeEncoding()
+	 */
 	public MessageAttributeType getType() {
 		return type;
 	}
 
+	/**
+	 * @return the type as encoded in the common header
+	 */
+	public int getTypeEncoding() {
+		return typeEncoding;
+	}
+
 	public static int typeToInteger(MessageAttributeType type) {
 		return type.getEncoding();
 	}
@@ -122,71 +159,161 @@ public abstract class AbstractMessageAttribute {
 		return null; // TODO should throw exception??
 	}
 
-	// The Attribute header is 4 bytes long
-	abstract public byte[] getBytes() throws UtilityException;
+	/**
+	 * Decodes <b>length</b> bytes starting at <b>offset</b> as a string,
+	 * without copying them when <b>data</b> is backed by an array.
+	 */
+	static String decodeString(ByteBuffer data, int offset, int length) {
+		if (data.hasArray())
+			return new String(data.array(), data.arrayOffset() + offset, length);
+
+		byte[] value = new byte[length];
+		for (int i = 0; i < length; i++)
+			value[i] = data.get(offset + i);
+		return new String(value);
+	}
 
-	public int getLength() throws UtilityException {
-		int length = getBytes().length;
-		return length;
+	/**
+	 * @return the value length, as stored in the length field, i.e. without padding
+	 */
+	abstract public int getValueLength();
+
+	/**
+	 * Writes the attribute value at <b>offset</b>. The buffer is guaranteed
+	 * to have enough room, and its position must not be moved.
+	 *
+	 * @param buffer	the buffer to write to
+	 * @param offset	the absolute index of the first value byte
+	 */
+	abstract protected void encodeValue(ByteBuffer buffer, int offset);
+
+	/**
+	 * Writes the attribute value of the message whose Transaction ID is
+	 * <b>id</b>. Only the attributes that depend on the ID override it.
+	 *
+	 * @see #encodeValue(ByteBuffer, int)
+	 */
+	protected void encodeValue(ByteBuffer buffer, int offset, TransactionId id) {
+		encodeValue(buffer, offset);
+	}
+
+	/**
+	 * Called by {@link de.javawi.jstun.header.MessageHeader#encodeTo(ByteBuffer)} once the attribute,
+	 * and every attribute before it, is encoded, for the attributes whose
+	 * value covers the preceding bytes of the message. Does nothing by
+	 * default.
+	 *
+	 * @param buffer			the buffer the message is written to
+	 * @param messageOffset		the absolute index of the message header
+	 * @param offset			the absolute index of this attribute's header
+	 */
+	public void encodeOver(ByteBuffer buffer, int messageOffset, int offset) {
+	}
+
+	/**
+	 * @return the encoded size, i.e. the 4 bytes long attribute header plus the padded value
+	 */
+	public int getLength() {
+		return COMMONHEADERSIZE + ((getValueLength() + ALIGNMENT - 1) & ~(ALIGNMENT - 1));
+	}
+
+	/**
+	 * Writes the whole attribute, padding included, at the position of
+	 * <b>buffer</b> and advances it by {@link #getLength()} bytes. Values
+	 * that depend on the Transaction ID are encoded with an all-zero one.
+	 *
+	 * @param buffer	the buffer to write to
+	 * @throws BufferOverflowException if there are not enough bytes remaining
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		encodeTo(buffer, TransactionId.ZERO);
+	}
+
+	/**
+	 * Writes the whole attribute of the message whose Transaction ID is
+	 * <b>id</b>, and advances the position of <b>buffer</b>.
+	 *
+	 * @see #encodeTo(ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer, TransactionId id) {
+		int offset = buffer.position();
+		int valueLength = getValueLength();
+		int length = getLength();
+		if (buffer.remaining() < length)
+			throw new BufferOverflowException();
+
+		Utility.putUnsignedShort(buffer, offset, typeEncoding);
+		Utility.putUnsignedShort(buffer, offset + TYPE_SIZE, valueLength);
+		encodeValue(buffer, offset + COMMONHEADERSIZE, id);
+		for (int i = COMMONHEADERSIZE + valueLength; i < length; i++)
+			buffer.put(offset + i, (byte) 0);
+
+		buffer.position(offset + length);
+	}
+
+	public byte[] getBytes() {
+		byte[] result = new byte[getLength()];
+		encodeTo(ByteBuffer.wrap(result));
+		return result;
 	}
 
 	public final static AbstractMessageAttribute parseCommonHeader(byte[] data)
-			throws MessageAttributeParsingException, UnknownMessageAttributeException, AttributeReflectionException {
+			throws MessageAttributeParsingException, UnknownMessageAttributeException {
+		return parseCommonHeader(ByteBuffer.wrap(data), 0);
+	}
+
+	/**
+	 * Parses the attribute whose common header starts at <b>offset</b>,
+	 * reading <b>data</b> in place.
+	 *
+	 * @param data		the buffer containing the attribute
+	 * @param offset	the absolute index of the attribute's type field
+	 * @return the parsed attribute
+	 */
+	public final static AbstractMessageAttribute parseCommonHeader(ByteBuffer data, int offset)
+			throws MessageAttributeParsingException, UnknownMessageAttributeException {
+		int type = 0;
 		try {
+			if (data.limit() - offset < COMMONHEADERSIZE)
+				throw new MessageAttributeParsingException("Data array too short");
 
-			byte[] typeArray = new byte[2];
-			System.arraycopy(data, 0, typeArray, 0, 2);
-			int type = Utility.twoBytesToInteger(typeArray);
-
-			byte[] lengthArray = new byte[2];
-			System.arraycopy(data, 2, lengthArray, 0, 2);
-			int lengthValue = Utility.twoBytesToInteger(lengthArray);
-
-			byte[] valueArray = new byte[lengthValue];
-			System.arraycopy(data, 4, valueArray, 0, lengthValue);
-
-			AbstractMessageAttribute ma = null;
-
-			for (MessageAttributeType mat : MessageAttributeType.values()) {
-				if (type == mat.getEncoding()) {
-					String fullName = "de.javawi.jstun.attribute." + mat.toString();
-					Class<?> cl = Class.forName(fullName);
-
-					ma = (AbstractMessageAttribute) cl.getConstructor(byte[].class).newInstance(valueArray);
-					break;
-				}
-			}
-			if (ma == null) {
-				if (type <= 0x7fff) {
-					throw new UnknownMessageAttributeException("Mandatory attribute "+type+" unknown", type);
-				} else if ( (type > 0x8000 && type < 0xFFFF) || type == 0x8000 || type == 0xFFFF ){ // TODO unmagic
-					logger.info("Unknown optional message attribute " + type);
-					ma = Dummy.parse(valueArray);
-				} else {
-					logger.info("MessageAttribute with type " + type + " unkown.");
-					ma = Dummy.parse(valueArray);
-				}
-			}
-
-			return ma;
-
-		} catch (UtilityException ue) {
-			throw new MessageAttributeParsingException("Parsing error");
-		} catch (ClassNotFoundException e) {
-			// TODO it should be another exception!
-			throw new AttributeReflectionException("Class not found");
-		} catch (InstantiationException e) {
-			throw new AttributeReflectionException("Class not instantiable");
-		} catch (IllegalAccessException e) {
-			throw new AttributeReflectionException("Class not accessible");
-		} catch (IllegalArgumentException e) {
-			throw new AttributeReflectionException("Wrong constructor invocation");
-		} catch (SecurityException e) {
-			throw new AttributeReflectionException("Security Manager denied access!");
-		} catch (InvocationTargetException e) {
-			throw new AttributeReflectionException("The underlying constructor threw an exception");
-		} catch (NoSuchMethodException e) {
-			throw new AttributeReflectionException("Constructor not found");
+			type = Utility.getUnsignedShort(data, offset);
+			int lengthValue = Utility.getUnsignedShort(data, offset + TYPE_SIZE);
+
+			if (data.limit() - offset - COMMONHEADERSIZE < lengthValue)
+				throw new MessageAttributeParsingException("Attribute length " + lengthValue + " exceeds data");
+
+			return parseValue(type, data, offset + COMMONHEADERSIZE, lengthValue, TransactionId.ZERO);
+		} catch (MessageAttributeParsingException | UnknownMessageAttributeException e) {
+			StunParseFailureEvent.emit(StunParseFailureEvent.ATTRIBUTE, e.getMessage(), data.limit() - offset,
+					type, null, 0);
+			throw e;
 		}
 	}
+
+	/**
+	 * Builds the attribute of the given <b>type</b> from the <b>length</b>
+	 * value bytes starting at <b>offset</b>. The framing must have already
+	 * been checked by the caller.
+	 *
+	 * @param type		the attribute type, as found in the common header
+	 * @param data		the buffer containing the attribute value
+	 * @param offset	the absolute index of the first value byte
+	 * @param length	the value length, padding excluded
+	 * @param id		the Transaction ID of the enclosing message
+	 * @return the parsed attribute
+	 */
+	public final static AbstractMessageAttribute parseValue(int type, ByteBuffer data, int offset,
+			int length, TransactionId id) throws MessageAttributeParsingException,
+			UnknownMessageAttributeException {
+		MessageAttributeDecoder decoder = MessageAttributeRegistry.lookup(type);
+		if (decoder != null)
+			return decoder.decode(data, offset, length, id);
+
+		// 0x0000-0x7FFF are comprehension-required, 0x8000-0xFFFF optional
+		if (type <= 0x7fff)
+			throw new UnknownMessageAttributeException("Mandatory attribute "+type+" unknown", type);
+		Tracer.trace(TraceEvent.UNKNOWN_OPTIONAL_ATTRIBUTE, type);
+		return Dummy.parse(type, length);
+	}
 }
@@ -11,8 +11,7 @@
 
 package de.javawi.jstun.attribute;
 
-import de.javawi.jstun.util.Utility;
-import de.javawi.jstun.util.UtilityException;
+import java.nio.ByteBuffer;
 
 public class Dummy extends AbstractMessageAttribute {
 
@@ -23,8 +22,11 @@ public class Dummy extends AbstractMessageAttribute {
 		super(MessageAttributeType.Dummy);
 	}
 
+	/**
+	 * An unknown optional attribute, encoded again with its own type.
+	 */
 	public Dummy(int unknownType) {
-		super(MessageAttributeType.Dummy);
+		super(unknownType);
 		this.unknownType = unknownType;
 	}
 
@@ -32,14 +34,16 @@ public class Dummy extends AbstractMessageAttribute {
 		this.lengthValue = length;
 	}
 
-	public byte[] getBytes() throws UtilityException {
-		byte[] result = new byte[lengthValue + 4];
-		//	message attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		// length
-		System.arraycopy(Utility.integerToTwoBytes(lengthValue), 0, result, 2, 2);
-		return result;
+	@Override
+	public int getValueLength() {
+		return lengthValue;
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
+		// the value is unknown, zero it
+		for (int i = 0; i < lengthValue; i++)
+			buffer.put(offset + i, (byte) 0);
 	}
 
 	// TODO refactor not static
@@ -49,6 +53,12 @@ public class Dummy extends AbstractMessageAttribute {
 		return dummy;
 	}
 
+	public static Dummy parse(int unknownType, int length) {
+		Dummy dummy = new Dummy(unknownType);
+		dummy.setLengthValue(length);
+		return dummy;
+	}
+
 	public int getUnknownType() {
 		return unknownType;
 	}
@@ -11,6 +11,8 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import de.javawi.jstun.attribute.exception.MessageAttributeException;
 import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
 import de.javawi.jstun.util.Utility;
@@ -31,6 +33,7 @@ public class ErrorCode extends AbstractMessageAttribute {
 
 	int responseCode;
 	String reason;
+	private byte[] reasonBytes; // the reason phrase as sent on the wire
 	private int classHeader;
 	private int number;
 
@@ -40,18 +43,21 @@ public class ErrorCode extends AbstractMessageAttribute {
 	
 	// TODO review
 	public ErrorCode(byte[] data) throws UtilityException, MessageAttributeParsingException {
+		this(ByteBuffer.wrap(data), 0, data.length);
+	}
+
+	public ErrorCode(ByteBuffer data, int offset, int length) throws MessageAttributeParsingException {
 		this();
-		if (data.length < 4) { // TODO unmagic all
+		if (length < 4) { // TODO unmagic all
 			throw new MessageAttributeParsingException("Data array too short");
 		}
 
-		byte classHeaderByte = data[3];
-		int classHeader = Utility.oneByteToInteger(classHeaderByte);
+		// the class is stored in the 3 lowest bits of the third byte
+		int classHeader = data.get(offset + 2) & 0x07;
 		if ((classHeader < 3) || (classHeader > 6))
 			throw new MessageAttributeParsingException("Class parsing error");
 
-		byte numberByte = data[4];
-		int number = Utility.oneByteToInteger(numberByte);
+		int number = data.get(offset + 3) & 0xFF;
 		if ((number < 0) || (number > 99))
 			throw new MessageAttributeParsingException("Number parsing error");
 
@@ -72,6 +78,7 @@ public class ErrorCode extends AbstractMessageAttribute {
 		}
 		this.responseCode = responseCode;
 		this.classHeader = classHeader;
+		this.reasonBytes = reason.getBytes();
 	}
 
 	public int getResponseCode() {
@@ -82,30 +89,23 @@ public class ErrorCode extends AbstractMessageAttribute {
 		return reason;
 	}
 
-	public byte[] getBytes() throws UtilityException {
-		int length = reason.length();
-		// length adjustment
-		if ((length % 4) != 0) {
-			length += 4 - (length % 4);
-		}
-		// message attribute header
-		length += 4;
-		byte[] result = new byte[length];
-		// message attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		// length
-		System.arraycopy(Utility.integerToTwoBytes(length-4), 0, result, 2, 2);
+	@Override
+	public int getValueLength() {
+		// 4B error code header + reason phrase
+		return 4 + reasonBytes.length;
+	}
 
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
 		// error code header
-		result[6] = Utility.integerToOneByte(classHeader);
-		result[7] = Utility.integerToOneByte(responseCode%100);
-		byte[] reasonArray = reason.getBytes();
-		System.arraycopy(reasonArray, 0, result, 8, reasonArray.length);
-		return result;
+		buffer.put(offset, (byte) 0);
+		buffer.put(offset + 1, (byte) 0);
+		buffer.put(offset + 2, (byte) classHeader);
+		buffer.put(offset + 3, (byte) (responseCode % 100));
+		for (int i = 0; i < reasonBytes.length; i++)
+			buffer.put(offset + 4 + i, reasonBytes[i]);
 	}
 	
-	
 	/**
 	 * @deprecated Use the constructor instead
 	 * @param data
@@ -117,17 +117,13 @@ public class ErrorCode extends AbstractMessageAttribute {
 			if (data.length < 4) {
 				throw new MessageAttributeParsingException("Data array too short");
 			}
-			byte classHeaderByte = data[3];
-			int classHeader = Utility.oneByteToInteger(classHeaderByte);
+			int classHeader = Utility.getUnsignedByte(data, 3);
 			if ((classHeader < 1) || (classHeader > 6)) throw new MessageAttributeParsingException("Class parsing error");
-			byte numberByte = data[4];
-			int number = Utility.oneByteToInteger(numberByte);
+			int number = Utility.getUnsignedByte(data, 4);
 			if ((number < 0) || (number > 99)) throw new MessageAttributeParsingException("Number parsing error");
 			ErrorCode result = new ErrorCode();
 			result.setResponseCode(classHeader, number);
 			return result;
-		} catch (UtilityException ue) {
-			throw new MessageAttributeParsingException("Parsing error");
 		} catch (MessageAttributeException mae) {
 			throw new MessageAttributeParsingException("Parsing error");
 		}
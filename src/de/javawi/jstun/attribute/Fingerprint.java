@@ -0,0 +1,159 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * FINGERPRINT (RFC 5389 section 15.5): the CRC-32 of the message up to
+ * the attribute, XOR-ed with 0x5354554e. It is always the last attribute;
+ * a {@link de.javawi.jstun.header.MessageHeader} encodes it last whatever
+ * the order it was added in.
+ * <p>
+ * The CRC is computed by {@link CRC32#update(ByteBuffer)} over the message
+ * where it lies in the buffer, through a view so that the position and
+ * limit of the buffer are never touched. {@link #check(ByteBuffer, int, int)}
+ * tells a STUN message carrying a valid FINGERPRINT from anything else,
+ * e.g. media sharing the port, before any parsing, and {@link #append}
+ * adds one to an already encoded message; a caller handling many messages,
+ * like a server handler, passes its own CRC32 to be reset and reused.
+ */
+public class Fingerprint extends AbstractMessageAttribute {
+	public final static int XOR = 0x5354554e;
+	final static int VALUE_LENGTH = 4;
+	// the attribute, common header included
+	final static int LENGTH = COMMONHEADERSIZE + VALUE_LENGTH;
+
+	private int value;
+
+	public Fingerprint() {
+		super(MessageAttributeType.Fingerprint);
+	}
+
+	public Fingerprint(ByteBuffer data, int offset, int length) throws MessageAttributeParsingException {
+		this();
+		if (length != VALUE_LENGTH)
+			throw new MessageAttributeParsingException("Fingerprint length " + length + " invalid");
+		value = (int) Utility.getUnsignedInt(data, offset);
+	}
+
+	/**
+	 * @return the CRC XOR-ed with 0x5354554e, as parsed or as computed by
+	 *         the last encoding
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	@Override
+	public int getValueLength() {
+		return VALUE_LENGTH;
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
+		Utility.putUnsignedInt(buffer, offset, value);
+	}
+
+	@Override
+	public void encodeOver(ByteBuffer buffer, int messageOffset, int offset) {
+		value = compute(new CRC32(), buffer, messageOffset, offset);
+		encodeValue(buffer, offset + COMMONHEADERSIZE);
+	}
+
+	/**
+	 * @param crc	reset before use
+	 * @return the CRC of the bytes from <b>messageOffset</b> up to
+	 *         <b>end</b>, XOR-ed with 0x5354554e; the buffer is left as it was
+	 */
+	private static int compute(CRC32 crc, ByteBuffer data, int messageOffset, int end) {
+		ByteBuffer view = data.duplicate();
+		view.limit(end).position(messageOffset);
+		crc.reset();
+		crc.update(view);
+		return (int) crc.getValue() ^ XOR;
+	}
+
+	/**
+	 * Checks the datagram like {@link #check(ByteBuffer, int, int, CRC32)},
+	 * with a CRC32 of its own.
+	 */
+	public static boolean check(ByteBuffer data, int offset, int length) {
+		return check(data, offset, length, new CRC32());
+	}
+
+	/**
+	 * Checks that the <b>length</b> bytes at <b>offset</b> are a STUN message
+	 * ending in a valid FINGERPRINT, reading nothing but its header and the
+	 * attribute itself before the CRC.
+	 *
+	 * @param data		the buffer containing the datagram
+	 * @param offset	the absolute index of the first datagram byte
+	 * @param length	the datagram length
+	 * @param crc		computes the CRC, whatever its state
+	 * @return false for anything else, e.g. RTP, DTLS or a STUN message
+	 *         without FINGERPRINT
+	 */
+	public static boolean check(ByteBuffer data, int offset, int length, CRC32 crc) {
+		if ((length < MessageHeaderInterface.HEADERSIZE + LENGTH) || ((length & (ALIGNMENT - 1)) != 0)
+				|| (offset + length > data.limit()))
+			return false;
+		// the two most significant bits of a STUN message are zero
+		if (((data.get(offset) & 0xC0) != 0)
+				|| (Utility.getUnsignedShort(data, offset + 2) != length - MessageHeaderInterface.HEADERSIZE)
+				|| (Utility.getUnsignedInt(data, offset + 4) != MessageHeaderInterface.MAGICCOOKIE))
+			return false;
+		int attribute = offset + length - LENGTH;
+		if ((Utility.getUnsignedShort(data, attribute) != FINGERPRINT)
+				|| (Utility.getUnsignedShort(data, attribute + TYPE_SIZE) != VALUE_LENGTH))
+			return false;
+		return (compute(crc, data, offset, attribute) & 0xFFFFFFFFL) == Utility.getUnsignedInt(data, attribute
+				+ COMMONHEADERSIZE);
+	}
+
+	/**
+	 * Appends a FINGERPRINT like {@link #append(ByteBuffer, int, int, CRC32)},
+	 * with a CRC32 of its own.
+	 */
+	public static int append(ByteBuffer buffer, int messageOffset, int length) {
+		return append(buffer, messageOffset, length, new CRC32());
+	}
+
+	/**
+	 * Appends a FINGERPRINT to the message of <b>length</b> bytes encoded
+	 * at <b>messageOffset</b>, e.g. a signed response, and updates its
+	 * length field.
+	 *
+	 * @param crc	computes the CRC, whatever its state
+	 * @return the new message length
+	 * @throws BufferOverflowException if the attribute does not fit
+	 */
+	public static int append(ByteBuffer buffer, int messageOffset, int length, CRC32 crc) {
+		int offset = messageOffset + length;
+		int end = offset + LENGTH;
+		if (end > buffer.limit())
+			throw new BufferOverflowException();
+
+		Utility.putUnsignedShort(buffer, messageOffset + 2, end - messageOffset
+				- MessageHeaderInterface.HEADERSIZE);
+		Utility.putUnsignedShort(buffer, offset, FINGERPRINT);
+		Utility.putUnsignedShort(buffer, offset + TYPE_SIZE, VALUE_LENGTH);
+		Utility.putUnsignedInt(buffer, offset + COMMONHEADERSIZE, compute(crc, buffer, messageOffset, offset));
+		return end - messageOffset;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+
+package de.javawi.jstun.attribute;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.javawi.jstun.util.StripedPool;
+
+/**
+ * The {@link Mac} instances of one algorithm, pooled since
+ * {@link Mac#getInstance(String)} costs far more than the HMAC of a STUN
+ * message, and initialised again only when the key changes.
+ * <p>
+ * They are kept in a {@link StripedPool} rather than per thread, so every
+ * server mode reuses them: the platform threads of the classic, NIO,
+ * SO_REUSEPORT and pipelined servers, and the virtual threads of
+ * {@link de.javawi.jstun.server.VirtualThreadStunServer}, each living for a
+ * single request.
+ */
+final class MacPool {
+	private final String algorithm;
+	private final StripedPool<State> states;
+
+	static final class State {
+		final Mac mac;
+		// the result of the last doFinal
+		final byte[] result;
+		private byte[] key;
+
+		State(Mac mac) {
+			this.mac = mac;
+			this.result = new byte[mac.getMacLength()];
+		}
+	}
+
+	MacPool(String algorithm) {
+		this.algorithm = algorithm;
+		this.states = new StripedPool<State>(() -> new State(newMac(algorithm)));
+	}
+
+	private static Mac newMac(String algorithm) {
+		try {
+			return Mac.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException nsae) {
+			// every Java platform supports HmacSHA1 and HmacSHA256
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * Borrows a Mac, ready to compute an HMAC with <b>key</b>, to be handed
+	 * back with {@link #release(State)}. Keys are compared by reference, so
+	 * a key array must not be modified once used.
+	 *
+	 * @throws IllegalArgumentException if the key is empty
+	 */
+	State borrow(byte[] key) {
+		State state = states.borrow();
+		if (state.key != key) {
+			// a state failing to take the key is not handed back
+			state.key = null;
+			try {
+				state.mac.init(new SecretKeySpec(key, algorithm));
+			} catch (InvalidKeyException ike) {
+				throw new IllegalArgumentException(ike);
+			}
+			state.key = key;
+		}
+		return state;
+	}
+
+	void release(State state) {
+		states.release(state);
+	}
+}
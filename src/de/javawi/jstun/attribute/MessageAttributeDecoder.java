@@ -0,0 +1,52 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.header.TransactionId;
+
+/**
+ * Builds an attribute from its value, read in place from the packet.
+ * Decoders are registered per attribute type in the
+ * {@link MessageAttributeRegistry}. The attribute constructors taking
+ * <code>(ByteBuffer, int, int)</code> can be used directly, e.g.
+ * <code>MappedAddress::new</code>.
+ * <p>
+ * Decoders of attributes whose value is obfuscated with the Transaction ID,
+ * like XOR-MAPPED-ADDRESS, also override
+ * {@link #decode(ByteBuffer, int, int, TransactionId)}.
+ */
+public interface MessageAttributeDecoder {
+
+	/**
+	 * @param data		the buffer containing the packet
+	 * @param offset	the absolute index of the first value byte
+	 * @param length	the value length, padding excluded
+	 * @return the decoded attribute
+	 * @throws MessageAttributeParsingException if the value is malformed
+	 */
+	public AbstractMessageAttribute decode(ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException;
+
+	/**
+	 * Decodes an attribute of the message whose Transaction ID is <b>id</b>.
+	 * The ID is ignored by default.
+	 *
+	 * @see #decode(ByteBuffer, int, int)
+	 */
+	public default AbstractMessageAttribute decode(ByteBuffer data, int offset, int length,
+			TransactionId id) throws MessageAttributeParsingException {
+		return decode(data, offset, length);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+
+/**
+ * Maps the 16 bit attribute type to its {@link MessageAttributeDecoder}.
+ * <p>
+ * The table is dense: the high byte of the type selects a page of 256
+ * decoders, and the low byte the decoder within it, so a lookup is two
+ * array reads. The built-in attributes are registered when the class is
+ * loaded; further ones can be added with {@link #register(int, MessageAttributeDecoder)},
+ * preferably at startup. Registration copies the page it modifies, so
+ * lookups never lock.
+ */
+public final class MessageAttributeRegistry {
+
+	private final static int PAGE_BITS = 8;
+	private final static int PAGE_SIZE = 1 << PAGE_BITS;
+	private final static int PAGE_MASK = PAGE_SIZE - 1;
+
+	private static volatile MessageAttributeDecoder[][] pages = new MessageAttributeDecoder[PAGE_SIZE][];
+
+	static {
+		register(MessageAttributeType.MappedAddress.getEncoding(), MappedAddress::new);
+		register(MessageAttributeType.Username.getEncoding(), Username::new);
+		register(MessageAttributeType.MessageIntegrity.getEncoding(), (data, offset, length) ->
+				new MessageIntegrity(MessageAttributeType.MessageIntegrity, data, offset, length));
+		register(MessageAttributeType.ErrorCode.getEncoding(), ErrorCode::new);
+		register(MessageAttributeType.UnknownAttribute.getEncoding(), UnknownAttribute::new);
+		register(MessageAttributeType.Realm.getEncoding(), Realm::new);
+		register(MessageAttributeType.Nonce.getEncoding(), Nonce::new);
+		register(MessageAttributeType.MessageIntegritySHA256.getEncoding(), (data, offset, length) ->
+				new MessageIntegrity(MessageAttributeType.MessageIntegritySHA256, data, offset, length));
+		register(MessageAttributeType.XORMappedAddress.getEncoding(), XORMappedAddress.DECODER);
+		register(MessageAttributeType.Software.getEncoding(), Software::new);
+		register(MessageAttributeType.Fingerprint.getEncoding(), Fingerprint::new);
+	}
+
+	private MessageAttributeRegistry() {
+	}
+
+	/**
+	 * Registers <b>decoder</b> for the attribute <b>type</b>, replacing the
+	 * previous one if any. The attributes of a type
+	 * {@link MessageAttributeType} lacks are built with the
+	 * {@link AbstractMessageAttribute#AbstractMessageAttribute(int)}
+	 * constructor, so that they are encoded again with their type.
+	 *
+	 * @param type		the attribute type, 0x0000 to 0xFFFF
+	 * @param decoder	the decoder, or null to unregister the type
+	 * @throws IllegalArgumentException if the type does not fit in 16 bits
+	 */
+	public static synchronized void register(int type, MessageAttributeDecoder decoder) {
+		if ((type < 0) || (type > 0xFFFF))
+			throw new IllegalArgumentException("Attribute type " + type + " out of range");
+
+		MessageAttributeDecoder[][] newPages = pages.clone();
+		MessageAttributeDecoder[] page = newPages[type >>> PAGE_BITS];
+		page = (page == null) ? new MessageAttributeDecoder[PAGE_SIZE] : page.clone();
+		page[type & PAGE_MASK] = decoder;
+		newPages[type >>> PAGE_BITS] = page;
+
+		pages = newPages;
+	}
+
+	/**
+	 * @param type	the attribute type, as found in the common header
+	 * @return the registered decoder, or null if the type is unknown
+	 */
+	public static MessageAttributeDecoder lookup(int type) {
+		MessageAttributeDecoder[] page = pages[(type >>> PAGE_BITS) & PAGE_MASK];
+		if (page == null)
+			return null;
+		return page[type & PAGE_MASK];
+	}
+
+	public static boolean isRegistered(int type) {
+		return lookup(type) != null;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * MESSAGE-INTEGRITY (RFC 5389 section 15.4) and MESSAGE-INTEGRITY-SHA256
+ * (RFC 8489 section 14.6): the HMAC-SHA1 or HMAC-SHA256 of the message up
+ * to the attribute, computed as if the length field of the header ended
+ * the message right after it.
+ * <p>
+ * The HMAC is computed over the message where it lies in the buffer, the
+ * patched length field being fed to the {@link Mac} instead of written, so
+ * that nothing is copied; {@link #verify(ByteBuffer, int, int, byte[])}
+ * checks a received one the same way, and {@link #append} adds one to an
+ * already encoded message. The Mac instances are pooled, and reused
+ * whatever thread, platform or virtual, computes the HMAC.
+ * <p>
+ * Added to a {@link de.javawi.jstun.header.MessageHeader}, the attribute
+ * is computed with its key when the message is encoded; only a
+ * FINGERPRINT may follow it.
+ */
+public class MessageIntegrity extends AbstractMessageAttribute {
+	public final static int SHA1_LENGTH = 20;
+	public final static int SHA256_LENGTH = 32;
+
+	private final static MacPool SHA1 = new MacPool("HmacSHA1");
+	private final static MacPool SHA256 = new MacPool("HmacSHA256");
+
+	// to encode with, null if parsed
+	private final byte[] key;
+	private final byte[] hmac;
+
+	/**
+	 * An attribute to be computed when the message is encoded.
+	 *
+	 * @param type	MessageIntegrity or MessageIntegritySHA256
+	 * @param key	the short or long-term credential key
+	 * @see #shortTermKey(String)
+	 * @see #longTermKey(String, String, String)
+	 */
+	public MessageIntegrity(MessageAttributeType type, byte[] key) {
+		super(type);
+		this.key = key;
+		this.hmac = new byte[hmacLength(type)];
+	}
+
+	public MessageIntegrity(MessageAttributeType type, ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException {
+		super(type);
+		if (length != hmacLength(type))
+			throw new MessageAttributeParsingException("Message integrity length " + length + " invalid");
+		this.key = null;
+		this.hmac = new byte[length];
+		for (int i = 0; i < length; i++)
+			hmac[i] = data.get(offset + i);
+	}
+
+	private static int hmacLength(MessageAttributeType type) {
+		if (type == MessageAttributeType.MessageIntegrity)
+			return SHA1_LENGTH;
+		if (type == MessageAttributeType.MessageIntegritySHA256)
+			return SHA256_LENGTH;
+		throw new IllegalArgumentException(type + " is not a message integrity type");
+	}
+
+	private static MacPool mac(MessageAttributeType type) {
+		return (type == MessageAttributeType.MessageIntegrity) ? SHA1 : SHA256;
+	}
+
+	/**
+	 * @return the HMAC, as parsed or as computed by the last encoding
+	 */
+	public byte[] getHmac() {
+		return hmac.clone();
+	}
+
+	@Override
+	public int getValueLength() {
+		return hmac.length;
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
+		for (int i = 0; i < hmac.length; i++)
+			buffer.put(offset + i, hmac[i]);
+	}
+
+	@Override
+	public void encodeOver(ByteBuffer buffer, int messageOffset, int offset) {
+		if (key == null)
+			return;
+		MacPool pool = mac(type);
+		MacPool.State state = compute(pool, key, buffer, messageOffset, offset);
+		System.arraycopy(state.result, 0, hmac, 0, hmac.length);
+		pool.release(state);
+		encodeValue(buffer, offset + COMMONHEADERSIZE);
+	}
+
+	/**
+	 * Computes the HMAC of the message at <b>messageOffset</b> up to the
+	 * attribute at <b>attributeOffset</b> into the result of the returned
+	 * state, to be released once read. The buffer is left as it was.
+	 */
+	private static MacPool.State compute(MacPool mac, byte[] key, ByteBuffer data,
+			int messageOffset, int attributeOffset) {
+		MacPool.State state = mac.borrow(key);
+		Mac m = state.mac;
+		// the length field as if the message ended after this attribute
+		int length = attributeOffset + COMMONHEADERSIZE + state.result.length - messageOffset
+				- MessageHeaderInterface.HEADERSIZE;
+		m.update(data.get(messageOffset));
+		m.update(data.get(messageOffset + 1));
+		m.update((byte) (length >>> 8));
+		m.update((byte) length);
+
+		ByteBuffer view = data.duplicate();
+		view.limit(attributeOffset).position(messageOffset + 4);
+		m.update(view);
+		try {
+			m.doFinal(state.result, 0);
+		} catch (ShortBufferException sbe) {
+			// the result is as long as the Mac
+			throw new IllegalStateException(sbe);
+		}
+		return state;
+	}
+
+	/**
+	 * Checks the MESSAGE-INTEGRITY or MESSAGE-INTEGRITY-SHA256 attribute at
+	 * <b>attributeOffset</b> in place, in constant time.
+	 *
+	 * @param data				the buffer containing the message
+	 * @param messageOffset		the absolute index of the message header
+	 * @param attributeOffset	the absolute index of the attribute's header
+	 * @param key				the credential key
+	 * @return false if the HMAC does not match, or the attribute is not a
+	 *         well-formed integrity one
+	 */
+	public static boolean verify(ByteBuffer data, int messageOffset, int attributeOffset, byte[] key) {
+		MessageAttributeType type = intToType(Utility.getUnsignedShort(data, attributeOffset));
+		int length = Utility.getUnsignedShort(data, attributeOffset + TYPE_SIZE);
+		if ((type != MessageAttributeType.MessageIntegrity)
+				&& (type != MessageAttributeType.MessageIntegritySHA256))
+			return false;
+		if ((length != hmacLength(type)) || (attributeOffset + COMMONHEADERSIZE + length > data.limit()))
+			return false;
+
+		MacPool pool = mac(type);
+		MacPool.State state = compute(pool, key, data, messageOffset, attributeOffset);
+		int value = attributeOffset + COMMONHEADERSIZE;
+		int difference = 0;
+		for (int i = 0; i < length; i++)
+			difference |= state.result[i] ^ data.get(value + i);
+		pool.release(state);
+		return difference == 0;
+	}
+
+	/**
+	 * Appends an integrity attribute to the message of <b>length</b> bytes
+	 * encoded at <b>messageOffset</b>, e.g. a stamped response, and updates
+	 * its length field.
+	 *
+	 * @param type	MessageIntegrity or MessageIntegritySHA256
+	 * @return the new message length
+	 * @throws BufferOverflowException if the attribute does not fit
+	 */
+	public static int append(MessageAttributeType type, byte[] key, ByteBuffer buffer, int messageOffset,
+			int length) {
+		int hmacLength = hmacLength(type);
+		int offset = messageOffset + length;
+		int end = offset + COMMONHEADERSIZE + hmacLength;
+		if (end > buffer.limit())
+			throw new BufferOverflowException();
+
+		Utility.putUnsignedShort(buffer, offset, type.getEncoding());
+		Utility.putUnsignedShort(buffer, offset + TYPE_SIZE, hmacLength);
+		MacPool pool = mac(type);
+		MacPool.State state = compute(pool, key, buffer, messageOffset, offset);
+		for (int i = 0; i < hmacLength; i++)
+			buffer.put(offset + COMMONHEADERSIZE + i, state.result[i]);
+		pool.release(state);
+		Utility.putUnsignedShort(buffer, messageOffset + 2, end - messageOffset
+				- MessageHeaderInterface.HEADERSIZE);
+		return end - messageOffset;
+	}
+
+	/**
+	 * @return the key of a short-term credential, the password itself
+	 *         (SASLprep is not applied)
+	 */
+	public static byte[] shortTermKey(String password) {
+		return password.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the key of a long-term credential, MD5(username ":" realm ":"
+	 *         password) (SASLprep is not applied)
+	 */
+	public static byte[] longTermKey(String username, String realm, String password) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			return md5.digest((username + ":" + realm + ":" + password).getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException nsae) {
+			// every Java platform supports MD5
+			throw new IllegalStateException(nsae);
+		}
+	}
+}
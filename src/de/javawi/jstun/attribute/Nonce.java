@@ -0,0 +1,50 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * NONCE (RFC 5389 section 15.8): the server nonce a client signing with
+ * long-term credentials must send back.
+ */
+public class Nonce extends AbstractMessageAttribute {
+	// fewer than 128 characters
+	private final String nonce;
+	private final byte[] nonceBytes;
+
+	public Nonce(String nonce) {
+		super(MessageAttributeType.Nonce);
+		this.nonce = nonce;
+		this.nonceBytes = nonce.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public Nonce(ByteBuffer data, int offset, int length) {
+		this(decodeString(data, offset, length));
+	}
+
+	public String getNonce() {
+		return nonce;
+	}
+
+	@Override
+	public int getValueLength() {
+		return nonceBytes.length;
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
+		for (int i = 0; i < nonceBytes.length; i++)
+			buffer.put(offset + i, nonceBytes[i]);
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * REALM (RFC 5389 section 15.7): the realm of long-term credentials, which
+ * a client derives its key from.
+ */
+public class Realm extends AbstractMessageAttribute {
+	// a UTF-8 encoded sequence of fewer than 128 characters
+	private final String realm;
+	private final byte[] realmBytes;
+
+	public Realm(String realm) {
+		super(MessageAttributeType.Realm);
+		this.realm = realm;
+		this.realmBytes = realm.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public Realm(ByteBuffer data, int offset, int length) {
+		this(decodeString(data, offset, length));
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	@Override
+	public int getValueLength() {
+		return realmBytes.length;
+	}
+
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
+		for (int i = 0; i < realmBytes.length; i++)
+			buffer.put(offset + i, realmBytes[i]);
+	}
+}
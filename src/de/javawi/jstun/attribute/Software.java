@@ -1,37 +1,41 @@
 package de.javawi.jstun.attribute;
 
-import de.javawi.jstun.util.Utility;
-import de.javawi.jstun.util.UtilityException;
+import java.nio.ByteBuffer;
 
 public class Software extends AbstractMessageAttribute {
 	
 	// it must be a UTF-8 encoded sequence of less than 128 characters
-	private final static String software = "JSTUN2 v0.01";
+	private final static String SOFTWARE = "JSTUN2 v0.01";
+
+	private final String software;
+	private final byte[] softwareBytes;
 	
 	public Software() {
 		super(MessageAttributeType.Software);
+		software = SOFTWARE;
+		softwareBytes = software.getBytes();
 	}
 
-	@Override
-	public byte[] getBytes() throws UtilityException {
-		byte[] result = new byte[COMMONHEADERSIZE + software.length()];
+	public Software(ByteBuffer data, int offset, int length) {
+		super(MessageAttributeType.Software);
+		software = decodeString(data, offset, length);
+		softwareBytes = software.getBytes();
+	}
 
-		byte[] softwareBytes = software.getBytes();
-		int length = softwareBytes.length;
+	public String getSoftware() {
+		return software;
+	}
 
-		// common attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(MessageAttributeType.Software.getEncoding()), 0, result, 0, TYPE_SIZE);
-		// length
-		System.arraycopy(Utility.integerToTwoBytes(length), 0, result, TYPE_SIZE, LENGTH_SIZE);
+	@Override
+	public int getValueLength() {
+		return softwareBytes.length;
+	}
 
-		if (length % ALIGNMENT != 0)
-			length += ALIGNMENT - (length % ALIGNMENT);
-		
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
 		// software attribute header
-		System.arraycopy(softwareBytes, 0, result, 4, length);
-
-		return result;
+		for (int i = 0; i < softwareBytes.length; i++)
+			buffer.put(offset + i, softwareBytes[i]);
 	}
 
 }
@@ -12,7 +12,7 @@
 package de.javawi.jstun.attribute;
 
 
-import java.util.Iterator;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
@@ -39,57 +39,36 @@ public class UnknownAttribute extends AbstractMessageAttribute {
 	}
 
 	public UnknownAttribute(byte[] data) throws MessageAttributeParsingException, UtilityException {
-		this();
-
-		int padding, length;
+		this(ByteBuffer.wrap(data), 0, data.length);
+	}
 
-		// TODO useless?
-		padding = data.length % 4;
-		length = data.length + padding;
+	public UnknownAttribute(ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException {
+		this();
+		if (length % TYPE_SIZE != 0)
+			throw new MessageAttributeParsingException("Odd attribute value length " + length);
 
-		// TODO there shouldn't be a for
-		for (int i = 0; i < length; i += TYPE_SIZE) {
-			byte[] temp = new byte[TYPE_SIZE];
-			System.arraycopy(data, i, temp, 0, TYPE_SIZE);
-			int attri = Utility.twoBytesToInteger(temp);
-			this.addAttribute(new Integer(attri));
-		}
+		for (int i = 0; i < length; i += TYPE_SIZE)
+			addAttribute(Utility.getUnsignedShort(data, offset + i));
 	}
 
 	public void addAttribute(int attribute) {
 		unknown.add(new Integer(attribute));
 	}
 
-	public byte[] getBytes() throws UtilityException {
-		// 4 bytes common header + valueLength bytes values
-
-		int unknownSize = unknown.size();
-		int valueLength = TYPE_SIZE * unknownSize;
-
-		int totalLength = COMMONHEADERSIZE + valueLength;
-
-		byte[] result = new byte[totalLength];
-
-		// message attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		// length
-		System.arraycopy(Utility.integerToTwoBytes(valueLength), 0, result, 2, 2);
+	@Override
+	public int getValueLength() {
+		return TYPE_SIZE * unknown.size();
+	}
 
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
 		// unkown attribute header
-		Iterator<Integer> it = unknown.iterator();
-		int position = 4;
-		while(it.hasNext()) {
-			Integer attri = it.next();
-			System.arraycopy(attri.intValue(), 0, result, position, TYPE_SIZE);
+		int position = offset;
+		for (int i = 0; i < unknown.size(); i++) {
+			Utility.putUnsignedShort(buffer, position, unknown.get(i).intValue());
 			position += TYPE_SIZE;
 		}
-		// padding
-		if (unknownSize % 2 == 1) {
-			byte[] padding = new byte[TYPE_SIZE];
-			System.arraycopy(padding, 0, result, position, TYPE_SIZE);
-		}
-		return result;
 	}
 
 	/**
@@ -99,19 +78,12 @@ public class UnknownAttribute extends AbstractMessageAttribute {
 	 * @throws MessageAttributeParsingException
 	 */
 	public static UnknownAttribute parse(byte[] data) throws MessageAttributeParsingException {
-		try {
-			UnknownAttribute result = new UnknownAttribute();
-			int l = data.length;
-			if (l % 4 != 0) throw new MessageAttributeParsingException("Data array too short");
-			for (int i = 0; i < l; i += 2) {
-				byte[] temp = new byte[2];
-				System.arraycopy(data, i, temp, 0, 4);
-				int attri = Utility.twoBytesToInteger(temp);
-				result.addAttribute(new Integer(attri));
-			}
-			return result;
-		} catch (UtilityException ue) {
-			throw new MessageAttributeParsingException("Parsing error");
+		UnknownAttribute result = new UnknownAttribute();
+		int l = data.length;
+		if (l % 4 != 0) throw new MessageAttributeParsingException("Data array too short");
+		for (int i = 0; i < l; i += 2) {
+			result.addAttribute(Utility.getUnsignedShort(data, i));
 		}
+		return result;
 	}
 }
@@ -11,12 +11,13 @@
 
 package de.javawi.jstun.attribute;
 
-import de.javawi.jstun.util.Utility;
-import de.javawi.jstun.util.UtilityException;
+import java.nio.ByteBuffer;
 
 // TODO salsprep?
 public class Username extends AbstractMessageAttribute {
 	String username;
+	// encoded once, so that the length is known without serializing
+	byte[] usernameBytes;
 
 	public Username() {
 		super(MessageAttributeType.Username);
@@ -24,12 +25,17 @@ public class Username extends AbstractMessageAttribute {
 
 	public Username(String username) {
 		this();
-		this.username = username;
+		setUsername(username);
 	}
 	
 	public Username(byte[] data) {
 		this();
-		this.username = new String(data);
+		setUsername(new String(data));
+	}
+
+	public Username(ByteBuffer data, int offset, int length) {
+		this();
+		setUsername(decodeString(data, offset, length));
 	}
 
 	public String getUsername() {
@@ -38,27 +44,19 @@ public class Username extends AbstractMessageAttribute {
 
 	public void setUsername(String username) {
 		this.username = username;
+		this.usernameBytes = username.getBytes();
 	}
 
-	public byte[] getBytes() throws UtilityException {
-		int length = username.length();
-		// username header
-		if ((length % 4) != 0) {
-			length += 4 - (length % 4);
-		}
-		// message attribute header
-		length += COMMONHEADERSIZE;
-		byte[] result = new byte[length];
-		// message attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		// length
-		System.arraycopy(Utility.integerToTwoBytes(length-4), 0, result, 2, 2);
+	@Override
+	public int getValueLength() {
+		return usernameBytes.length;
+	}
 
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset) {
 		// username header
-		byte[] temp = username.getBytes();
-		System.arraycopy(temp, 0, result, 4, temp.length);
-		return result;
+		for (int i = 0; i < usernameBytes.length; i++)
+			buffer.put(offset + i, usernameBytes[i]);
 	}
 
 	/**
@@ -11,13 +11,16 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import de.javawi.jstun.attribute.exception.MessageAttributeException;
 import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
 import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.TransactionId;
 import de.javawi.jstun.util.Address;
 import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.IPv6Address;
 import de.javawi.jstun.util.Utility;
-import de.javawi.jstun.util.UtilityException;
 import de.javawi.jstun.util.Address.Family;
 
 public class XORMappedAddress extends AbstractMappedAddress {
@@ -55,6 +58,12 @@ public class XORMappedAddress extends AbstractMappedAddress {
 		parseData(data);
 	}
 
+	public XORMappedAddress(ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException {
+		this();
+		parseData(data, offset, length);
+	}
+
 //	public XORMappedAddress(MessageAttributeType type, byte[] data) throws MessageAttributeParsingException {
 //		this(type);
 //		parseData(data);
@@ -62,91 +71,97 @@ public class XORMappedAddress extends AbstractMappedAddress {
 
 
 
-	// TODO we should do XOR-decoding
-	@Override
-	protected void parseData(byte[] data) throws MessageAttributeParsingException {
-		try {
-			if (data.length < 8) { // TODO why 8?
-				throw new MessageAttributeParsingException("Data array too short");
-			}
-
-			// Get the IP family directly from the packet
-			int familyInt = Utility.oneByteToInteger(data[1]);
+	/**
+	 * Parses the attribute of the message whose Transaction ID is <b>id</b>.
+	 */
+	public XORMappedAddress(ByteBuffer data, int offset, int length, TransactionId id)
+			throws MessageAttributeParsingException {
+		this();
+		parseData(data, offset, length, id);
+	}
 
-			if (familyInt == Address.IPv4) {
+	/**
+	 * Registered decoder, that passes the Transaction ID of the message.
+	 */
+	final static MessageAttributeDecoder DECODER = new MessageAttributeDecoder() {
+		public AbstractMessageAttribute decode(ByteBuffer data, int offset, int length)
+				throws MessageAttributeParsingException {
+			return new XORMappedAddress(data, offset, length);
+		}
 
-				byte[] addressArray = new byte[4];
-				System.arraycopy(data, 4, addressArray, 0, 4);
+		public AbstractMessageAttribute decode(ByteBuffer data, int offset, int length,
+				TransactionId id) throws MessageAttributeParsingException {
+			return new XORMappedAddress(data, offset, length, id);
+		}
+	};
 
-				// store it in the local vars
-				this.address = new IPv4Address(addressArray);
-				this.family = Family.IPv4;
+	/*
+	 * The IPv4 address is XOR-ed with the magic cookie, the IPv6 one with the
+	 * magic cookie followed by the Transaction ID: as longs, the high half of
+	 * the key is the cookie and the first 4 ID bytes, the low half the last
+	 * 8 ID bytes.
+	 */
 
-			} else if (familyInt == Address.IPv6) {
-				// TODO implement
-				throw new MessageAttributeParsingException("IPv6 is currently unsupported");
-			} else
-				throw new MessageAttributeParsingException("Family " + familyInt
-						+ " is not supported");
+	private static long keyHigh(TransactionId id) {
+		return ((long) MessageHeaderInterface.MAGICCOOKIE << 32) | (id.getHigh() >>> 32);
+	}
 
-			// Geth the port from the packet
-			byte[] portArray = new byte[2];
-			System.arraycopy(data, 2, portArray, 0, 2);
+	private static long keyLow(TransactionId id) {
+		return (id.getHigh() << 32) | (id.getLow() & 0xFFFFFFFFL);
+	}
 
-			// store it
-			this.port = Utility.twoBytesToInteger(portArray);
+	/**
+	 * Parses the value as if the Transaction ID was all-zero, which only
+	 * matters for IPv6 addresses.
+	 */
+	@Override
+	protected void parseData(ByteBuffer data, int offset, int length)
+			throws MessageAttributeParsingException {
+		parseData(data, offset, length, TransactionId.ZERO);
+	}
 
-		} catch (UtilityException ue) {
-			throw new MessageAttributeParsingException("Parsing error");
-		} catch (MessageAttributeException mae) {
-			throw new MessageAttributeParsingException("Port parsing error");
+	protected void parseData(ByteBuffer data, int offset, int length, TransactionId id)
+			throws MessageAttributeParsingException {
+		int addressOffset = offset + HEADER_LENGTH;
+		if (parseFamily(data, offset, length) == Address.IPv4) {
+			int xAddress = (int) Utility.getUnsignedInt(data, addressOffset);
+			this.address = new IPv4Address(xAddress ^ MessageHeaderInterface.MAGICCOOKIE);
+			this.family = Family.IPv4;
+		} else {
+			long xHigh = Utility.getLong(data, addressOffset);
+			long xLow = Utility.getLong(data, addressOffset + 8);
+			this.address = new IPv6Address(xHigh ^ keyHigh(id), xLow ^ keyLow(id));
+			this.family = Family.IPv6;
 		}
+
+		int xPort = Utility.getUnsignedShort(data, offset + 2);
+		this.port = xPort ^ (MessageHeaderInterface.MAGICCOOKIE >>> 16);
 	}
 
-	// TODO it should differ, based on the IP protocol family
-	/* Used to get the attribute as a byte[], in order to send it on the network */
 	@Override
-	public byte[] getBytes() throws UtilityException {
-		// 4 bytes common header + 4B own header + 4B address
-		final int IPv4LENGTH = 4;
-		byte[] result = new byte[COMMONHEADERSIZE + HEADER_LENGTH + IPv4LENGTH]; // TODO this should be variable
-		// message attribute header
-		// type
-		System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)), 0, result, 0, 2);
-		// length
-		// TODO should be variable
-		System.arraycopy(Utility.integerToTwoBytes(HEADER_LENGTH + IPv4LENGTH), 0, result, 2, 2);
-
-		// mappedaddress header
-		// padding
-		result[4] = 0x0;
-		// family
-		result[5] = Utility.integerToOneByte(family.getEncoding());
-
-		if (type == MessageAttributeType.MappedAddress) {
-			// port
-			System.arraycopy(Utility.integerToTwoBytes(port), 0, result, 6, 2);
-			// address
-			System.arraycopy(address.getBytes(), 0, result, 8, IPv4LENGTH);
-		}
-		else {
-			// calculate X-Port
-			// TODO should it be >>> or >> ?
-			int shiftedMC = MessageHeaderInterface.MAGICCOOKIE >> 16;
-			int xPort = port ^ shiftedMC;
-
-			byte[] xPortByte = Utility.integerToTwoBytes(xPort);
-			System.arraycopy(xPortByte, 0, result, 6, 2);
-
-			// calculate X-Address
-			long addressInt = Utility.fourBytesToLong(address.getBytes());
-			long xAddress = addressInt ^ MessageHeaderInterface.MAGICCOOKIE;
-			int xaddint = (int) xAddress;
-
-			byte[] xAddressByte = Utility.integerToFourBytes((int) xAddress);
-			System.arraycopy(xAddressByte, 0, result, 8, 4);
+	protected void encodeValue(ByteBuffer buffer, int offset) {
+		encodeValue(buffer, offset, TransactionId.ZERO);
+	}
+
+	/* Writes X-Port and X-Address, in order to send it on the network */
+	@Override
+	protected void encodeValue(ByteBuffer buffer, int offset, TransactionId id) {
+		super.encodeValue(buffer, offset);
+
+		// calculate X-Port
+		int xPort = port ^ (MessageHeaderInterface.MAGICCOOKIE >>> 16);
+		Utility.putUnsignedShort(buffer, offset + 2, xPort);
+
+		// calculate X-Address in place
+		int addressOffset = offset + HEADER_LENGTH;
+		if (family == Family.IPv6) {
+			Utility.putLong(buffer, addressOffset, Utility.getLong(buffer, addressOffset) ^ keyHigh(id));
+			Utility.putLong(buffer, addressOffset + 8, Utility.getLong(buffer, addressOffset + 8)
+					^ keyLow(id));
+		} else {
+			long xAddress = Utility.getUnsignedInt(buffer, addressOffset) ^ MessageHeaderInterface.MAGICCOOKIE;
+			Utility.putUnsignedInt(buffer, addressOffset, xAddress);
 		}
-		return result;
 	}
 
 	/**
@@ -165,22 +180,14 @@ public class XORMappedAddress extends AbstractMappedAddress {
 			if (data.length < 8) { // TODO why 8?
 				throw new MessageAttributeParsingException("Data array too short");
 			}
-			int family = Utility.oneByteToInteger(data[1]);
+			int family = Utility.getUnsignedByte(data, 1);
 
 			if (family != 0x01)
 				throw new MessageAttributeParsingException("Family " + family
 						+ " is not supported");
-			byte[] portArray = new byte[2];
-			System.arraycopy(data, 2, portArray, 0, 2);
-			ma.setPort(Utility.twoBytesToInteger(portArray));
-			int firstOctet = Utility.oneByteToInteger(data[4]);
-			int secondOctet = Utility.oneByteToInteger(data[5]);
-			int thirdOctet = Utility.oneByteToInteger(data[6]);
-			int fourthOctet = Utility.oneByteToInteger(data[7]);
-			ma.setAddress(new IPv4Address(firstOctet, secondOctet, thirdOctet, fourthOctet));
+			ma.setPort(Utility.getUnsignedShort(data, 2));
+			ma.setAddress(new IPv4Address((int) Utility.getUnsignedInt(data, 4)));
 			return ma;
-		} catch (UtilityException ue) {
-			throw new MessageAttributeParsingException("Parsing error");
 		} catch (MessageAttributeException mae) {
 			throw new MessageAttributeParsingException("Port parsing error");
 		}
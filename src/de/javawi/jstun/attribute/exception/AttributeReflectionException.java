@@ -1,29 +0,0 @@
-package de.javawi.jstun.attribute.exception;
-
-public class AttributeReflectionException extends Exception {
-
-    /**
-     *
-     */
-    private static final long serialVersionUID = 164965008874776472L;
-
-    public AttributeReflectionException() {
-        // TODO Auto-generated constructor stub
-    }
-
-    public AttributeReflectionException(String message) {
-        super(message);
-        // TODO Auto-generated constructor stub
-    }
-
-    public AttributeReflectionException(Throwable cause) {
-        super(cause);
-        // TODO Auto-generated constructor stub
-    }
-
-    public AttributeReflectionException(String message, Throwable cause) {
-        super(message, cause);
-        // TODO Auto-generated constructor stub
-    }
-
-}
@@ -0,0 +1,29 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates Transaction IDs with {@link ThreadLocalRandom}.
+ * <p>
+ * The IDs are unique enough to match responses, but predictable: use this
+ * generator for load generators and tests only, and
+ * {@link SecureTransactionIdGenerator} everywhere else.
+ */
+public class FastTransactionIdGenerator implements TransactionIdGenerator {
+
+	public TransactionId next() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return new TransactionId(random.nextLong(), random.nextInt());
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.attribute.AbstractMessageAttribute;
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.attribute.exception.UnknownMessageAttributeException;
+
+/**
+ * The attributes of a message, in wire order.
+ * <p>
+ * Attributes are kept in an array, with their type encodings in a parallel
+ * <code>int[]</code> so that lookups by type scan primitives only. Repeated
+ * types are allowed. Most messages carry 1 to 4 attributes, so a linear scan
+ * beats any map. The arrays are only allocated when the first attribute is
+ * added.
+ * <p>
+ * Entries can also be indexed without being decoded: only the type, value
+ * offset and value length are recorded, and the attribute is built from the
+ * packet buffer the first time it is asked for.
+ */
+final class MessageAttributeList {
+
+	private final static int INITIAL_CAPACITY = 4;
+	private final static int ATTRIBUTEHEADERSIZE = MessageHeaderDecoder.ATTRIBUTEHEADERSIZE;
+
+	private int[] types;
+	private AbstractMessageAttribute[] attributes;
+	// value offset and length of the entries not decoded yet
+	private int[] offsets;
+	private int[] lengths;
+	private int size;
+
+	// the packet indexed entries point to, and its Transaction ID
+	private ByteBuffer data;
+	private TransactionId id;
+
+	void add(AbstractMessageAttribute attribute) {
+		ensureCapacity();
+		types[size] = attribute.getTypeEncoding();
+		attributes[size] = attribute;
+		size++;
+	}
+
+	/**
+	 * Records an attribute without decoding it. <b>data</b> must not be
+	 * modified as long as the attribute may be asked for.
+	 *
+	 * @param type		the type found in the attribute header
+	 * @param data		the buffer containing the packet
+	 * @param id		the Transaction ID of the packet
+	 * @param offset	the absolute index of the first value byte
+	 * @param length	the value length, padding excluded
+	 */
+	void addIndexed(int type, ByteBuffer data, TransactionId id, int offset, int length) {
+		ensureCapacity();
+		this.data = data;
+		this.id = id;
+		types[size] = type;
+		offsets[size] = offset;
+		lengths[size] = length;
+		size++;
+	}
+
+	private void ensureCapacity() {
+		if (attributes == null) {
+			types = new int[INITIAL_CAPACITY];
+			attributes = new AbstractMessageAttribute[INITIAL_CAPACITY];
+			offsets = new int[INITIAL_CAPACITY];
+			lengths = new int[INITIAL_CAPACITY];
+		} else if (size == attributes.length) {
+			types = grow(types);
+			offsets = grow(offsets);
+			lengths = grow(lengths);
+			AbstractMessageAttribute[] newAttributes = new AbstractMessageAttribute[size * 2];
+			System.arraycopy(attributes, 0, newAttributes, 0, size);
+			attributes = newAttributes;
+		}
+	}
+
+	private int[] grow(int[] array) {
+		int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the attribute at <b>index</b>, decoding it first if it was
+	 * only indexed.
+	 */
+	AbstractMessageAttribute get(int index) throws MessageAttributeParsingException {
+		checkIndex(index);
+		AbstractMessageAttribute attribute = attributes[index];
+		if (attribute == null) {
+			try {
+				attribute = AbstractMessageAttribute.parseValue(types[index], data, offsets[index],
+						lengths[index], id);
+			} catch (UnknownMessageAttributeException umae) {
+				// comprehension-required types were rejected when indexing
+				throw new MessageAttributeParsingException(umae.getMessage());
+			}
+			attributes[index] = attribute;
+		}
+		return attribute;
+	}
+
+	int getType(int index) {
+		checkIndex(index);
+		return types[index];
+	}
+
+	/**
+	 * @return the encoded size of the entry, without decoding it
+	 */
+	int getLength(int index) {
+		checkIndex(index);
+		if (attributes[index] != null)
+			return attributes[index].getLength();
+		return ATTRIBUTEHEADERSIZE + ((lengths[index] + 3) & ~3);
+	}
+
+	/**
+	 * Encodes the entry of the message whose Transaction ID is <b>id</b>
+	 * at the position of <b>buffer</b>. Entries that were never decoded are
+	 * copied from the packet as they are, so they stay keyed with the
+	 * packet's Transaction ID.
+	 */
+	void encodeTo(int index, ByteBuffer buffer, TransactionId id) {
+		checkIndex(index);
+		if (attributes[index] != null) {
+			attributes[index].encodeTo(buffer, id);
+			return;
+		}
+
+		int position = buffer.position();
+		int length = getLength(index);
+		if (buffer.remaining() < length)
+			throw new BufferOverflowException();
+
+		int start = offsets[index] - ATTRIBUTEHEADERSIZE;
+		int copied = ATTRIBUTEHEADERSIZE + lengths[index];
+		for (int i = 0; i < copied; i++)
+			buffer.put(position + i, data.get(start + i));
+		for (int i = copied; i < length; i++)
+			buffer.put(position + i, (byte) 0);
+		buffer.position(position + length);
+	}
+
+	/**
+	 * Lets a decoded entry cover the preceding bytes of the message, once
+	 * it is encoded at <b>offset</b>.
+	 *
+	 * @see AbstractMessageAttribute#encodeOver(ByteBuffer, int, int)
+	 */
+	void encodeOver(int index, ByteBuffer buffer, int messageOffset, int offset) {
+		if (attributes[index] != null)
+			attributes[index].encodeOver(buffer, messageOffset, offset);
+	}
+
+	private void checkIndex(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+	}
+
+	/**
+	 * @return the index of the first attribute of the given type at or after
+	 *         <b>fromIndex</b>, or -1
+	 */
+	int indexOf(int type, int fromIndex) {
+		for (int i = fromIndex; i < size; i++) {
+			if (types[i] == type)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the first attribute of the given type, or null
+	 */
+	AbstractMessageAttribute find(int type) throws MessageAttributeParsingException {
+		int index = indexOf(type, 0);
+		return (index < 0) ? null : get(index);
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++)
+			attributes[i] = null;
+		size = 0;
+		data = null;
+		id = null;
+	}
+}
@@ -11,20 +11,20 @@
 
 package de.javawi.jstun.header;
 
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.Random;
-import java.util.TreeMap;
-import java.util.logging.Logger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import de.javawi.jstun.attribute.AbstractMappedAddress;
 import de.javawi.jstun.attribute.AbstractMessageAttribute;
+import de.javawi.jstun.attribute.MessageAttributeRegistry;
 import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
-import de.javawi.jstun.attribute.exception.AttributeReflectionException;
 import de.javawi.jstun.attribute.exception.MessageAttributeException;
 import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
 import de.javawi.jstun.attribute.exception.UnknownMessageAttributeException;
 import de.javawi.jstun.header.exception.MessageHeaderParsingException;
+import de.javawi.jstun.jfr.StunParseFailureEvent;
+import de.javawi.jstun.trace.TraceEvent;
+import de.javawi.jstun.trace.Tracer;
 import de.javawi.jstun.util.Utility;
 import de.javawi.jstun.util.UtilityException;
 
@@ -43,16 +43,16 @@ public class MessageHeader implements MessageHeaderInterface {
 	   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 	 */
 
-	private static Logger logger = Logger.getLogger("de.javawi.jstun.header.MessageHeader");
+	private static volatile TransactionIdGenerator generator = new SecureTransactionIdGenerator();
 	//
 	MessageType type;
-	private final byte[] id = new byte[TRANSACTIONIDSIZE];
+	private TransactionId id = TransactionId.ZERO;
 	private final byte[] mcookie = new byte[MAGICCOOKIESIZE];
 	private long magicCookie; // mcookie as a long
 	private boolean stun2;
 
-	private final TreeMap<AbstractMessageAttribute.MessageAttributeType, AbstractMessageAttribute> ma =
-		new TreeMap<MessageAttributeType, AbstractMessageAttribute>();
+	// in wire order
+	private final MessageAttributeList ma = new MessageAttributeList();
 
 	public MessageHeader() throws UtilityException {
 		generateMagicCookie(); // TODO are we sure?
@@ -64,23 +64,77 @@ public class MessageHeader implements MessageHeaderInterface {
 	}
 	
 	public MessageHeader(byte[] data) throws MessageHeaderParsingException, UtilityException,
-	MessageAttributeException, AttributeReflectionException {
+	MessageAttributeException {
+		this(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Parses the message stored between the position and the limit of
+	 * <b>data</b>, header and attributes, without copying the packet.
+	 *
+	 * @param data	the buffer containing the packet
+	 */
+	public MessageHeader(ByteBuffer data) throws MessageHeaderParsingException, UtilityException,
+	MessageAttributeException {
+		this(new MessageHeaderDecoder().wrap(data));
+	}
+
+	/**
+	 * Parses the message the <b>decoder</b> points to. The decoder can be
+	 * reused afterwards.
+	 *
+	 * @param decoder	a decoder wrapping the packet
+	 */
+	public MessageHeader(MessageHeaderDecoder decoder) throws MessageHeaderParsingException,
+	UtilityException, MessageAttributeException {
 		this();
-		setType(parseType(data));
-		parseMagicCookie(data);
+		readHeader(decoder);
 		equalMagicCookie();
-		parseAttributes(data);
-		// TODO maybe we should catch the utility exception, dal quinto byte in poi
+		parseAttributes(decoder);
 	}
 
 	// can be chained
 	public MessageHeader initHeader() throws UtilityException {
+		return initHeader(generator);
+	}
+
+	/**
+	 * Sets the Magic Cookie, and a new Transaction ID taken from <b>generator</b>.
+	 *
+	 * @return this header, so calls can be chained
+	 */
+	public MessageHeader initHeader(TransactionIdGenerator generator) throws UtilityException {
 		generateMagicCookie();
-		generateTransactionID();
+		id = generator.next();
 
 		return this;
 	}
 
+	/**
+	 * Sets the Magic Cookie, and <b>id</b> as the Transaction ID, e.g. the
+	 * one of the request answered, without drawing a new one.
+	 *
+	 * @return this header, so calls can be chained
+	 */
+	public MessageHeader initHeader(TransactionId id) {
+		generateMagicCookie();
+		this.id = id;
+
+		return this;
+	}
+
+	/**
+	 * Sets the generator used by {@link #initHeader()}. The default one is a
+	 * {@link SecureTransactionIdGenerator}.
+	 */
+	public static void setTransactionIdGenerator(TransactionIdGenerator generator) {
+		MessageHeader.generator = generator;
+	}
+
+	public static TransactionIdGenerator getTransactionIdGenerator() {
+		return generator;
+	}
+
 	public void setType(MessageType type) {
 		this.type = type;
 	}
@@ -110,18 +164,30 @@ public class MessageHeader implements MessageHeaderInterface {
 	// }
 
 	public void setTransactionID(byte[] id) {
-		System.arraycopy(id, 0, this.id, 0, 16);
+		this.id = TransactionId.read(id, 0);
+	}
+
+	public void setTransactionID(TransactionId id) {
+		this.id = id;
 	}
 
-	private void generateMagicCookie() throws UtilityException {
-		System.arraycopy(Utility.integerToFourBytes(MAGICCOOKIE), 0, mcookie,
-				0, MAGICCOOKIESIZE);
+	private void generateMagicCookie() {
+		Utility.putUnsignedInt(mcookie, 0, MAGICCOOKIE);
 	}
 
-	private void parseMagicCookie(byte[] data) throws UtilityException {
+	private void parseMagicCookie(byte[] data) {
 		System.arraycopy(data, 4, mcookie, 0, 4);
 		// Store it as an int too
-		magicCookie = Utility.fourBytesToLong(mcookie);
+		magicCookie = Utility.getUnsignedInt(data, 4);
+	}
+
+	private void parseMagicCookie(MessageHeaderDecoder decoder) {
+		ByteBuffer data = decoder.getBuffer();
+		int offset = decoder.getOffset() + 4;
+		for (int i = 0; i < MAGICCOOKIESIZE; i++)
+			mcookie[i] = data.get(offset + i);
+		// Store it as an int too
+		magicCookie = decoder.getMagicCookie();
 	}
 
 	public byte[] getMagicCookie() { // TODO why so complicated?
@@ -147,25 +213,12 @@ public class MessageHeader implements MessageHeaderInterface {
 	}
 
 
-	private void generateTransactionID() throws UtilityException {
-		int start = 0;
-		int length = 4;
-
-		for (int i = 0; i < TRANSACTIONIDSIZE / 4; i++, start += 4) {
-			Random r = new Random();
-			int val = r.nextInt();
-			System.arraycopy(Utility.integerToFourBytes(val), 0, id, start, length);
-		}
-	}
-
-	/** Returns the id variable
+	/** Returns the id variable. No copy is made, as {@link TransactionId} is immutable.
 	 *
 	 * @return the stored Transaction ID
 	 */
-	public byte[] getTransactionID() {
-		byte[] idCopy = new byte[TRANSACTIONIDSIZE];
-		System.arraycopy(id, 0, idCopy, 0, TRANSACTIONIDSIZE);
-		return idCopy;
+	public TransactionId getTransactionID() {
+		return id;
 	}
 
 	/** Parses the transaction id from an incoming packet, and stores it in a variable
@@ -173,28 +226,13 @@ public class MessageHeader implements MessageHeaderInterface {
 	 * @param data	the byte[] containing the packet
 	 */
 	public void parseTransactionID(byte[] data) {
-		System.arraycopy(data, 8, id, 0, TRANSACTIONIDSIZE);
+		id = TransactionId.read(data, 8);
 	}
 
 	public boolean equalTransactionID(MessageHeader header) {
-		byte[] idHeader = header.getTransactionID();
-
-		return Arrays.equals(idHeader, id); // TODO must be tested
-//		if (idHeader.length != 16)
-//			return false;
-//		if ((idHeader[0] == id[0]) && (idHeader[1] == id[1])
-//				&& (idHeader[2] == id[2]) && (idHeader[3] == id[3])
-//				&& (idHeader[4] == id[4]) && (idHeader[5] == id[5])
-//				&& (idHeader[6] == id[6]) && (idHeader[7] == id[7])
-//				&& (idHeader[8] == id[8]) && (idHeader[9] == id[9])
-//				&& (idHeader[10] == id[10]) && (idHeader[11] == id[11])
-//				&& (idHeader[12] == id[12]) && (idHeader[13] == id[13])
-//				&& (idHeader[14] == id[14]) && (idHeader[15] == id[15])) {
-//			return true;
-//		} else {
-//			return false;
-//		}
+		return id.equals(header.id);
 	}
+
 	/*
 	 * stun
 	 *
@@ -208,96 +246,222 @@ public class MessageHeader implements MessageHeaderInterface {
 	 * public byte[] getBytes() throws UtilityException { int length = 20;
 	 */
 
+	/**
+	 * Appends the attribute. Attributes are encoded in the order they are
+	 * added, but for FINGERPRINT which is always encoded last, and the same
+	 * type may be added more than once.
+	 */
 	public void addMessageAttribute(AbstractMessageAttribute attri) {
-		ma.put(attri.getType(), attri);
+		ma.add(attri);
 	}
 
+	/**
+	 * @return the first attribute of the given type, or null
+	 * @throws MessageAttributeParsingException if the attribute was indexed
+	 *             by {@link #parseAttributesLazily(MessageHeaderDecoder)} and
+	 *             its value is malformed
+	 */
 	public AbstractMessageAttribute getMessageAttribute(
-			AbstractMessageAttribute.MessageAttributeType type) {
-		return ma.get(type);
+			AbstractMessageAttribute.MessageAttributeType type) throws MessageAttributeParsingException {
+		return ma.find(type.getEncoding());
+	}
+
+	public int getMessageAttributeCount() {
+		return ma.size();
 	}
 
-	public AbstractMappedAddress getMappedAddress() {
+	/**
+	 * @param index	the position of the attribute in the message, starting at 0
+	 */
+	public AbstractMessageAttribute getMessageAttribute(int index) throws MessageAttributeParsingException {
+		return ma.get(index);
+	}
+
+	/**
+	 * Finds repeated attributes:
+	 * <pre>
+	 * for (int i = mh.indexOfMessageAttribute(type, 0); i >= 0; i = mh.indexOfMessageAttribute(type, i + 1))
+	 *     ... mh.getMessageAttribute(i) ...
+	 * </pre>
+	 *
+	 * @return the index of the first attribute of the given type at or after
+	 *         <b>fromIndex</b>, or -1
+	 */
+	public int indexOfMessageAttribute(AbstractMessageAttribute.MessageAttributeType type, int fromIndex) {
+		return ma.indexOf(type.getEncoding(), fromIndex);
+	}
+
+	/**
+	 * Finds the attributes of a type {@link AbstractMessageAttribute.MessageAttributeType}
+	 * lacks, e.g. unknown optional ones.
+	 *
+	 * @param type	the type as encoded
+	 * @see #indexOfMessageAttribute(AbstractMessageAttribute.MessageAttributeType, int)
+	 */
+	public int indexOfMessageAttribute(int type, int fromIndex) {
+		return ma.indexOf(type, fromIndex);
+	}
+
+	public AbstractMappedAddress getMappedAddress() throws MessageAttributeParsingException {
 		// more generic casts -> less coupling
-		AbstractMappedAddress xor = (AbstractMappedAddress) ma.get(MessageAttributeType.XORMappedAddress);
+		AbstractMappedAddress xor = (AbstractMappedAddress) ma.find(MessageAttributeType.XORMappedAddress.getEncoding());
 		if (xor == null)
-			return (AbstractMappedAddress) ma.get(MessageAttributeType.MappedAddress);
+			return (AbstractMappedAddress) ma.find(MessageAttributeType.MappedAddress.getEncoding());
 		else
 			return xor;
 	}
 
-	public byte[] getBytes() throws UtilityException {
-		int length = MessageHeaderInterface.HEADERSIZE;
-		Iterator<AbstractMessageAttribute.MessageAttributeType> it = ma.keySet().iterator();
-		while (it.hasNext()) {
-			AbstractMessageAttribute attri = ma.get(it.next());
-			length += attri.getLength();
-		}
-		// add attribute size + attributes.getSize();
-		byte[] result = new byte[length];
-		/*
-		 * stun System.arraycopy(Utility.integerToTwoBytes(typeToInteger(type)),
-		 * 0, result, 0, 2);
-		 * System.arraycopy(Utility.integerToTwoBytes(length-20), 0, result, 2,
-		 * 2); System.arraycopy(id, 0, result, 4, 16);
-		 *
-		 * // arraycopy of attributes int offset = 20; it =
-		 * ma.keySet().iterator(); while (it.hasNext()) { MessageAttribute attri
-		 * = ma.get(it.next()); System.arraycopy(attri.getBytes(), 0, result,
-		 * offset, attri.getLength()); offset += attri.getLength(); } return
-		 * result; }
-		 *
-		 * public int getLength() throws UtilityException { return
-		 * getBytes().length; }
-		 */
-		// copy first 32 bits of header in result, 2 bytes at a time
-		byte[] typeByte = Utility.integerToTwoBytes(type.getEncoding());
-		System.arraycopy(typeByte, 0, result, 0, 2);
-		System.arraycopy(Utility.integerToTwoBytes(length - HEADERSIZE), 0, result, 2,
-				2);
-		System.arraycopy(mcookie, 0, result, 4, 4);
-		System.arraycopy(id, 0, result, 8, MessageHeaderInterface.TRANSACTIONIDSIZE);
-
-		// arraycopy of attributes
-		int offset = MessageHeaderInterface.HEADERSIZE;
-		it = ma.keySet().iterator();
-		while (it.hasNext()) { // TODO do it before?
-			AbstractMessageAttribute attri = ma.get(it.next());
-			int attributeLength = attri.getLength();
-			System.arraycopy(attri.getBytes(), 0, result, offset,
-					attributeLength);
-			offset += attributeLength;
+	/**
+	 * Writes the whole message at the position of <b>buffer</b>, and
+	 * advances it by {@link #getLength()} bytes. Nothing is allocated, so a
+	 * single buffer can be reused for every message.
+	 *
+	 * @param buffer	the buffer to write to
+	 * @throws BufferOverflowException if there are not enough bytes remaining
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		int offset = buffer.position();
+		int length = getLength();
+		if (buffer.remaining() < length)
+			throw new BufferOverflowException();
+
+		// first 32 bits of header
+		Utility.putUnsignedShort(buffer, offset, type.getEncoding());
+		Utility.putUnsignedShort(buffer, offset + 2, length - HEADERSIZE);
+		for (int i = 0; i < MAGICCOOKIESIZE; i++)
+			buffer.put(offset + 4 + i, mcookie[i]);
+		id.writeTo(buffer, offset + 8);
+		buffer.position(offset + HEADERSIZE);
+
+		int fingerprint = MessageAttributeType.Fingerprint.getEncoding();
+		for (int i = 0; i < ma.size(); i++) {
+			if (ma.getType(i) != fingerprint)
+				encodeAttribute(i, buffer, offset);
 		}
+		// FINGERPRINT covers every other attribute
+		for (int i = ma.indexOf(fingerprint, 0); i >= 0; i = ma.indexOf(fingerprint, i + 1))
+			encodeAttribute(i, buffer, offset);
+	}
+
+	private void encodeAttribute(int index, ByteBuffer buffer, int messageOffset) {
+		int attributeOffset = buffer.position();
+		ma.encodeTo(index, buffer, id);
+		ma.encodeOver(index, buffer, messageOffset, attributeOffset);
+	}
+
+	public byte[] getBytes() {
+		byte[] result = new byte[getLength()];
+		encodeTo(ByteBuffer.wrap(result));
 		return result;
 	}
 
-	public int getLength() throws UtilityException {
-		return getBytes().length;
+	/**
+	 * @return the encoded size of the message, header included
+	 */
+	public int getLength() {
+		int length = HEADERSIZE;
+		for (int i = 0; i < ma.size(); i++)
+			length += ma.getLength(i);
+		return length;
 	}
 
 	public void parseAttributes(byte[] data) throws UnknownMessageAttributeException,
-	MessageAttributeParsingException, AttributeReflectionException {
+	MessageAttributeParsingException {
+		parseAttributes(ByteBuffer.wrap(data));
+	}
+
+	public void parseAttributes(ByteBuffer data) throws UnknownMessageAttributeException,
+	MessageAttributeParsingException {
 		try {
-			byte[] lengthArray = new byte[2];
-			// copy packet's payload length (i.e. excluding the 20 byte header)
-			System.arraycopy(data, 2, lengthArray, 0, 2);
-			// convert it to int
-			int length = Utility.twoBytesToInteger(lengthArray);
-
-			byte[] cutData;
-			int offset = HEADERSIZE;
-			while (length > 0) {
-				// TODO does it work if there's more than one attribute?
-				cutData = new byte[length];
-				System.arraycopy(data, offset, cutData, 0, length);
-				AbstractMessageAttribute ma = AbstractMessageAttribute.parseCommonHeader(cutData);
+			parseAttributes(new MessageHeaderDecoder().wrap(data));
+		} catch (MessageHeaderParsingException mhpe) {
+			throw new MessageAttributeParsingException(mhpe.getMessage());
+		}
+	}
+
+	/**
+	 * Parses every attribute of the message the <b>decoder</b> points to,
+	 * reading each value in place.
+	 *
+	 * @param decoder	a decoder wrapping the packet
+	 */
+	public void parseAttributes(MessageHeaderDecoder decoder) throws UnknownMessageAttributeException,
+	MessageAttributeParsingException {
+		ByteBuffer data = decoder.getBuffer();
+		TransactionId wireId = getTransactionID(decoder);
+		decoder.rewind();
+		int type = 0;
+		try {
+			while (decoder.nextAttribute()) {
+				type = decoder.getAttributeType();
+				AbstractMessageAttribute ma = AbstractMessageAttribute.parseValue(type, data,
+						decoder.getAttributeValueOffset(), decoder.getAttributeValueLength(), wireId);
 				addMessageAttribute(ma);
-				int ma_length = ma.getLength();
-				length -= ma_length;
-				offset += ma_length;
 			}
-		} catch (UtilityException ue) {
-			throw new MessageAttributeParsingException("Parsing error");
+		} catch (UnknownMessageAttributeException umae) {
+			attributeFailed(umae, decoder, umae.getType());
+			throw umae;
+		} catch (MessageAttributeParsingException mape) {
+			attributeFailed(mape, decoder, type);
+			throw mape;
+		}
+	}
+
+	private static void attributeFailed(Exception e, MessageHeaderDecoder decoder, int type) {
+		StunParseFailureEvent.emit(StunParseFailureEvent.ATTRIBUTE, e.getMessage(), decoder.getLength(), type,
+				null, 0);
+	}
+
+	/**
+	 * @return the Transaction ID of the packet, that XOR-ed attributes are
+	 *         decoded with; this header's one if they are the same
+	 */
+	private TransactionId getTransactionID(MessageHeaderDecoder decoder) {
+		return decoder.equalTransactionID(id) ? id : decoder.getTransactionID();
+	}
+
+	/**
+	 * Checks the framing of every attribute once, and records its type,
+	 * offset and length without decoding it. An attribute is only built
+	 * when it is asked for, e.g. by {@link #getMessageAttribute(MessageAttributeType)}.
+	 * Attributes that are never read are copied as they are when the
+	 * message is encoded again.
+	 * <p>
+	 * The packet buffer is referenced, not copied: it must not be reused
+	 * until this header is no longer needed.
+	 *
+	 * @param decoder	a decoder wrapping the packet
+	 * @throws UnknownMessageAttributeException if a comprehension-required
+	 *             attribute is unknown
+	 */
+	public void parseAttributesLazily(MessageHeaderDecoder decoder) throws UnknownMessageAttributeException,
+	MessageAttributeParsingException {
+		ByteBuffer data = decoder.getBuffer();
+		TransactionId wireId = getTransactionID(decoder);
+		decoder.rewind();
+		try {
+			while (decoder.nextAttribute()) {
+				int type = decoder.getAttributeType();
+				if ((type <= 0x7fff) && !MessageAttributeRegistry.isRegistered(type))
+					throw new UnknownMessageAttributeException("Mandatory attribute " + type + " unknown", type);
+				ma.addIndexed(type, data, wireId, decoder.getAttributeValueOffset(),
+						decoder.getAttributeValueLength());
+			}
+		} catch (UnknownMessageAttributeException umae) {
+			attributeFailed(umae, decoder, umae.getType());
+			throw umae;
+		} catch (MessageAttributeParsingException mape) {
+			attributeFailed(mape, decoder, 0);
+			throw mape;
+		}
+	}
+
+	public void parseAttributesLazily(ByteBuffer data) throws UnknownMessageAttributeException,
+	MessageAttributeParsingException {
+		try {
+			parseAttributesLazily(new MessageHeaderDecoder().wrap(data));
+		} catch (MessageHeaderParsingException mhpe) {
+			throw new MessageAttributeParsingException(mhpe.getMessage());
 		}
 	}
 
@@ -312,45 +476,84 @@ public class MessageHeader implements MessageHeaderInterface {
 
 		MessageHeader mh = new MessageHeader();
 
-		mh.setType(parseType(data));
-		mh.parseMagicCookie(data); // TODO re-add
-		mh.parseTransactionID(data);
+		try {
+			mh.setType(parseType(data));
+			mh.parseMagicCookie(data); // TODO re-add
+			mh.parseTransactionID(data);
+		} catch (MessageHeaderParsingException mhpe) {
+			headerFailed(mhpe, data.length);
+			throw mhpe;
+		}
 
 		return mh;
 		// TODO maybe we should catch the utility exception, dal quinto byte in poi
 	}
 
-	// TODO we shouldn't be using these constants
-	private static MessageType parseType(byte[] data) throws UtilityException,
-			MessageHeaderParsingException {
+	/**
+	 * Parses the header fields only, reading the buffer in place.
+	 *
+	 * @param data	the buffer containing the packet, between position and limit
+	 * @return the parsed header, without attributes
+	 * @throws MessageHeaderParsingException
+	 */
+	public static MessageHeader parseHeader(ByteBuffer data) throws MessageHeaderParsingException,
+			UtilityException {
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder();
+		try {
+			decoder.wrap(data);
+		} catch (MessageHeaderParsingException mhpe) {
+			headerFailed(mhpe, data.remaining());
+			throw mhpe;
+		}
+		return parseHeader(decoder);
+	}
 
-		byte[] typeArray = new byte[2];
-		System.arraycopy(data, 0, typeArray, 0, 2);
-		int type = Utility.twoBytesToInteger(typeArray);
+	/**
+	 * Parses the header fields of the message the <b>decoder</b> points to.
+	 * Attributes can then be parsed with {@link #parseAttributes(MessageHeaderDecoder)}
+	 * or {@link #parseAttributesLazily(MessageHeaderDecoder)}.
+	 *
+	 * @param decoder	a decoder wrapping the packet
+	 * @return the parsed header, without attributes
+	 */
+	public static MessageHeader parseHeader(MessageHeaderDecoder decoder) throws MessageHeaderParsingException,
+			UtilityException {
+		MessageHeader mh = new MessageHeader();
+		try {
+			mh.readHeader(decoder);
+		} catch (MessageHeaderParsingException mhpe) {
+			headerFailed(mhpe, decoder.getLength());
+			throw mhpe;
+		}
+		return mh;
+	}
+
+	private static void headerFailed(MessageHeaderParsingException mhpe, int length) {
+		StunParseFailureEvent.emit(StunParseFailureEvent.HEADER, mhpe.getMessage(), length, 0, null, 0);
+	}
+
+	private void readHeader(MessageHeaderDecoder decoder) throws MessageHeaderParsingException {
+		setType(parseType(decoder.getTypeEncoding()));
+		parseMagicCookie(decoder);
+		id = decoder.getTransactionID();
+	}
+
+	// TODO we shouldn't be using these constants
+	private static MessageType parseType(byte[] data) throws MessageHeaderParsingException {
+		return parseType(Utility.getUnsignedShort(data, 0));
+	}
 
+	private static MessageType parseType(int type) throws MessageHeaderParsingException {
+		Tracer.trace(TraceEvent.HEADER_PARSED, type);
 		switch (type) {
 			case BINDINGREQUEST :
-				logger.finer("Binding Request received.");
 				return new MessageType(BINDING, MessageHeaderClass.REQUEST);
 			case BINDINGRESPONSE :
-				logger.finer("Binding Response received.");
 				return new MessageType(BINDING, MessageHeaderClass.SUCCESSRESPONSE);
 			case BINDINGERRORRESPONSE :
-				logger.finer("Binding Error Response received.");
 				return new MessageType(BINDING, MessageHeaderClass.ERRORRESPONSE);
 			case BINDINGINDICATION :
-				logger.finer("Binding Indication received.");
 				return new MessageType(BINDING, MessageHeaderClass.INDICATION);
-//				// STUN1 ONLY
-//			case SHAREDSECRETREQUEST :
-//				logger.finer("Shared Secret Request received.");
-//				return new SharedSecret(MessageHeaderClass.REQUEST);
-//			case SHAREDSECRETRESPONSE :
-//				logger.finer("Shared Secret Response received.");
-//				return new SharedSecret(MessageHeaderClass.SUCCESSRESPONSE);
-//			case SHAREDSECRETERRORRESPONSE :
-//				logger.finer("Shared Secret Error Response received.");
-//				return new SharedSecret(MessageHeaderClass.ERRORRESPONSE);
 				/*
 				 * TODO this should change in future versions, supporting the
 				 * definition of new methods
@@ -0,0 +1,268 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.attribute.MessageAttributeRegistry;
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.header.exception.MessageHeaderParsingException;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * Flyweight view of a STUN message stored in a {@link ByteBuffer}.
+ * <p>
+ * The header fields are read in place and the attributes are walked by
+ * offset, so decoding never copies the packet. The buffer may be a heap or a
+ * direct one; its position, limit and byte order are never modified.
+ * <p>
+ * A decoder can be reused for any number of messages by calling
+ * {@link #wrap(ByteBuffer, int, int) wrap()} again. It is not thread safe.
+ *
+ * <pre>
+ * MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(buffer);
+ * while (decoder.nextAttribute()) {
+ *     int type = decoder.getAttributeType();
+ *     ...
+ * }
+ * </pre>
+ */
+public class MessageHeaderDecoder implements MessageHeaderInterface {
+
+	// type (2 bytes) + length (2 bytes)
+	final static int ATTRIBUTEHEADERSIZE = 4;
+
+	private ByteBuffer data;
+	private int offset; // first byte of the header
+	private int end; // first byte after the last attribute
+
+	private int attributeOffset; // common header of the current attribute
+	private int nextOffset; // common header of the next attribute
+
+	/**
+	 * Wraps the bytes between the position and the limit of <b>data</b>.
+	 *
+	 * @see #wrap(ByteBuffer, int, int)
+	 */
+	public MessageHeaderDecoder wrap(ByteBuffer data) throws MessageHeaderParsingException {
+		return wrap(data, data.position(), data.remaining());
+	}
+
+	/**
+	 * Points the decoder to the message starting at <b>offset</b>, and checks
+	 * that the message length field fits in the <b>length</b> available bytes.
+	 *
+	 * @param data		the buffer containing the packet
+	 * @param offset	the absolute index of the first header byte
+	 * @param length	the number of bytes received
+	 * @return this decoder, so calls can be chained
+	 * @throws MessageHeaderParsingException if the header is truncated or
+	 *             announces more bytes than available
+	 */
+	public MessageHeaderDecoder wrap(ByteBuffer data, int offset, int length)
+			throws MessageHeaderParsingException {
+		if (length < HEADERSIZE)
+			throw new MessageHeaderParsingException("Message too short: " + length + " bytes");
+
+		int messageLength = Utility.getUnsignedShort(data, offset + 2);
+		if (HEADERSIZE + messageLength > length)
+			throw new MessageHeaderParsingException("Message length " + messageLength
+					+ " exceeds the " + length + " bytes received");
+
+		this.data = data;
+		this.offset = offset;
+		this.end = offset + HEADERSIZE + messageLength;
+		rewind();
+
+		return this;
+	}
+
+	/**
+	 * Moves the attribute cursor back before the first attribute.
+	 */
+	public void rewind() {
+		attributeOffset = -1;
+		nextOffset = offset + HEADERSIZE;
+	}
+
+	public ByteBuffer getBuffer() {
+		return data;
+	}
+
+	/**
+	 * @return the absolute index of the first header byte
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the size of the whole message, header included
+	 */
+	public int getLength() {
+		return end - offset;
+	}
+
+	public int getTypeEncoding() {
+		return Utility.getUnsignedShort(data, offset);
+	}
+
+	/**
+	 * @return the length field of the header, i.e. the attributes' size
+	 */
+	public int getMessageLength() {
+		return end - offset - HEADERSIZE;
+	}
+
+	public long getMagicCookie() {
+		return Utility.getUnsignedInt(data, offset + 4);
+	}
+
+	public boolean equalMagicCookie() {
+		return getMagicCookie() == MAGICCOOKIE;
+	}
+
+	/**
+	 * @return the absolute index of the first Transaction ID byte
+	 */
+	public int getTransactionIDOffset() {
+		return offset + 8;
+	}
+
+	public TransactionId getTransactionID() {
+		return TransactionId.read(data, getTransactionIDOffset());
+	}
+
+	/**
+	 * Compares the Transaction ID with <b>id</b>, without copying it.
+	 */
+	public boolean equalTransactionID(TransactionId id) {
+		return id.matches(data, getTransactionIDOffset());
+	}
+
+	/**
+	 * Copies the Transaction ID into <b>id</b>, that must be at least
+	 * {@link MessageHeaderInterface#TRANSACTIONIDSIZE} bytes long.
+	 */
+	public void getTransactionID(byte[] id) {
+		int start = getTransactionIDOffset();
+		for (int i = 0; i < TRANSACTIONIDSIZE; i++)
+			id[i] = data.get(start + i);
+	}
+
+	/**
+	 * Advances to the next attribute, checking its framing.
+	 *
+	 * @return false if there are no more attributes
+	 * @throws MessageAttributeParsingException if the attribute is truncated
+	 */
+	public boolean nextAttribute() throws MessageAttributeParsingException {
+		if (nextOffset >= end)
+			return false;
+		if (end - nextOffset < ATTRIBUTEHEADERSIZE)
+			throw new MessageAttributeParsingException("Truncated attribute header at offset "
+					+ (nextOffset - offset));
+
+		int valueLength = Utility.getUnsignedShort(data, nextOffset + 2);
+		int valueEnd = nextOffset + ATTRIBUTEHEADERSIZE + valueLength;
+		if (valueEnd > end)
+			throw new MessageAttributeParsingException("Attribute length " + valueLength
+					+ " exceeds the message at offset " + (nextOffset - offset));
+
+		attributeOffset = nextOffset;
+		// values are padded to a multiple of 4, a trailing unpadded one is tolerated
+		nextOffset = Math.min(nextOffset + ATTRIBUTEHEADERSIZE + ((valueLength + 3) & ~3), end);
+		return true;
+	}
+
+	public int getAttributeType() {
+		return Utility.getUnsignedShort(data, attributeOffset);
+	}
+
+	/**
+	 * @return the absolute index of the current attribute's common header
+	 */
+	public int getAttributeOffset() {
+		return attributeOffset;
+	}
+
+	/**
+	 * @return the absolute index of the current attribute's value
+	 */
+	public int getAttributeValueOffset() {
+		return attributeOffset + ATTRIBUTEHEADERSIZE;
+	}
+
+	/**
+	 * @return the length field of the current attribute, padding excluded
+	 */
+	public int getAttributeValueLength() {
+		return Utility.getUnsignedShort(data, attributeOffset + 2);
+	}
+
+	/**
+	 * Walks all the attributes looking for a comprehension-required type
+	 * that has no registered decoder. The cursor is rewound afterwards.
+	 *
+	 * @return the first unknown comprehension-required type, or -1
+	 * @throws MessageAttributeParsingException if an attribute is truncated
+	 */
+	public int findUnknownMandatoryAttribute() throws MessageAttributeParsingException {
+		rewind();
+		try {
+			while (nextAttribute()) {
+				int type = getAttributeType();
+				if ((type <= 0x7fff) && !MessageAttributeRegistry.isRegistered(type))
+					return type;
+			}
+			return -1;
+		} finally {
+			rewind();
+		}
+	}
+
+	/**
+	 * Finds the first attribute of type <b>type</b>. The cursor is rewound
+	 * afterwards.
+	 *
+	 * @return the absolute index of its common header, or -1
+	 * @throws MessageAttributeParsingException if an attribute is truncated
+	 */
+	public int findAttribute(int type) throws MessageAttributeParsingException {
+		rewind();
+		try {
+			while (nextAttribute())
+				if (getAttributeType() == type)
+					return attributeOffset;
+			return -1;
+		} finally {
+			rewind();
+		}
+	}
+
+	/**
+	 * Counts the attributes. The cursor is rewound afterwards.
+	 *
+	 * @throws MessageAttributeParsingException if an attribute is truncated
+	 */
+	public int countAttributes() throws MessageAttributeParsingException {
+		rewind();
+		try {
+			int count = 0;
+			while (nextAttribute())
+				count++;
+			return count;
+		} finally {
+			rewind();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates cryptographically random Transaction IDs, as recommended by
+ * <a href="http://tools.ietf.org/html/rfc5389">RFC5389</a>.
+ * <p>
+ * Every thread owns a {@link SecureRandom} and a buffer of pre-generated
+ * IDs, refilled in bulk with a single <code>nextBytes()</code> call. Threads
+ * never contend with each other, and the cost of the generator is shared by
+ * a whole batch.
+ */
+public class SecureTransactionIdGenerator implements TransactionIdGenerator {
+
+	public final static int DEFAULT_BATCH_SIZE = 64;
+
+	private final int batchSize;
+
+	private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+		@Override
+		protected Batch initialValue() {
+			return new Batch(batchSize);
+		}
+	};
+
+	public SecureTransactionIdGenerator() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize	the number of IDs generated at once by each thread
+	 */
+	public SecureTransactionIdGenerator(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size " + batchSize + " must be positive");
+		this.batchSize = batchSize;
+	}
+
+	public TransactionId next() {
+		return batches.get().next();
+	}
+
+	private static class Batch {
+		private final SecureRandom random = newSecureRandom();
+		private final byte[] ids;
+		private final ByteBuffer buffer;
+		private int offset;
+
+		Batch(int batchSize) {
+			ids = new byte[batchSize * MessageHeaderInterface.TRANSACTIONIDSIZE];
+			buffer = ByteBuffer.wrap(ids);
+			offset = ids.length;
+		}
+
+		TransactionId next() {
+			if (offset == ids.length) {
+				random.nextBytes(ids);
+				offset = 0;
+			}
+			TransactionId id = TransactionId.read(buffer, offset);
+			offset += MessageHeaderInterface.TRANSACTIONIDSIZE;
+			return id;
+		}
+
+		private static SecureRandom newSecureRandom() {
+			try {
+				// unlike NativePRNG, DRBG instances share no lock
+				return SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException nsae) {
+				return new SecureRandom();
+			}
+		}
+	}
+}
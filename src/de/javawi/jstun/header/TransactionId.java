@@ -0,0 +1,112 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.util.Utility;
+
+/**
+ * The 96 bit Transaction ID, held as a long (the first 8 bytes) and an int
+ * (the last 4 bytes).
+ * <p>
+ * Instances are immutable, so they can be shared without copies and used as
+ * keys of client and server transaction tables. They can be compared with,
+ * and written to, a packet buffer directly.
+ */
+public final class TransactionId {
+
+	/**
+	 * The all-zero Transaction ID, used before one is generated or parsed.
+	 */
+	public final static TransactionId ZERO = new TransactionId(0L, 0);
+
+	private final long high;
+	private final int low;
+
+	public TransactionId(long high, int low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * Reads the {@link MessageHeaderInterface#TRANSACTIONIDSIZE} bytes at
+	 * <b>offset</b>, without moving the position of <b>data</b>.
+	 */
+	public static TransactionId read(ByteBuffer data, int offset) {
+		return new TransactionId(Utility.getLong(data, offset), (int) Utility.getUnsignedInt(data, offset + 8));
+	}
+
+	/**
+	 * Reads the {@link MessageHeaderInterface#TRANSACTIONIDSIZE} bytes at <b>offset</b>.
+	 */
+	public static TransactionId read(byte[] data, int offset) {
+		return new TransactionId(Utility.getLong(data, offset), (int) Utility.getUnsignedInt(data, offset + 8));
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public int getLow() {
+		return low;
+	}
+
+	/**
+	 * Compares this ID with the bytes at <b>offset</b>, without copying them.
+	 */
+	public boolean matches(ByteBuffer data, int offset) {
+		return (high == Utility.getLong(data, offset)) && (low == (int) Utility.getUnsignedInt(data, offset + 8));
+	}
+
+	public boolean matches(byte[] data, int offset) {
+		return (high == Utility.getLong(data, offset)) && (low == (int) Utility.getUnsignedInt(data, offset + 8));
+	}
+
+	/**
+	 * Writes the ID at <b>offset</b>, without moving the position of <b>data</b>.
+	 */
+	public void writeTo(ByteBuffer data, int offset) {
+		Utility.putLong(data, offset, high);
+		Utility.putUnsignedInt(data, offset + 8, low);
+	}
+
+	public void writeTo(byte[] data, int offset) {
+		Utility.putLong(data, offset, high);
+		Utility.putUnsignedInt(data, offset + 8, low);
+	}
+
+	public byte[] getBytes() {
+		byte[] result = new byte[MessageHeaderInterface.TRANSACTIONIDSIZE];
+		writeTo(result, 0);
+		return result;
+	}
+
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TransactionId))
+			return false;
+		TransactionId other = (TransactionId) obj;
+		return (high == other.high) && (low == other.low);
+	}
+
+	public int hashCode() {
+		// spreads every bit of both halves over the result
+		long h = (high ^ (low * 0x9E3779B97F4A7C15L)) * 0xBF58476D1CE4E5B9L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public String toString() {
+		return String.format("%016x%08x", high, low);
+	}
+}
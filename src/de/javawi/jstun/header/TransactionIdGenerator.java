@@ -0,0 +1,24 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+/**
+ * Source of new Transaction IDs, used by {@link MessageHeader#initHeader()}.
+ * Implementations must be safe to call from any thread.
+ *
+ * @see SecureTransactionIdGenerator
+ * @see FastTransactionIdGenerator
+ */
+public interface TransactionIdGenerator {
+
+	public TransactionId next();
+}
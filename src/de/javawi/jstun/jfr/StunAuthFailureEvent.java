@@ -0,0 +1,48 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A request whose credentials were rejected, e.g. for a missing or wrong
+ * MESSAGE-INTEGRITY.
+ */
+@Name("de.javawi.jstun.AuthFailure")
+@Label("STUN Authentication Failure")
+@Category({ "JSTUN" })
+@Description("A request whose credentials were rejected")
+@StackTrace(false)
+public final class StunAuthFailureEvent extends jdk.jfr.Event {
+	@Label("Source Address")
+	public String address;
+
+	@Label("Source Port")
+	public int port;
+
+	@Label("Message Type")
+	public int messageType;
+
+	@Label("Transaction ID")
+	public String transactionId;
+
+	@Label("Reason")
+	public String reason;
+
+	@Label("Error Code")
+	@Description("The code of the error response sent back, 0 if none was")
+	public int errorCode;
+}
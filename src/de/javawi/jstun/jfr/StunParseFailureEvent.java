@@ -0,0 +1,84 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.jfr;
+
+import java.net.InetAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A message or attribute that could not be parsed.
+ */
+@Name("de.javawi.jstun.ParseFailure")
+@Label("STUN Parse Failure")
+@Category({ "JSTUN" })
+@Description("A malformed STUN message or attribute")
+@StackTrace(false)
+public final class StunParseFailureEvent extends jdk.jfr.Event {
+	public final static String HEADER = "header";
+	public final static String ATTRIBUTE = "attribute";
+
+	// read before allocating, so that nothing is while JFR is off
+	private final static EventType TYPE = EventType.getEventType(StunParseFailureEvent.class);
+
+	@Label("Stage")
+	@Description("What was being parsed, \"header\" or \"attribute\"")
+	public String stage;
+
+	@Label("Reason")
+	public String reason;
+
+	@Label("Length")
+	@Description("The length of the datagram, or of the attribute data")
+	@DataAmount
+	public int length;
+
+	@Label("Attribute Type")
+	@Description("The type of the failing attribute, if known")
+	public int attributeType;
+
+	@Label("Source Address")
+	@Description("The sender of the datagram, if known")
+	public String address;
+
+	@Label("Source Port")
+	public int port;
+
+	/**
+	 * Records a failure if the event is enabled.
+	 *
+	 * @param source	the sender of the datagram, or null if unknown
+	 */
+	public static void emit(String stage, String reason, int length, int attributeType,
+			InetAddress source, int port) {
+		if (!TYPE.isEnabled())
+			return;
+		StunParseFailureEvent event = new StunParseFailureEvent();
+		if (!event.shouldCommit())
+			return;
+		event.stage = stage;
+		event.reason = reason;
+		event.length = length;
+		event.attributeType = attributeType;
+		if (source != null) {
+			event.address = source.getHostAddress();
+			event.port = port;
+		}
+		event.commit();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A request decoded by a server. The duration runs from the receipt of the
+ * datagram to the end of parsing, so it covers the FINGERPRINT check, the
+ * traffic monitor and the rate limiter as well as parsing the header and
+ * walking the attributes.
+ * <p>
+ * Like the other events of this package it is recorded with the usual JFR
+ * settings, e.g. "-XX:StartFlightRecording:de.javawi.jstun.Request#threshold=0 ms"
+ * to see every request, and costs a couple of branches while disabled.
+ */
+@Name("de.javawi.jstun.Request")
+@Label("STUN Request")
+@Category({ "JSTUN" })
+@Description("A request decoded by the server, timed from receipt, through the FINGERPRINT check, traffic monitor and rate limiter, to the end of parsing")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class StunRequestEvent extends jdk.jfr.Event {
+	@Label("Source Address")
+	public String address;
+
+	@Label("Source Port")
+	public int port;
+
+	@Label("Message Type")
+	@Description("The 14 bit message type, class bits included")
+	public int messageType;
+
+	@Label("Transaction ID")
+	public String transactionId;
+
+	@Label("Length")
+	@DataAmount
+	public int length;
+
+	@Label("Attribute Count")
+	public int attributeCount;
+}
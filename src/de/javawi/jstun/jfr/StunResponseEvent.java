@@ -0,0 +1,63 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * A response built by a server. The duration runs from the receipt of the
+ * request to the response being ready to send, split into the time spent
+ * parsing and encoding; the rest is spent in rate limiting and
+ * monitoring. The transaction ID matches that of the {@link StunRequestEvent}.
+ */
+@Name("de.javawi.jstun.Response")
+@Label("STUN Response")
+@Category({ "JSTUN" })
+@Description("A response built by the server, timed from the receipt of its request")
+@StackTrace(false)
+@Threshold("1 ms")
+public final class StunResponseEvent extends jdk.jfr.Event {
+	@Label("Destination Address")
+	public String address;
+
+	@Label("Destination Port")
+	public int port;
+
+	@Label("Message Type")
+	public int messageType;
+
+	@Label("Transaction ID")
+	public String transactionId;
+
+	@Label("Length")
+	@DataAmount
+	public int length;
+
+	@Label("Error Code")
+	@Description("The code of an error response, 0 otherwise")
+	public int errorCode;
+
+	@Label("Parsing Time")
+	@Timespan
+	public long parsingTime;
+
+	@Label("Encoding Time")
+	@Timespan
+	public long encodingTime;
+}
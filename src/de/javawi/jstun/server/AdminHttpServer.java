@@ -0,0 +1,307 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP listener for operators, serving the {@link ServerMetrics}
+ * in the Prometheus text format on /metrics and the liveness of the server
+ * on /healthz.
+ * <p>
+ * A scrape only reads the counters, adders and histogram buckets the
+ * packet path updates, and never takes a lock the packet path could wait
+ * on. Requests are served by a single thread of their own.
+ * <p>
+ * Besides the metrics, gauges such as queue depths can be added with
+ * {@link #addGauge}, and the checks deciding the health with
+ * {@link #addHealthCheck}. On Linux, the datagrams the kernel dropped
+ * because a socket receive buffer was full are read from /proc/net/udp
+ * and /proc/net/udp6.
+ */
+public class AdminHttpServer {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.server.AdminHttpServer");
+
+	final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private final static String[] PROC_UDP = { "/proc/net/udp", "/proc/net/udp6" };
+	private final static double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	private final InetSocketAddress address;
+	private final ServerMetrics metrics;
+	private final List<Gauge> gauges = new CopyOnWriteArrayList<Gauge>();
+	private final List<HealthCheck> checks = new CopyOnWriteArrayList<HealthCheck>();
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private static final class Gauge {
+		final String name;
+		final String help;
+		final String labels;
+		final LongSupplier value;
+
+		Gauge(String name, String help, String labels, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.labels = labels;
+			this.value = value;
+		}
+	}
+
+	private static final class HealthCheck {
+		final String name;
+		final BooleanSupplier check;
+
+		HealthCheck(String name, BooleanSupplier check) {
+			this.name = name;
+			this.check = check;
+		}
+	}
+
+	/**
+	 * @param address	the address to listen on, e.g. a loopback one
+	 * @param metrics	the metrics to serve
+	 */
+	public AdminHttpServer(InetSocketAddress address, ServerMetrics metrics) {
+		this.address = address;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Adds a gauge to /metrics.
+	 *
+	 * @param name		the metric name, e.g. "stun_ring_depth"
+	 * @param help		its description
+	 * @param labels	its labels, e.g. "listener=\"0\"", or null
+	 * @param value		read on every scrape, from the scraping thread
+	 */
+	public void addGauge(String name, String help, String labels, LongSupplier value) {
+		gauges.add(new Gauge(name, help, labels, value));
+	}
+
+	/**
+	 * Adds a check to /healthz, which answers 503 if any check fails.
+	 */
+	public void addHealthCheck(String name, BooleanSupplier check) {
+		checks.add(new HealthCheck(name, check));
+	}
+
+	public synchronized void start() throws IOException {
+		if (server != null)
+			throw new IllegalStateException("Already started");
+		server = HttpServer.create(address, 0);
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "stun-admin");
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(executor);
+		server.createContext("/metrics", this::serveMetrics);
+		server.createContext("/healthz", this::serveHealth);
+		server.start();
+		logger.config("Admin listener on " + server.getAddress());
+	}
+
+	/**
+	 * @return the address listened on, e.g. to find an ephemeral port
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public synchronized void close() {
+		if (server == null)
+			return;
+		server.stop(0);
+		executor.shutdown();
+		server = null;
+	}
+
+	private void serveMetrics(HttpExchange exchange) throws IOException {
+		StringBuilder text = new StringBuilder(4096);
+		writeMetrics(text);
+		reply(exchange, 200, CONTENT_TYPE, text.toString());
+	}
+
+	private void serveHealth(HttpExchange exchange) throws IOException {
+		StringBuilder failed = new StringBuilder();
+		for (HealthCheck check : checks) {
+			boolean healthy;
+			try {
+				healthy = check.check.getAsBoolean();
+			} catch (RuntimeException re) {
+				healthy = false;
+			}
+			if (!healthy)
+				failed.append(check.name).append(" failed\n");
+		}
+		if (failed.length() == 0)
+			reply(exchange, 200, "text/plain; charset=utf-8", "ok\n");
+		else
+			reply(exchange, 503, "text/plain; charset=utf-8", failed.toString());
+	}
+
+	private static void reply(HttpExchange exchange, int status, String contentType, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		boolean head = "HEAD".equals(exchange.getRequestMethod());
+		exchange.sendResponseHeaders(status, head ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			if (!head)
+				out.write(bytes);
+		}
+	}
+
+	/**
+	 * Appends every metric to <b>text</b>, in the Prometheus text format.
+	 */
+	void writeMetrics(StringBuilder text) {
+		header(text, "stun_requests_total", "Messages received, by type.", "counter");
+		for (Map.Entry<String, Long> e : metrics.getRequestsByType().entrySet())
+			sample(text, "stun_requests_total", "type=\"" + e.getKey() + "\"", e.getValue());
+		header(text, "stun_requests_by_class_total", "Messages received, by class.", "counter");
+		for (Map.Entry<String, Long> e : metrics.getRequestsByClass().entrySet())
+			sample(text, "stun_requests_by_class_total", "class=\"" + e.getKey() + "\"", e.getValue());
+		header(text, "stun_responses_total", "Responses built, by type.", "counter");
+		for (Map.Entry<String, Long> e : metrics.getResponsesByType().entrySet())
+			sample(text, "stun_responses_total", "type=\"" + e.getKey() + "\"", e.getValue());
+		header(text, "stun_error_responses_total", "Error responses built, by code.", "counter");
+		for (Map.Entry<String, Long> e : metrics.getErrorsByCode().entrySet())
+			sample(text, "stun_error_responses_total", "code=\"" + e.getKey() + "\"", e.getValue());
+		header(text, "stun_dropped_total", "Datagrams left unanswered, by reason.", "counter");
+		for (Map.Entry<String, Long> e : metrics.getDropsByReason().entrySet())
+			sample(text, "stun_dropped_total", "reason=\"" + e.getKey().toLowerCase() + "\"", e.getValue());
+
+		List<ListenerMetrics> listeners = metrics.getListeners();
+		header(text, "stun_listener_received_total", "Datagrams received, by listener.", "counter");
+		for (ListenerMetrics listener : listeners)
+			sample(text, "stun_listener_received_total", label(listener), listener.getReceived());
+		header(text, "stun_listener_sent_total", "Responses sent, by listener.", "counter");
+		for (ListenerMetrics listener : listeners)
+			sample(text, "stun_listener_sent_total", label(listener), listener.getSent());
+
+		header(text, "stun_latency_seconds", "Time from the receipt of a request to the send of its response.",
+				"summary");
+		for (ListenerMetrics listener : listeners) {
+			Histogram latency = listener.getLatency();
+			for (double q : QUANTILES)
+				sample(text, "stun_latency_seconds", label(listener) + ",quantile=\"" + q + "\"",
+						latency.getValueAtPercentile(q * 100) / 1e9);
+			sample(text, "stun_latency_seconds_sum", label(listener), latency.getSum() / 1e9);
+			sample(text, "stun_latency_seconds_count", label(listener), latency.getCount());
+		}
+
+		Map<Integer, Long> kernelDrops = readKernelDrops();
+		if (!kernelDrops.isEmpty()) {
+			header(text, "stun_socket_receive_drops_total",
+					"Datagrams dropped by the kernel on a full receive buffer, by listener.", "counter");
+			for (ListenerMetrics listener : listeners) {
+				Long drops = kernelDrops.get(listener.getSocketAddress().getPort());
+				if (drops != null)
+					sample(text, "stun_socket_receive_drops_total", label(listener), drops);
+			}
+		}
+
+		// the samples of a metric must follow its header
+		Map<String, List<Gauge>> byName = new LinkedHashMap<String, List<Gauge>>();
+		for (Gauge gauge : gauges)
+			byName.computeIfAbsent(gauge.name, n -> new ArrayList<Gauge>()).add(gauge);
+		for (List<Gauge> samples : byName.values()) {
+			header(text, samples.get(0).name, samples.get(0).help, "gauge");
+			for (Gauge gauge : samples)
+				sample(text, gauge.name, gauge.labels, gauge.value.getAsLong());
+		}
+	}
+
+	private static String label(ListenerMetrics listener) {
+		return "listener=\"" + listener.getAddress() + "\"";
+	}
+
+	private static void header(StringBuilder text, String name, String help, String type) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, long value) {
+		text.append(name);
+		if (labels != null)
+			text.append('{').append(labels).append('}');
+		text.append(' ').append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, double value) {
+		text.append(name);
+		if (labels != null)
+			text.append('{').append(labels).append('}');
+		text.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * @return the receive drops of the UDP sockets, summed per local port,
+	 *         or nothing where /proc/net/udp does not exist
+	 */
+	static Map<Integer, Long> readKernelDrops() {
+		Map<Integer, Long> drops = new HashMap<Integer, Long>();
+		for (String file : PROC_UDP) {
+			Path path = Paths.get(file);
+			if (!Files.isReadable(path))
+				continue;
+			List<String> lines;
+			try {
+				lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+			} catch (IOException ioe) {
+				continue;
+			}
+			for (String line : lines.subList(Math.min(1, lines.size()), lines.size()))
+				parseProcLine(line, drops);
+		}
+		return drops;
+	}
+
+	/*
+	 * e.g. "  12: 0100007F:0D96 00000000:0000 07 00000000:00000000 00:00000000 00000000  0  0 4242 2
+	 * 0000000000000000 17", where 0D96 is the local port and 17 the drops
+	 */
+	static void parseProcLine(String line, Map<Integer, Long> drops) {
+		String[] fields = line.trim().split("\\s+");
+		if (fields.length < 13)
+			return;
+		int colon = fields[1].lastIndexOf(':');
+		try {
+			int port = Integer.parseInt(fields[1].substring(colon + 1), 16);
+			long count = Long.parseLong(fields[fields.length - 1]);
+			drops.merge(port, count, Long::sum);
+		} catch (NumberFormatException nfe) {
+			// not a socket line
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.attribute.AbstractMappedAddress;
+import de.javawi.jstun.attribute.MappedAddress;
+import de.javawi.jstun.attribute.Software;
+import de.javawi.jstun.attribute.XORMappedAddress;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderVersion;
+import de.javawi.jstun.util.Address.Family;
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.IPv6Address;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * A Binding success response encoded once, for one address family and one
+ * STUN version.
+ * <p>
+ * The response only differs from a request to another by the Transaction ID
+ * and the mapped port and address, so {@link #stamp(ByteBuffer, int, ByteBuffer, int, int, int) stamp()}
+ * copies the template and patches these fields in place. STUN2 responses
+ * carry a XOR-MAPPED-ADDRESS, STUN1 ones a MAPPED-ADDRESS. Templates are
+ * immutable and can be shared by any number of threads.
+ */
+public final class BindingResponseTemplate implements MessageHeaderInterface {
+
+	// the mapped address is the first attribute: padding, family, port, address
+	private final static int PORT_OFFSET = HEADERSIZE + 4 + 2;
+	private final static int ADDRESS_OFFSET = HEADERSIZE + 4 + 4;
+
+	// the 16 bytes following the message type and length, copied from the request
+	private final static int ID_OFFSET = 4;
+
+	private final Family family;
+	private final MessageHeaderVersion version;
+	private final byte[] template;
+
+	/**
+	 * @param family	the family of the clients' addresses
+	 * @param version	STUN2 to answer with a XOR-MAPPED-ADDRESS, STUN1 with a MAPPED-ADDRESS
+	 * @param software	whether to append a SOFTWARE attribute
+	 */
+	public BindingResponseTemplate(Family family, MessageHeaderVersion version, boolean software) {
+		this.family = family;
+		this.version = version;
+
+		MessageHeader mh = new MessageHeader(new MessageType(BINDING, MessageHeaderClass.SUCCESSRESPONSE));
+		AbstractMappedAddress ma = (version == MessageHeaderVersion.STUN2) ? new XORMappedAddress()
+				: new MappedAddress();
+		// patched by stamp()
+		ma.setAddress((family == Family.IPv6) ? new IPv6Address(0L, 0L) : new IPv4Address(0));
+		mh.addMessageAttribute(ma);
+		if (software)
+			mh.addMessageAttribute(new Software());
+		template = mh.getBytes();
+	}
+
+	public Family getFamily() {
+		return family;
+	}
+
+	public MessageHeaderVersion getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the size of every response stamped from this template
+	 */
+	public int getLength() {
+		return template.length;
+	}
+
+	/**
+	 * Writes the response to an IPv4 request at <b>offset</b>, without
+	 * moving the position of either buffer.
+	 *
+	 * @param response			the buffer to write to
+	 * @param offset			the absolute index of the first response byte
+	 * @param request			the buffer containing the request
+	 * @param requestOffset		the absolute index of the first request byte
+	 * @param address			the client address, the first octet in the highest byte
+	 * @param port				the client port
+	 * @return the response length
+	 * @throws BufferOverflowException if the response does not fit
+	 */
+	public int stamp(ByteBuffer response, int offset, ByteBuffer request, int requestOffset,
+			int address, int port) {
+		copyTo(response, offset, request, requestOffset);
+		if (version == MessageHeaderVersion.STUN2) {
+			port ^= MAGICCOOKIE >>> 16;
+			address ^= MAGICCOOKIE;
+		}
+		Utility.putUnsignedShort(response, offset + PORT_OFFSET, port);
+		Utility.putUnsignedInt(response, offset + ADDRESS_OFFSET, address);
+		return template.length;
+	}
+
+	/**
+	 * Writes the response to an IPv6 request at <b>offset</b>, without
+	 * moving the position of either buffer.
+	 *
+	 * @param high	the first 8 bytes of the client address
+	 * @param low	the last 8 bytes of the client address
+	 * @see #stamp(ByteBuffer, int, ByteBuffer, int, int, int)
+	 */
+	public int stamp(ByteBuffer response, int offset, ByteBuffer request, int requestOffset,
+			long high, long low, int port) {
+		copyTo(response, offset, request, requestOffset);
+		if (version == MessageHeaderVersion.STUN2) {
+			port ^= MAGICCOOKIE >>> 16;
+			// the key is the magic cookie followed by the Transaction ID, i.e. request bytes 4 to 19
+			high ^= Utility.getLong(request, requestOffset + ID_OFFSET);
+			low ^= Utility.getLong(request, requestOffset + ID_OFFSET + 8);
+		}
+		Utility.putUnsignedShort(response, offset + PORT_OFFSET, port);
+		Utility.putLong(response, offset + ADDRESS_OFFSET, high);
+		Utility.putLong(response, offset + ADDRESS_OFFSET + 8, low);
+		return template.length;
+	}
+
+	private void copyTo(ByteBuffer response, int offset, ByteBuffer request, int requestOffset) {
+		int length = template.length;
+		if (response.limit() - offset < length)
+			throw new BufferOverflowException();
+
+		// the length is a multiple of 4
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+			Utility.putLong(response, offset + i, Utility.getLong(template, i));
+		if (i < length)
+			Utility.putUnsignedInt(response, offset + i, Utility.getUnsignedInt(template, i));
+
+		// the magic cookie and Transaction ID, or the STUN1 128 bit Transaction ID
+		Utility.putLong(response, offset + ID_OFFSET, Utility.getLong(request, requestOffset + ID_OFFSET));
+		Utility.putLong(response, offset + ID_OFFSET + 8,
+				Utility.getLong(request, requestOffset + ID_OFFSET + 8));
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import de.javawi.jstun.header.MessageHeaderDecoder;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderVersion;
+import de.javawi.jstun.util.Address.Family;
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * The {@link BindingResponseTemplate}s for both address families and both
+ * STUN versions, picked per request.
+ */
+public final class BindingResponseTemplates {
+
+	private final BindingResponseTemplate ipv4Stun1;
+	private final BindingResponseTemplate ipv4Stun2;
+	private final BindingResponseTemplate ipv6Stun1;
+	private final BindingResponseTemplate ipv6Stun2;
+
+	/**
+	 * @param software	whether to append a SOFTWARE attribute to STUN2 responses
+	 */
+	public BindingResponseTemplates(boolean software) {
+		// SOFTWARE is a RFC5389 attribute, STUN1 clients would not expect it
+		ipv4Stun1 = new BindingResponseTemplate(Family.IPv4, MessageHeaderVersion.STUN1, false);
+		ipv4Stun2 = new BindingResponseTemplate(Family.IPv4, MessageHeaderVersion.STUN2, software);
+		ipv6Stun1 = new BindingResponseTemplate(Family.IPv6, MessageHeaderVersion.STUN1, false);
+		ipv6Stun2 = new BindingResponseTemplate(Family.IPv6, MessageHeaderVersion.STUN2, software);
+	}
+
+	public BindingResponseTemplate get(Family family, MessageHeaderVersion version) {
+		if (family == Family.IPv6)
+			return (version == MessageHeaderVersion.STUN2) ? ipv6Stun2 : ipv6Stun1;
+		return (version == MessageHeaderVersion.STUN2) ? ipv4Stun2 : ipv4Stun1;
+	}
+
+	/**
+	 * @return the size of the longest response, to size send buffers with
+	 */
+	public int getMaxLength() {
+		return ipv6Stun2.getLength();
+	}
+
+	/**
+	 * Writes the Binding success response to the request the <b>decoder</b>
+	 * points to, received from <b>address</b>:<b>port</b>. Nothing is
+	 * allocated for IPv4 clients; IPv6 ones cost the copy made by
+	 * {@link InetAddress#getAddress()}.
+	 *
+	 * @param response	the buffer to write to
+	 * @param offset	the absolute index of the first response byte
+	 * @param request	a decoder wrapping the Binding request
+	 * @param address	the client address
+	 * @param port		the client port
+	 * @return the response length
+	 */
+	public int stamp(ByteBuffer response, int offset, MessageHeaderDecoder request, InetAddress address,
+			int port) {
+		MessageHeaderVersion version = request.equalMagicCookie() ? MessageHeaderVersion.STUN2
+				: MessageHeaderVersion.STUN1;
+		if (address instanceof Inet4Address) {
+			return get(Family.IPv4, version).stamp(response, offset, request.getBuffer(),
+					request.getOffset(), IPv4Address.toInt((Inet4Address) address), port);
+		}
+		byte[] bytes = address.getAddress();
+		return get(Family.IPv6, version).stamp(response, offset, request.getBuffer(), request.getOffset(),
+				Utility.getLong(bytes, 0), Utility.getLong(bytes, 8), port);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate counts of events per key over a sliding window, in constant
+ * memory.
+ * <p>
+ * Each key is counted in one cell of every row, picked by a different hash;
+ * its estimate is the smallest of those cells, which overcounts only by the
+ * collisions with the other keys and never undercounts. The window is cut
+ * into slices with their own counters: a new slice is cleared and the
+ * oldest dropped as time goes by, and estimates add up all the slices.
+ * <p>
+ * The counters are atomic, so every thread updates the same sketch without
+ * locking. Events counted while a slice is being cleared may be lost.
+ */
+public final class CountMinSketch {
+
+	private final int depth;
+	private final int width;
+	private final AtomicLongArray[] slices;
+	private final long sliceNanos;
+	private final long origin = System.nanoTime();
+	private final AtomicLong epoch = new AtomicLong();
+
+	/**
+	 * @param depth		the number of rows; the error probability shrinks
+	 *            		exponentially with it
+	 * @param width		the cells of each row, a power of two; the error
+	 *            		shrinks linearly with it
+	 * @param slices	the number of slices of the window
+	 * @param window	the length of the window
+	 * @param unit		the unit of <b>window</b>
+	 */
+	public CountMinSketch(int depth, int width, int slices, long window, TimeUnit unit) {
+		if ((depth <= 0) || (width <= 0) || ((width & (width - 1)) != 0) || (slices <= 0))
+			throw new IllegalArgumentException("Invalid sketch size " + depth + " x " + width + " x "
+					+ slices);
+		this.depth = depth;
+		this.width = width;
+		this.slices = new AtomicLongArray[slices];
+		for (int i = 0; i < slices; i++)
+			this.slices[i] = new AtomicLongArray(depth * width);
+		sliceNanos = Math.max(1, unit.toNanos(window) / slices);
+	}
+
+	/**
+	 * Counts an event for <b>key</b>.
+	 *
+	 * @return the estimated number of events of <b>key</b> in the window
+	 */
+	public long add(long key) {
+		return add(key, System.nanoTime() - origin);
+	}
+
+	long add(long key, long now) {
+		AtomicLongArray current = slices[(int) (rotate(now) % slices.length)];
+		long h = mix(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			int cell = row * width + ((h1 + row * h2) & (width - 1));
+			long count = current.incrementAndGet(cell);
+			for (AtomicLongArray slice : slices)
+				if (slice != current)
+					count += slice.get(cell);
+			min = Math.min(min, count);
+		}
+		return min;
+	}
+
+	/**
+	 * @return the estimated number of events of <b>key</b> in the window
+	 */
+	public long estimate(long key) {
+		return estimate(key, System.nanoTime() - origin);
+	}
+
+	long estimate(long key, long now) {
+		rotate(now);
+		long h = mix(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			int cell = row * width + ((h1 + row * h2) & (width - 1));
+			long count = 0;
+			for (AtomicLongArray slice : slices)
+				count += slice.get(cell);
+			min = Math.min(min, count);
+		}
+		return min;
+	}
+
+	/**
+	 * Moves to the slice of <b>now</b>, clearing the slices it skips over.
+	 *
+	 * @return the number of the current slice
+	 */
+	private long rotate(long now) {
+		long target = now / sliceNanos;
+		long current = epoch.get();
+		if ((target > current) && epoch.compareAndSet(current, target)) {
+			long first = Math.max(current + 1, target - slices.length + 1);
+			for (long e = first; e <= target; e++) {
+				AtomicLongArray slice = slices[(int) (e % slices.length)];
+				for (int i = 0; i < slice.length(); i++)
+					slice.set(i, 0);
+			}
+			return target;
+		}
+		return Math.max(current, epoch.get());
+	}
+
+	/**
+	 * @return the number of the current slice, which changes whenever the
+	 *         window slides
+	 */
+	public long getEpoch() {
+		return epoch.get();
+	}
+
+	private static long mix(long key) {
+		// the finalizer of MurmurHash3
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+/**
+ * The keys the MESSAGE-INTEGRITY of requests is checked with, looked up by
+ * their USERNAME. Called from every thread handling requests.
+ *
+ * @see de.javawi.jstun.attribute.MessageIntegrity#shortTermKey(String)
+ * @see de.javawi.jstun.attribute.MessageIntegrity#longTermKey(String, String, String)
+ */
+public interface CredentialStore {
+
+	/**
+	 * @return the key of <b>username</b>, or null if it is unknown; the same
+	 *         array should be returned each time, and never modified
+	 */
+	public byte[] getKey(String username);
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A preallocated ring of datagram slots passed, in order, from one receiver
+ * to the processing workers and then to one sender.
+ * <p>
+ * Each stage only writes its own {@link Sequence}, and waits on the one of
+ * the stage before it, so no lock is taken and a stage catching up handles
+ * every slot available at once. The processors stripe the slots among
+ * themselves; the sender follows the slowest of them, and the receiver
+ * cannot overtake the sender by more than the ring size.
+ */
+public final class DatagramRing {
+	public final static int DEFAULT_SIZE = 1024;
+
+	/**
+	 * A received datagram and its response, reused for ever.
+	 */
+	static final class Slot {
+		final ByteBuffer request;
+		final ByteBuffer response;
+		InetSocketAddress source;
+		// System.nanoTime() at receipt, when measured
+		long received;
+		int responseLength;
+
+		Slot(ByteBuffer request, ByteBuffer response) {
+			this.request = request;
+			this.response = response;
+		}
+	}
+
+	/**
+	 * Batch sizes seen by one stage. Written by the stage thread only.
+	 */
+	public static final class BatchStats {
+		private volatile long batches;
+		private volatile long events;
+		private volatile int maxBatchSize;
+
+		void record(int size) {
+			batches++;
+			events += size;
+			if (size > maxBatchSize)
+				maxBatchSize = size;
+		}
+
+		public long getBatches() {
+			return batches;
+		}
+
+		public long getEvents() {
+			return events;
+		}
+
+		public int getMaxBatchSize() {
+			return maxBatchSize;
+		}
+
+		public double getMeanBatchSize() {
+			long b = batches;
+			return (b == 0) ? 0 : (double) events / b;
+		}
+	}
+
+	private final Slot[] slots;
+	private final int mask;
+
+	final Sequence published = new Sequence();
+	final Sequence[] processed;
+	final Sequence sent = new Sequence();
+
+	// owned by the receiver
+	private long next;
+	private volatile long fullStalls;
+
+	final BatchStats[] processorStats;
+	final BatchStats senderStats = new BatchStats();
+
+	/**
+	 * @param size			the number of slots, a power of two
+	 * @param processors	the number of processing workers
+	 * @param slotSize		the capacity of the request and response buffers
+	 */
+	public DatagramRing(int size, int processors, int slotSize) {
+		if ((size <= 0) || ((size & (size - 1)) != 0))
+			throw new IllegalArgumentException("Ring size must be a power of two: " + size);
+		if (processors <= 0)
+			throw new IllegalArgumentException("Invalid number of processors " + processors);
+
+		slots = new Slot[size];
+		mask = size - 1;
+		DirectBufferPool pool = new DirectBufferPool(2 * size, slotSize);
+		for (int i = 0; i < size; i++)
+			slots[i] = new Slot(pool.acquire(), pool.acquire());
+
+		processed = new Sequence[processors];
+		processorStats = new BatchStats[processors];
+		for (int i = 0; i < processors; i++) {
+			processed[i] = new Sequence();
+			processorStats[i] = new BatchStats();
+		}
+	}
+
+	/**
+	 * Waits for the next slot to be sent, and returns it with a cleared
+	 * request buffer. Called by the receiver only.
+	 *
+	 * @param running	checked while the ring is full
+	 * @return the slot, or null if the pipeline stopped meanwhile
+	 */
+	Slot claim(BooleanSupplier running) {
+		long wrap = next - slots.length;
+		if (wrap > sent.get()) {
+			fullStalls++;
+			int idle = 0;
+			while (wrap > sent.get()) {
+				if (!running.getAsBoolean())
+					return null;
+				idle = Sequence.backOff(idle);
+			}
+		}
+		Slot slot = slots[(int) next & mask];
+		slot.request.clear();
+		return slot;
+	}
+
+	/**
+	 * Hands the slot returned by {@link #claim} to the processors.
+	 */
+	void publish() {
+		published.set(next++);
+	}
+
+	Slot get(long sequence) {
+		return slots[(int) sequence & mask];
+	}
+
+	/**
+	 * @return the last sequence handled by every processor
+	 */
+	long minimumProcessed() {
+		long min = Long.MAX_VALUE;
+		for (Sequence s : processed)
+			min = Math.min(min, s.get());
+		return min;
+	}
+
+	public int getSize() {
+		return slots.length;
+	}
+
+	public int getProcessors() {
+		return processed.length;
+	}
+
+	/**
+	 * @return the datagrams received but not sent or dropped yet
+	 */
+	public long getDepth() {
+		return published.get() - sent.get();
+	}
+
+	/**
+	 * @return how many times the receiver found the ring full and waited
+	 */
+	public long getFullStalls() {
+		return fullStalls;
+	}
+
+	public BatchStats getProcessorStats(int processor) {
+		return processorStats[processor];
+	}
+
+	public BatchStats getSenderStats() {
+		return senderStats;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed number of equally sized direct buffers, sliced from a single
+ * allocation and handed out as a stack.
+ * <p>
+ * Direct buffers let the channels read and write without the copy to a
+ * temporary native buffer done for heap ones, but are expensive to
+ * allocate, so they are all created upfront. The pool is not thread safe:
+ * it belongs to one event loop.
+ */
+public final class DirectBufferPool {
+
+	private final ByteBuffer[] free;
+	private int available;
+	private final int bufferSize;
+
+	/**
+	 * @param count			the number of buffers
+	 * @param bufferSize	the capacity of each buffer
+	 */
+	public DirectBufferPool(int count, int bufferSize) {
+		if ((count <= 0) || (bufferSize <= 0))
+			throw new IllegalArgumentException("Invalid pool size " + count + " x " + bufferSize);
+
+		this.bufferSize = bufferSize;
+		free = new ByteBuffer[count];
+		ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+		for (int i = 0; i < count; i++) {
+			slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+			free[i] = slab.slice();
+		}
+		available = count;
+	}
+
+	/**
+	 * @return a cleared buffer, or null if the pool is exhausted
+	 */
+	public ByteBuffer acquire() {
+		if (available == 0)
+			return null;
+		ByteBuffer buffer = free[--available];
+		free[available] = null;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives back a buffer obtained from {@link #acquire()}.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (available == free.length)
+			throw new IllegalStateException("Buffer released twice");
+		free[available++] = buffer;
+	}
+
+	public int getAvailable() {
+		return available;
+	}
+
+	public int getCapacity() {
+		return free.length;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The <b>k</b> keys with the most events in the window of a
+ * {@link CountMinSketch}.
+ * <p>
+ * The sketch is updated for every event and stays the only source of the
+ * counts. The keys of the top are spread over stripes by hash, each keeping
+ * its own <b>k</b> candidates, so that the stripes together hold the
+ * global top; {@link #getTop()} merges them. A key already among the
+ * candidates of its stripe, like any key below their smallest count, is
+ * told apart without a lock, by reading the copy-on-write array of their
+ * keys. Only a new key whose estimate beats that smallest count takes the
+ * lock of its stripe, which few keys do once the stripe is full; the counts
+ * of its candidates are refreshed from the sketch then, and whenever the
+ * window slides, so that keys that went quiet make room for new ones.
+ */
+public final class HeavyHitters {
+
+	/**
+	 * A key, a readable label for it, and its estimated count.
+	 */
+	public static final class Entry implements Comparable<Entry> {
+		private final long key;
+		private final Object label;
+		private final long count;
+
+		Entry(long key, Object label, long count) {
+			this.key = key;
+			this.label = label;
+			this.count = count;
+		}
+
+		public long getKey() {
+			return key;
+		}
+
+		public Object getLabel() {
+			return label;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public int compareTo(Entry other) {
+			return Long.compare(other.count, count);
+		}
+
+		public String toString() {
+			return label + "=" + count;
+		}
+	}
+
+	private final static int STRIPES = 8;
+
+	/**
+	 * The candidates of the keys hashed to one stripe.
+	 */
+	private static final class Stripe {
+		// replaced, never written, once published
+		volatile long[] members = new long[0];
+		// guarded by the stripe
+		final Object[] labels;
+		final long[] counts;
+
+		// below it new keys are ignored, as long as the window has not slid
+		volatile long threshold;
+		volatile long epoch = -1;
+
+		Stripe(int k) {
+			labels = new Object[k];
+			counts = new long[k];
+		}
+	}
+
+	private final CountMinSketch sketch;
+	private final int k;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public HeavyHitters(CountMinSketch sketch, int k) {
+		if (k <= 0)
+			throw new IllegalArgumentException("Invalid number of heavy hitters " + k);
+		this.sketch = sketch;
+		this.k = k;
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(k);
+	}
+
+	private Stripe stripe(long key) {
+		int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return stripes[hash >>> (32 - Integer.numberOfTrailingZeros(STRIPES))];
+	}
+
+	/**
+	 * Counts an event for <b>key</b>, and returns its estimate to be given
+	 * to {@link #offer(long, long, Object)} if {@link #isCandidate(long, long)}.
+	 */
+	public long add(long key) {
+		return sketch.add(key);
+	}
+
+	/**
+	 * Tells, without a lock, whether <b>key</b> with <b>count</b> events
+	 * may enter the top.
+	 *
+	 * @return false if it is already in, or its count is too low
+	 */
+	public boolean isCandidate(long key, long count) {
+		Stripe stripe = stripe(key);
+		if ((count <= stripe.threshold) && (stripe.epoch == sketch.getEpoch()))
+			return false;
+		for (long member : stripe.members)
+			if (member == key)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Puts <b>key</b> in the top if <b>count</b> is high enough.
+	 *
+	 * @param label	an object naming the key in reports
+	 */
+	public void offer(long key, long count, Object label) {
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.epoch = sketch.getEpoch();
+			long[] members = stripe.members;
+			long[] counts = stripe.counts;
+			int min = -1;
+			for (int i = 0; i < members.length; i++) {
+				// another thread put it in first
+				if (members[i] == key)
+					return;
+				counts[i] = sketch.estimate(members[i]);
+				if ((min < 0) || (counts[i] < counts[min]))
+					min = i;
+			}
+
+			int slot;
+			if (members.length < k) {
+				slot = members.length;
+				members = Arrays.copyOf(members, slot + 1);
+			} else if (count > counts[min]) {
+				slot = min;
+				members = members.clone();
+			} else {
+				stripe.threshold = counts[min];
+				return;
+			}
+			members[slot] = key;
+			stripe.labels[slot] = label;
+			counts[slot] = count;
+
+			long threshold = Long.MAX_VALUE;
+			if (members.length < k) {
+				threshold = 0;
+			} else {
+				for (int i = 0; i < members.length; i++)
+					threshold = Math.min(threshold, counts[i]);
+			}
+			stripe.threshold = threshold;
+			stripe.members = members;
+		}
+	}
+
+	/**
+	 * @return the top keys, with their current estimates, the heaviest first
+	 */
+	public List<Entry> getTop() {
+		List<Entry> top = new ArrayList<Entry>(STRIPES * k);
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				long[] members = stripe.members;
+				for (int i = 0; i < members.length; i++) {
+					long count = sketch.estimate(members[i]);
+					if (count > 0)
+						top.add(new Entry(members[i], stripe.labels[i], count));
+				}
+			}
+		}
+		Collections.sort(top);
+		return (top.size() > k) ? new ArrayList<Entry>(top.subList(0, k)) : top;
+	}
+
+	public CountMinSketch getSketch() {
+		return sketch;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, e.g. latencies in nanoseconds, with a
+ * relative error bounded whatever their magnitude.
+ * <p>
+ * The buckets are log-linear: every power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so a value is known to within
+ * 1/{@link #SUB_BUCKETS} of itself, and a bucket is found with a couple of
+ * shifts. Recording is one atomic increment into a stripe picked by the
+ * thread, so that threads recording at once rarely touch the same counter.
+ */
+public final class Histogram {
+	final static int SUB_BITS = 4;
+	final static int SUB_BUCKETS = 1 << SUB_BITS;
+	// values up to Long.MAX_VALUE
+	final static int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray[] stripes;
+	private final int mask;
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram() {
+		int count = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+		stripes = new AtomicLongArray[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new AtomicLongArray(BUCKETS);
+		mask = count - 1;
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		stripes[System.identityHashCode(Thread.currentThread()) & mask].incrementAndGet(bucket(value));
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()))
+			if (max.compareAndSet(m, value))
+				break;
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the smallest value falling into <b>bucket</b>
+	 */
+	static long lowestValue(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * @return the largest value falling into <b>bucket</b>
+	 */
+	static long highestValue(int bucket) {
+		return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+	}
+
+	private long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (AtomicLongArray stripe : stripes)
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] += stripe.get(i);
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (long c : snapshot())
+			count += c;
+		return count;
+	}
+
+	/**
+	 * @param percentile	between 0 and 100
+	 * @return the value that <b>percentile</b> percent of the recorded values
+	 *         do not exceed, rounded up to the end of its bucket, or 0 if
+	 *         nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = snapshot();
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the sum of the recorded values
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return (count == 0) ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Forgets the recorded values. Values recorded meanwhile may be lost.
+	 */
+	public void reset() {
+		for (AtomicLongArray stripe : stripes)
+			for (int i = 0; i < BUCKETS; i++)
+				stripe.set(i, 0);
+		sum.reset();
+		max.set(0);
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The traffic of one listening socket: datagrams received and sent, and
+ * the time from the receipt of a request to the send of its response.
+ */
+public final class ListenerMetrics implements ListenerMetricsMXBean {
+	private final static long RATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final InetSocketAddress address;
+	private final LongAdder received = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final Histogram latency = new Histogram();
+
+	// the rates over the last interval, refreshed when read
+	private long lastTime = System.nanoTime();
+	private long lastReceived;
+	private long lastSent;
+	private double receivedRate;
+	private double sentRate;
+
+	ListenerMetrics(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	public void countReceived() {
+		received.increment();
+	}
+
+	/**
+	 * Counts a response sent for a request received at <b>receivedNanos</b>,
+	 * as given by {@link System#nanoTime()}.
+	 */
+	public void countSent(long receivedNanos) {
+		sent.increment();
+		latency.record(System.nanoTime() - receivedNanos);
+	}
+
+	public InetSocketAddress getSocketAddress() {
+		return address;
+	}
+
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	public String getAddress() {
+		return address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+
+	public long getReceived() {
+		return received.sum();
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	private synchronized void updateRates() {
+		long now = System.nanoTime();
+		long elapsed = now - lastTime;
+		if (elapsed < RATE_INTERVAL)
+			return;
+		long r = received.sum();
+		long s = sent.sum();
+		receivedRate = (r - lastReceived) * 1e9 / elapsed;
+		sentRate = (s - lastSent) * 1e9 / elapsed;
+		lastTime = now;
+		lastReceived = r;
+		lastSent = s;
+	}
+
+	/**
+	 * @return the datagrams received per second, over at least the last second
+	 */
+	public synchronized double getReceivedPerSecond() {
+		updateRates();
+		return receivedRate;
+	}
+
+	/**
+	 * @return the responses sent per second, over at least the last second
+	 */
+	public synchronized double getSentPerSecond() {
+		updateRates();
+		return sentRate;
+	}
+
+	public long getLatencyCount() {
+		return latency.getCount();
+	}
+
+	public double getLatencyMean() {
+		return latency.getMean() / 1000;
+	}
+
+	public long getLatencyP50() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50));
+	}
+
+	public long getLatencyP99() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99));
+	}
+
+	public long getLatencyP999() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.9));
+	}
+
+	public long getLatencyMax() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.getMax());
+	}
+
+	public void resetLatency() {
+		latency.reset();
+	}
+}
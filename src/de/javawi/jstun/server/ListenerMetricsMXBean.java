@@ -0,0 +1,41 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+/**
+ * The JMX view of a {@link ListenerMetrics}. Latencies are in microseconds.
+ */
+public interface ListenerMetricsMXBean {
+	String getAddress();
+
+	long getReceived();
+
+	long getSent();
+
+	double getReceivedPerSecond();
+
+	double getSentPerSecond();
+
+	long getLatencyCount();
+
+	double getLatencyMean();
+
+	long getLatencyP50();
+
+	long getLatencyP99();
+
+	long getLatencyP999();
+
+	long getLatencyMax();
+
+	void resetLatency();
+}
@@ -0,0 +1,429 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A STUN server serving any number of endpoints from a single event loop.
+ * <p>
+ * Each endpoint is a non-blocking {@link DatagramChannel} registered with one
+ * {@link Selector}. On every wakeup a readable channel is drained until it
+ * is empty or {@link #setMaxDatagramsPerWakeup(int) a cap} is reached, so
+ * that a flooded endpoint cannot starve the others, and each request is
+ * answered by a {@link StunRequestHandler}
+ * straight from a direct receive buffer into a direct send buffer. When the
+ * kernel send buffer is full, responses are queued in buffers taken from a
+ * {@link DirectBufferPool} and flushed once the channel is writable again;
+ * if the pool is exhausted the response is dropped, and the client will
+ * retransmit.
+ * <p>
+ * The kernel socket buffers default to {@link #DEFAULT_SOCKET_BUFFER_SIZE},
+ * which absorbs bursts far better than the system default.
+ * <p>
+ * A runtime exception thrown while handling a datagram is logged and the
+ * datagram dropped; the event loop goes on with the next one.
+ */
+public class NioStunServer implements Runnable {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.server.NioStunServer");
+
+	public final static int DEFAULT_SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+	public final static int DEFAULT_PENDING_SENDS = 256;
+	public final static int DEFAULT_MAX_DATAGRAMS_PER_WAKEUP = 64;
+
+	// a request larger than the path MTU would have been fragmented
+	final static int DATAGRAM_BUFFER_SIZE = 2048;
+
+	private final List<InetSocketAddress> endpoints;
+	private final StunRequestHandler handler;
+	private int receiveBufferSize = DEFAULT_SOCKET_BUFFER_SIZE;
+	private int sendBufferSize = DEFAULT_SOCKET_BUFFER_SIZE;
+	private int pendingSends = DEFAULT_PENDING_SENDS;
+	private int maxDatagramsPerWakeup = DEFAULT_MAX_DATAGRAMS_PER_WAKEUP;
+	private boolean reusePort;
+	private String name = "stun-nio";
+	private ServerMetrics metrics;
+
+	private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running;
+	private volatile long droppedResponses;
+
+	// owned by the event loop
+	private DirectBufferPool pool;
+	private ByteBuffer receiveBuffer;
+	private ByteBuffer sendBuffer;
+	private final Consumer<SelectionKey> process = this::process;
+
+	/**
+	 * Queue of the responses not sent yet on one channel.
+	 */
+	private static class Endpoint {
+		final DatagramChannel channel;
+		final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+		final ArrayDeque<SocketAddress> targets = new ArrayDeque<SocketAddress>();
+		// when the pending requests were received, in a circular array
+		final long[] received;
+		int firstReceived;
+		final ListenerMetrics listener;
+
+		Endpoint(DatagramChannel channel, int pendingSends, ListenerMetrics listener) {
+			this.channel = channel;
+			this.received = new long[pendingSends];
+			this.listener = listener;
+		}
+	}
+
+	public NioStunServer(List<InetSocketAddress> endpoints, BindingResponseTemplates templates) {
+		this.endpoints = new ArrayList<InetSocketAddress>(endpoints);
+		this.handler = new StunRequestHandler(templates);
+	}
+
+	/**
+	 * Sets the SO_RCVBUF of every channel. Must be called before {@link #start()}.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets the SO_SNDBUF of every channel. Must be called before {@link #start()}.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Sets how many responses can wait for a full send buffer to drain.
+	 * Must be called before {@link #start()}.
+	 */
+	public void setPendingSends(int pendingSends) {
+		this.pendingSends = pendingSends;
+	}
+
+	/**
+	 * Sets how many datagrams are read from a channel on each wakeup at
+	 * most; the rest are read on the next one, after the other channels
+	 * had their turn. Must be called before {@link #start()}.
+	 */
+	public void setMaxDatagramsPerWakeup(int maxDatagramsPerWakeup) {
+		if (maxDatagramsPerWakeup < 1)
+			throw new IllegalArgumentException("At least one datagram per wakeup: " + maxDatagramsPerWakeup);
+		this.maxDatagramsPerWakeup = maxDatagramsPerWakeup;
+	}
+
+	/**
+	 * Sets SO_REUSEPORT on every channel, so that several servers can bind
+	 * the same endpoints and share their traffic. Must be called before
+	 * {@link #start()}.
+	 *
+	 * @see #isReusePortSupported()
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * Sets the limiter shared by every endpoint, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		handler.setRateLimiter(rateLimiter);
+	}
+
+	/**
+	 * Sets the monitor shared by every endpoint, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setTrafficMonitor(TrafficMonitor trafficMonitor) {
+		handler.setTrafficMonitor(trafficMonitor);
+	}
+
+	/**
+	 * Sets the metrics updated by every endpoint, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+		handler.setMetrics(metrics);
+	}
+
+	/**
+	 * Sets the cache answering retransmissions on every endpoint, or null
+	 * for none. Must be called before {@link #start()}.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		handler.setResponseCache(responseCache);
+	}
+
+	/**
+	 * Sets the keys requests must be signed with on every endpoint, or null
+	 * for none. Must be called before {@link #start()}.
+	 */
+	public void setCredentials(CredentialStore credentials) {
+		handler.setCredentials(credentials);
+	}
+
+	/**
+	 * Makes the credentials long-term ones, of the realm and nonces of
+	 * <b>nonceManager</b>, on every endpoint. Must be called before
+	 * {@link #start()}.
+	 */
+	public void setNonceManager(NonceManager nonceManager) {
+		handler.setNonceManager(nonceManager);
+	}
+
+	/**
+	 * Drops the datagrams without a valid FINGERPRINT on every endpoint, e.g.
+	 * when media shares them. Must be called before {@link #start()}.
+	 */
+	public void setFingerprintRequired(boolean fingerprintRequired) {
+		handler.setFingerprintRequired(fingerprintRequired);
+	}
+
+	/**
+	 * Sets the name of the event loop thread. Must be called before {@link #start()}.
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return whether the platform supports SO_REUSEPORT on datagram channels
+	 */
+	public static boolean isReusePortSupported() {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Binds every endpoint and starts the event loop thread.
+	 *
+	 * @throws IOException if an endpoint cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (running)
+			throw new IllegalStateException("Already started");
+
+		// the receive and send buffers, plus the queued responses
+		pool = new DirectBufferPool(pendingSends + 2, DATAGRAM_BUFFER_SIZE);
+		receiveBuffer = pool.acquire();
+		sendBuffer = pool.acquire();
+
+		selector = Selector.open();
+		try {
+			for (InetSocketAddress endpoint : endpoints) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels.add(channel);
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+				if (reusePort)
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channel.bind(endpoint);
+				ListenerMetrics listener = (metrics == null) ? null : metrics
+						.getListener((InetSocketAddress) channel.getLocalAddress());
+				channel.register(selector, SelectionKey.OP_READ,
+						new Endpoint(channel, pendingSends, listener));
+				logger.config("Listening on " + channel.getLocalAddress());
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+
+		running = true;
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				selector.select(process);
+			}
+		} catch (ClosedSelectorException cse) {
+			// closed
+		} catch (IOException ioe) {
+			logger.severe("Selector failed: " + ioe);
+		}
+	}
+
+	private void process(SelectionKey key) {
+		Endpoint endpoint = (Endpoint) key.attachment();
+		try {
+			if (key.isWritable())
+				flush(endpoint, key);
+			if (key.isReadable())
+				drain(endpoint, key);
+		} catch (IOException ioe) {
+			logger.warning("I/O error on " + endpoint.channel + ": " + ioe);
+		} catch (RuntimeException re) {
+			// a bug handling one datagram must not stop the event loop
+			logger.log(Level.WARNING, "Error handling a datagram on " + endpoint.channel, re);
+			if (metrics != null)
+				metrics.countDrop(ServerMetrics.DropReason.INTERNAL_ERROR);
+			receiveBuffer.clear();
+			sendBuffer.clear();
+		}
+	}
+
+	private void drain(Endpoint endpoint, SelectionKey key) throws IOException {
+		DatagramChannel channel = endpoint.channel;
+		InetSocketAddress source;
+		// the selector reports the channel readable again if datagrams are left
+		for (int i = 0; (i < maxDatagramsPerWakeup)
+				&& ((source = (InetSocketAddress) channel.receive(receiveBuffer)) != null); i++) {
+			long received = 0;
+			if (endpoint.listener != null) {
+				received = System.nanoTime();
+				endpoint.listener.countReceived();
+			}
+			int length = handler.handle(receiveBuffer, 0, receiveBuffer.position(), source.getAddress(),
+					source.getPort(), sendBuffer, 0);
+			receiveBuffer.clear();
+			if (length > 0)
+				send(endpoint, key, source, length, received);
+		}
+	}
+
+	private void send(Endpoint endpoint, SelectionKey key, SocketAddress target, int length,
+			long received) throws IOException {
+		sendBuffer.limit(length);
+		try {
+			if (endpoint.pending.isEmpty()) {
+				try {
+					if (endpoint.channel.send(sendBuffer, target) > 0) {
+						if (endpoint.listener != null)
+							endpoint.listener.countSent(received);
+						return;
+					}
+				} catch (IOException ioe) {
+					sendFailed(endpoint, target, ioe);
+					return;
+				}
+			}
+
+			// the kernel buffer is full, keep the order of the responses
+			ByteBuffer copy = (endpoint.pending.size() < endpoint.received.length) ? pool.acquire() : null;
+			if (copy == null) {
+				droppedResponses++;
+				if (metrics != null)
+					metrics.countDrop(ServerMetrics.DropReason.SEND_FAILED);
+				return;
+			}
+			sendBuffer.position(0);
+			copy.put(sendBuffer).flip();
+			int last = (endpoint.firstReceived + endpoint.pending.size()) % endpoint.received.length;
+			endpoint.received[last] = received;
+			endpoint.pending.add(copy);
+			endpoint.targets.add(target);
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} finally {
+			sendBuffer.clear();
+		}
+	}
+
+	private void flush(Endpoint endpoint, SelectionKey key) {
+		while (!endpoint.pending.isEmpty()) {
+			ByteBuffer buffer = endpoint.pending.peek();
+			SocketAddress target = endpoint.targets.peek();
+			boolean sent;
+			try {
+				if (endpoint.channel.send(buffer, target) == 0)
+					return;
+				sent = true;
+			} catch (IOException ioe) {
+				// dequeued all the same, or it would fail again on every wakeup
+				sendFailed(endpoint, target, ioe);
+				sent = false;
+			}
+			endpoint.pending.poll();
+			endpoint.targets.poll();
+			pool.release(buffer);
+			if (sent && (endpoint.listener != null))
+				endpoint.listener.countSent(endpoint.received[endpoint.firstReceived]);
+			endpoint.firstReceived = (endpoint.firstReceived + 1) % endpoint.received.length;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Drops a response the channel failed to send, e.g. to an unreachable
+	 * network; the client will retransmit.
+	 */
+	private void sendFailed(Endpoint endpoint, SocketAddress target, IOException ioe) {
+		if (metrics != null)
+			metrics.countDrop(ServerMetrics.DropReason.SEND_FAILED);
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Cannot send to " + target + " on " + endpoint.channel + ": " + ioe);
+	}
+
+	/**
+	 * @return the local address of the <b>index</b>-th endpoint, e.g. to
+	 *         find the port picked for an ephemeral one
+	 */
+	public InetSocketAddress getLocalAddress(int index) throws IOException {
+		return (InetSocketAddress) channels.get(index).getLocalAddress();
+	}
+
+	/**
+	 * @return whether the event loop thread is running
+	 */
+	public boolean isAlive() {
+		return (thread != null) && thread.isAlive();
+	}
+
+	/**
+	 * @return the number of responses dropped because the pending send queue was full
+	 */
+	public long getDroppedResponses() {
+		return droppedResponses;
+	}
+
+	/**
+	 * Stops the event loop and closes every channel.
+	 */
+	public synchronized void close() {
+		running = false;
+		try {
+			if (selector != null)
+				selector.close();
+			for (DatagramChannel channel : channels)
+				channel.close();
+			if (thread != null)
+				thread.join();
+		} catch (IOException ioe) {
+			logger.warning("Error while closing: " + ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.StripedPool;
+
+/**
+ * The realm of long-term credentials (RFC 5389 section 10.2) and the
+ * nonces issued for it, kept without any state per client.
+ * <p>
+ * A nonce is the base64url encoding of a key id, the time it was issued
+ * and an HMAC-SHA256, truncated to 18 bytes, of both and of the client
+ * address under a random server key. Validating one recomputes the HMAC
+ * and compares it in constant time, so there is no table to look up and
+ * every handler and every shard can validate the nonces any of them
+ * issued. The key is replaced once per nonce lifetime by the first thread
+ * issuing a nonce after it is due, with a compare-and-set; nonces issued
+ * under the previous key stay valid until they expire.
+ * <p>
+ * The Mac of each key is borrowed from a {@link StripedPool} for each
+ * nonce issued or validated, rather than kept per thread, so it is reused
+ * by every server mode, including the virtual threads of
+ * {@link VirtualThreadStunServer}, each living for a single request.
+ */
+public final class NonceManager {
+	public final static long DEFAULT_LIFETIME_SECONDS = 600;
+	private final static int KEY_LENGTH = 32;
+	// a key id, the issue time in seconds, then the truncated HMAC
+	private final static int TIME_LENGTH = 5;
+	private final static int MAC_OFFSET = 1 + TIME_LENGTH;
+	private final static int MAC_LENGTH = 18;
+	private final static int RAW_LENGTH = MAC_OFFSET + MAC_LENGTH;
+	/** the length of a nonce, in characters */
+	public final static int LENGTH = RAW_LENGTH / 3 * 4;
+
+	private final static String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+	private final static byte[] DECODE = new byte[128];
+	private final static SecureRandom random = new SecureRandom();
+
+	static {
+		Arrays.fill(DECODE, (byte) -1);
+		for (int i = 0; i < ALPHABET.length(); i++)
+			DECODE[ALPHABET.charAt(i)] = (byte) i;
+	}
+
+	public enum Status {
+		VALID,
+		/** issued too long ago, or under a key since replaced */
+		STALE,
+		/** not a nonce of this manager, or not for this client */
+		INVALID
+	}
+
+	private final String realm;
+	private final long lifetimeMillis;
+	private final AtomicReference<Keys> keys;
+
+	/**
+	 * The state computing the HMAC of a nonce, borrowed for one call.
+	 */
+	private static final class Signer {
+		final Mac mac;
+		final byte[] raw = new byte[RAW_LENGTH];
+		final byte[] result;
+
+		Signer(Mac mac) {
+			this.mac = mac;
+			this.result = new byte[mac.getMacLength()];
+		}
+	}
+
+	private static final class Key {
+		final int id;
+		final long created;
+		final StripedPool<Signer> signers;
+
+		Key(int id, long created) {
+			this.id = id;
+			this.created = created;
+			byte[] secret = new byte[KEY_LENGTH];
+			random.nextBytes(secret);
+			SecretKeySpec spec = new SecretKeySpec(secret, "HmacSHA256");
+			this.signers = new StripedPool<Signer>(() -> {
+				try {
+					Mac mac = Mac.getInstance("HmacSHA256");
+					mac.init(spec);
+					return new Signer(mac);
+				} catch (GeneralSecurityException gse) {
+					// every Java platform supports HmacSHA256
+					throw new IllegalStateException(gse);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The current key, and the previous one if any.
+	 */
+	private static final class Keys {
+		final Key current;
+		final Key previous;
+
+		Keys(Key current, Key previous) {
+			this.current = current;
+			this.previous = previous;
+		}
+
+		Key find(int id) {
+			if (current.id == id)
+				return current;
+			return ((previous != null) && (previous.id == id)) ? previous : null;
+		}
+	}
+
+	public NonceManager(String realm) {
+		this(realm, DEFAULT_LIFETIME_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param realm		the realm of the credentials
+	 * @param lifetime	how long a nonce is valid, and a key in use
+	 * @param unit		the unit of <b>lifetime</b>
+	 */
+	public NonceManager(String realm, long lifetime, TimeUnit unit) {
+		if (unit.toSeconds(lifetime) < 1)
+			throw new IllegalArgumentException("Lifetime must be at least a second: " + lifetime);
+		this.realm = realm;
+		this.lifetimeMillis = unit.toMillis(lifetime);
+		this.keys = new AtomicReference<Keys>(new Keys(new Key(0, System.currentTimeMillis()), null));
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	/**
+	 * @return a fresh nonce for the client at <b>address</b>
+	 */
+	public String issue(InetAddress address) {
+		return issue(address, System.currentTimeMillis());
+	}
+
+	String issue(InetAddress address, long now) {
+		Keys k = keys.get();
+		if (now - k.current.created >= lifetimeMillis)
+			k = rotate(k, now);
+		Signer signer = k.current.signers.borrow();
+		byte[] raw = signer.raw;
+		raw[0] = (byte) k.current.id;
+		long seconds = now / 1000;
+		for (int i = 0; i < TIME_LENGTH; i++)
+			raw[TIME_LENGTH - i] = (byte) (seconds >>> (8 * i));
+		sign(signer, address);
+		System.arraycopy(signer.result, 0, raw, MAC_OFFSET, MAC_LENGTH);
+		String nonce = Base64.getUrlEncoder().encodeToString(raw);
+		k.current.signers.release(signer);
+		return nonce;
+	}
+
+	/**
+	 * Replaces the current key, e.g. when it may have leaked. Nonces issued
+	 * under the key replaced stay valid, the ones issued before it no
+	 * longer are.
+	 */
+	public void rotate() {
+		rotate(keys.get(), System.currentTimeMillis());
+	}
+
+	/**
+	 * Replaces the key of <b>expected</b> unless another thread did first.
+	 *
+	 * @return the keys now in use
+	 */
+	private Keys rotate(Keys expected, long now) {
+		Keys next = new Keys(new Key((expected.current.id + 1) & 0xFF, now), expected.current);
+		return keys.compareAndSet(expected, next) ? next : keys.get();
+	}
+
+	/**
+	 * Checks the nonce of <b>length</b> bytes at <b>offset</b> in place, in
+	 * constant time once it is found to be well-formed.
+	 *
+	 * @param data		the buffer containing the nonce
+	 * @param offset	the absolute index of its first byte
+	 * @param length	its length
+	 * @param address	the client address
+	 */
+	public Status validate(ByteBuffer data, int offset, int length, InetAddress address) {
+		return validate(data, offset, length, address, System.currentTimeMillis());
+	}
+
+	Status validate(ByteBuffer data, int offset, int length, InetAddress address, long now) {
+		if ((length != LENGTH) || (offset + length > data.limit()))
+			return Status.INVALID;
+		// the key id, decoded first to find the signer to decode into
+		int id = decode(data.get(offset));
+		int second = decode(data.get(offset + 1));
+		if ((id < 0) || (second < 0))
+			return Status.INVALID;
+		Key key = keys.get().find(((id << 2) | (second >>> 4)) & 0xFF);
+		if (key == null)
+			return Status.STALE;
+
+		Signer signer = key.signers.borrow();
+		try {
+			return validate(signer, data, offset, address, now);
+		} finally {
+			key.signers.release(signer);
+		}
+	}
+
+	private Status validate(Signer signer, ByteBuffer data, int offset, InetAddress address, long now) {
+		byte[] raw = signer.raw;
+		for (int i = 0; i < LENGTH; i += 4) {
+			int bits = 0;
+			for (int j = 0; j < 4; j++) {
+				int value = decode(data.get(offset + i + j));
+				if (value < 0)
+					return Status.INVALID;
+				bits = (bits << 6) | value;
+			}
+			int r = i / 4 * 3;
+			raw[r] = (byte) (bits >>> 16);
+			raw[r + 1] = (byte) (bits >>> 8);
+			raw[r + 2] = (byte) bits;
+		}
+		sign(signer, address);
+		int difference = 0;
+		for (int i = 0; i < MAC_LENGTH; i++)
+			difference |= signer.result[i] ^ raw[MAC_OFFSET + i];
+		if (difference != 0)
+			return Status.INVALID;
+
+		long seconds = 0;
+		for (int i = 1; i <= TIME_LENGTH; i++)
+			seconds = (seconds << 8) | (raw[i] & 0xFF);
+		long age = now - seconds * 1000;
+		return ((age < 0) || (age >= lifetimeMillis)) ? Status.STALE : Status.VALID;
+	}
+
+	private static int decode(byte c) {
+		return (c < 0) ? -1 : DECODE[c];
+	}
+
+	/**
+	 * Computes the HMAC of the key id and time in the raw nonce of
+	 * <b>signer</b> and of <b>address</b> into its result.
+	 */
+	private static void sign(Signer signer, InetAddress address) {
+		Mac mac = signer.mac;
+		mac.update(signer.raw, 0, MAC_OFFSET);
+		if (address instanceof Inet4Address) {
+			int a = IPv4Address.toInt((Inet4Address) address);
+			mac.update((byte) (a >>> 24));
+			mac.update((byte) (a >>> 16));
+			mac.update((byte) (a >>> 8));
+			mac.update((byte) a);
+		} else {
+			mac.update(address.getAddress());
+		}
+		try {
+			mac.doFinal(signer.result, 0);
+		} catch (ShortBufferException sbe) {
+			// the result is as long as the Mac
+			throw new IllegalStateException(sbe);
+		}
+	}
+}
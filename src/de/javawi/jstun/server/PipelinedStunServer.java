@@ -0,0 +1,344 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.javawi.jstun.server.DatagramRing.Slot;
+
+/**
+ * A STUN server splitting the work on each endpoint into receive, process
+ * and send stages, connected by a {@link DatagramRing}.
+ * <p>
+ * The receiver only reads datagrams into free slots, so a slow send or a
+ * pause of a processor no longer stops the socket from being read until the
+ * ring is full. Each stage runs on its own thread; the number of
+ * processors and the ring size can be tuned from the depth and batch sizes
+ * reported by {@link #getRing(int)}.
+ * <p>
+ * A runtime exception thrown while handling or sending a datagram is
+ * logged and the datagram dropped; its slot is passed on all the same, so
+ * the stages keep going.
+ */
+public class PipelinedStunServer {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.server.PipelinedStunServer");
+
+	private final List<InetSocketAddress> endpoints;
+	private final BindingResponseTemplates templates;
+	private int receiveBufferSize = NioStunServer.DEFAULT_SOCKET_BUFFER_SIZE;
+	private int sendBufferSize = NioStunServer.DEFAULT_SOCKET_BUFFER_SIZE;
+	private int ringSize = DatagramRing.DEFAULT_SIZE;
+	private int processors = 1;
+	private RateLimiter rateLimiter;
+	private TrafficMonitor trafficMonitor;
+	private ServerMetrics metrics;
+	private ResponseCache responseCache;
+	private CredentialStore credentials;
+	private NonceManager nonceManager;
+	private boolean fingerprintRequired;
+
+	private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+	private final List<DatagramRing> rings = new ArrayList<DatagramRing>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean running;
+
+	public PipelinedStunServer(List<InetSocketAddress> endpoints, BindingResponseTemplates templates) {
+		this.endpoints = new ArrayList<InetSocketAddress>(endpoints);
+		this.templates = templates;
+	}
+
+	/**
+	 * Sets the SO_RCVBUF of every channel. Must be called before {@link #start()}.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets the SO_SNDBUF of every channel. Must be called before {@link #start()}.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Sets the number of slots of each ring, a power of two. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setRingSize(int ringSize) {
+		this.ringSize = ringSize;
+	}
+
+	/**
+	 * Sets the number of processing threads of each endpoint. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setProcessors(int processors) {
+		this.processors = processors;
+	}
+
+	/**
+	 * Sets the limiter shared by every processor, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the monitor shared by every processor, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setTrafficMonitor(TrafficMonitor trafficMonitor) {
+		this.trafficMonitor = trafficMonitor;
+	}
+
+	/**
+	 * Sets the metrics updated by every stage, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the cache shared by every processor, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * Sets the keys requests must be signed with, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setCredentials(CredentialStore credentials) {
+		this.credentials = credentials;
+	}
+
+	/**
+	 * Makes the credentials long-term ones, of the realm and nonces of
+	 * <b>nonceManager</b>. Must be called before {@link #start()}.
+	 */
+	public void setNonceManager(NonceManager nonceManager) {
+		this.nonceManager = nonceManager;
+	}
+
+	/**
+	 * Drops the datagrams without a valid FINGERPRINT, e.g. when media
+	 * shares the ports. Must be called before {@link #start()}.
+	 */
+	public void setFingerprintRequired(boolean fingerprintRequired) {
+		this.fingerprintRequired = fingerprintRequired;
+	}
+
+	public synchronized void start() throws IOException {
+		if (running)
+			throw new IllegalStateException("Already started");
+
+		try {
+			for (InetSocketAddress endpoint : endpoints) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels.add(channel);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+				channel.bind(endpoint);
+				rings.add(new DatagramRing(ringSize, processors, NioStunServer.DATAGRAM_BUFFER_SIZE));
+				logger.config("Listening on " + channel.getLocalAddress());
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+
+		running = true;
+		for (int i = 0; i < channels.size(); i++) {
+			DatagramChannel channel = channels.get(i);
+			DatagramRing ring = rings.get(i);
+			ListenerMetrics listener = (metrics == null) ? null : metrics
+					.getListener((InetSocketAddress) channel.getLocalAddress());
+			threads.add(new Thread(() -> receive(channel, ring, listener), "stun-receiver-" + i));
+			for (int j = 0; j < processors; j++) {
+				int processor = j;
+				threads.add(new Thread(() -> process(ring, processor), "stun-processor-" + i + "-" + j));
+			}
+			threads.add(new Thread(() -> send(channel, ring, listener), "stun-sender-" + i));
+		}
+		for (Thread thread : threads)
+			thread.start();
+	}
+
+	private boolean isRunning() {
+		return running;
+	}
+
+	private void receive(DatagramChannel channel, DatagramRing ring, ListenerMetrics listener) {
+		while (running) {
+			Slot slot = ring.claim(this::isRunning);
+			if (slot == null)
+				return;
+			try {
+				slot.source = (InetSocketAddress) channel.receive(slot.request);
+				if (listener != null) {
+					slot.received = System.nanoTime();
+					listener.countReceived();
+				}
+				ring.publish();
+			} catch (ClosedChannelException cce) {
+				return;
+			} catch (IOException ioe) {
+				logger.warning("I/O error on " + channel + ": " + ioe);
+			}
+		}
+	}
+
+	private void process(DatagramRing ring, int processor) {
+		StunRequestHandler handler = new StunRequestHandler(templates);
+		handler.setRateLimiter(rateLimiter);
+		handler.setTrafficMonitor(trafficMonitor);
+		handler.setMetrics(metrics);
+		handler.setResponseCache(responseCache);
+		handler.setCredentials(credentials);
+		handler.setNonceManager(nonceManager);
+		handler.setFingerprintRequired(fingerprintRequired);
+		int stripes = ring.getProcessors();
+		Sequence processed = ring.processed[processor];
+		DatagramRing.BatchStats stats = ring.processorStats[processor];
+		long next = 0;
+		int idle = 0;
+		while (running) {
+			long available = ring.published.get();
+			if (available < next) {
+				idle = Sequence.backOff(idle);
+				continue;
+			}
+			int batch = 0;
+			for (long sequence = next; sequence <= available; sequence++) {
+				if ((int) (sequence % stripes) != processor)
+					continue;
+				Slot slot = ring.get(sequence);
+				try {
+					slot.responseLength = handler.handle(slot.request, 0, slot.request.position(),
+							slot.source.getAddress(), slot.source.getPort(), slot.response, 0);
+				} catch (RuntimeException re) {
+					// the sequence must go on, or the sender waits for this slot forever
+					slot.responseLength = 0;
+					failed(slot, re);
+				}
+				batch++;
+			}
+			if (batch > 0)
+				stats.record(batch);
+			processed.set(available);
+			next = available + 1;
+			idle = 0;
+		}
+	}
+
+	private void send(DatagramChannel channel, DatagramRing ring, ListenerMetrics listener) {
+		DatagramRing.BatchStats stats = ring.senderStats;
+		long next = 0;
+		int idle = 0;
+		while (running) {
+			long available = ring.minimumProcessed();
+			if (available < next) {
+				idle = Sequence.backOff(idle);
+				continue;
+			}
+			for (long sequence = next; sequence <= available; sequence++) {
+				Slot slot = ring.get(sequence);
+				if (slot.responseLength <= 0)
+					continue;
+				try {
+					slot.response.limit(slot.responseLength).position(0);
+					channel.send(slot.response, slot.source);
+					if (listener != null)
+						listener.countSent(slot.received);
+				} catch (ClosedChannelException cce) {
+					return;
+				} catch (IOException ioe) {
+					if (metrics != null)
+						metrics.countDrop(ServerMetrics.DropReason.SEND_FAILED);
+					logger.warning("Cannot send to " + slot.source + ": " + ioe);
+				} catch (RuntimeException re) {
+					failed(slot, re);
+				}
+			}
+			ring.sent.set(available);
+			stats.record((int) (available - next + 1));
+			next = available + 1;
+			idle = 0;
+		}
+	}
+
+	private void failed(Slot slot, RuntimeException re) {
+		if (metrics != null)
+			metrics.countDrop(ServerMetrics.DropReason.INTERNAL_ERROR);
+		logger.log(Level.WARNING, "Error handling a request from " + slot.source, re);
+	}
+
+	public int getRingCount() {
+		return rings.size();
+	}
+
+	/**
+	 * @return the ring of the <b>index</b>-th endpoint, with its statistics
+	 */
+	public DatagramRing getRing(int index) {
+		return rings.get(index);
+	}
+
+	/**
+	 * @return whether every stage thread is running
+	 */
+	public boolean isAlive() {
+		if (threads.isEmpty())
+			return false;
+		for (Thread thread : threads)
+			if (!thread.isAlive())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the local address of the <b>index</b>-th endpoint
+	 */
+	public InetSocketAddress getLocalAddress(int index) throws IOException {
+		return (InetSocketAddress) channels.get(index).getLocalAddress();
+	}
+
+	/**
+	 * Stops every stage and closes the channels.
+	 */
+	public synchronized void close() {
+		running = false;
+		try {
+			for (DatagramChannel channel : channels)
+				channel.close();
+			for (Thread thread : threads)
+				thread.join();
+		} catch (IOException ioe) {
+			logger.warning("Error while closing: " + ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
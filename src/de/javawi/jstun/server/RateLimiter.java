@@ -0,0 +1,208 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * Limits the requests accepted from each source with a token bucket.
+ * <p>
+ * Sources are grouped by prefix, /32 and /64 by default, so that one host
+ * cannot dodge the limit by cycling through the addresses of its IPv6
+ * subnet. Every group owns an entry of a fixed-size, open-addressing table
+ * whose two words, the key and the bucket, are updated with CAS only, so
+ * the limiter can be shared by every receiving thread and checked on
+ * every datagram.
+ * <p>
+ * The bucket is stored as the time at which it will be full again (the
+ * "theoretical arrival time" of the generic cell rate algorithm), which
+ * refills it lazily from {@link System#nanoTime()} and fits in one long. An
+ * entry whose bucket is full carries no information, and is reused for
+ * another source when the probed slots are all taken. Sources that find
+ * no slot at all are let through and counted as untracked.
+ */
+public final class RateLimiter {
+
+	/**
+	 * What the server does with a request over the limit.
+	 */
+	public enum Action {
+		/** ignore it, sending nothing back to a possibly spoofed source */
+		DROP,
+		/** answer with a small 500 error response */
+		ERROR
+	}
+
+	public final static int DEFAULT_CAPACITY = 65536;
+
+	private final static int MAX_PROBES = 8;
+	private final static long EMPTY = 0;
+	// stands for the ::/64 prefix, which would read as an empty entry
+	private final static long ZERO_PREFIX = 1;
+	// sets IPv4 keys apart from IPv6 prefixes, in the reserved 0:1::/32
+	private final static long IPV4_TAG = 1L << 32;
+
+	// key and bucket of entry i at 2 * i and 2 * i + 1, on the same cache line
+	private final AtomicLongArray table;
+	private final int mask;
+	private final long interval;
+	private final long tolerance;
+	private final long origin = System.nanoTime();
+
+	private int ipv4Mask = 0xFFFFFFFF;
+	private long ipv6Mask = 0xFFFFFFFFFFFFFFFFL;
+	private Action action = Action.DROP;
+
+	private final LongAdder allowed = new LongAdder();
+	private final LongAdder limited = new LongAdder();
+	private final LongAdder untracked = new LongAdder();
+
+	/**
+	 * @param capacity	the number of sources tracked, rounded up to a power of two
+	 * @param rate		the sustained requests per second allowed to each source
+	 * @param burst		the requests a source can send at once after being idle
+	 */
+	public RateLimiter(int capacity, double rate, int burst) {
+		if ((capacity <= 0) || (rate <= 0) || (burst <= 0))
+			throw new IllegalArgumentException("Invalid rate limit " + capacity + " / " + rate + " / " + burst);
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		if (capacity == 1)
+			size = 1;
+		table = new AtomicLongArray(2 * size);
+		mask = size - 1;
+		interval = Math.max(1, (long) (1e9 / rate));
+		tolerance = (burst - 1) * interval;
+	}
+
+	/**
+	 * Groups the IPv4 sources sharing their first <b>length</b> bits, e.g.
+	 * 24 for one bucket per /24. Must be called before the limiter is used.
+	 */
+	public void setIPv4PrefixLength(int length) {
+		if ((length < 1) || (length > 32))
+			throw new IllegalArgumentException("Invalid IPv4 prefix length " + length);
+		ipv4Mask = (int) (0xFFFFFFFF00000000L >>> length);
+	}
+
+	/**
+	 * Groups the IPv6 sources sharing their first <b>length</b> bits, at
+	 * most 64. Must be called before the limiter is used.
+	 */
+	public void setIPv6PrefixLength(int length) {
+		if ((length < 1) || (length > 64))
+			throw new IllegalArgumentException("Invalid IPv6 prefix length " + length);
+		ipv6Mask = (length == 64) ? -1L : ~(-1L >>> length);
+	}
+
+	public void setAction(Action action) {
+		this.action = action;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	/**
+	 * Takes a token from the bucket of <b>address</b>.
+	 *
+	 * @return true if the request may be answered
+	 */
+	public boolean tryAcquire(InetAddress address) {
+		long key;
+		if (address instanceof Inet4Address)
+			key = IPV4_TAG | ((IPv4Address.toInt((Inet4Address) address) & ipv4Mask) & 0xFFFFFFFFL);
+		else if ((key = Utility.getLong(address.getAddress(), 0) & ipv6Mask) == EMPTY)
+			key = ZERO_PREFIX;
+		return tryAcquire(key, System.nanoTime() - origin);
+	}
+
+	boolean tryAcquire(long key, long now) {
+		int index = hash(key) & mask;
+		int reusable = -1;
+		long reusableKey = EMPTY;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int i = (index + probe) & mask;
+			long k = table.get(2 * i);
+			if (k == key)
+				return take(i, now);
+			if (k == EMPTY) {
+				if (table.compareAndSet(2 * i, EMPTY, key) || (table.get(2 * i) == key))
+					return take(i, now);
+				continue;
+			}
+			if ((reusable < 0) && (table.get(2 * i + 1) <= now)) {
+				reusable = i;
+				reusableKey = k;
+			}
+		}
+
+		// a full bucket looks the same whoever owned it
+		if ((reusable >= 0) && table.compareAndSet(2 * reusable, reusableKey, key))
+			return take(reusable, now);
+		untracked.increment();
+		allowed.increment();
+		return true;
+	}
+
+	private boolean take(int i, long now) {
+		int bucket = 2 * i + 1;
+		for (;;) {
+			long tat = table.get(bucket);
+			long start = Math.max(tat, now);
+			if (start - now > tolerance) {
+				limited.increment();
+				return false;
+			}
+			if (table.compareAndSet(bucket, tat, start + interval)) {
+				allowed.increment();
+				return true;
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the requests let through, including the untracked ones
+	 */
+	public long getAllowed() {
+		return allowed.sum();
+	}
+
+	/**
+	 * @return the requests over the limit
+	 */
+	public long getLimited() {
+		return limited.sum();
+	}
+
+	/**
+	 * @return the requests let through because their source found no free
+	 *         entry; if it grows, the capacity is too small
+	 */
+	public long getUntracked() {
+		return untracked.sum();
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * The responses recently sent, keyed by the source address, port and
+ * Transaction ID of their request, so that a retransmitted request is
+ * answered with the same bytes instead of being handled again (RFC 5389
+ * section 7.3.1).
+ * <p>
+ * Entries live in a fixed array of slots, found by probing a few slots from
+ * the hash of their key, and are stored in place: the key, expiry and
+ * length of each slot in an array of longs, its response in a slab of
+ * <i>maxResponseLength</i> bytes per slot, all allocated up front. Each
+ * slot has a version, odd while a thread writes the slot, which a writer
+ * claims with a compare-and-set and publishes with a release store; a
+ * lookup reads the slot without locking and keeps what it read only if the
+ * version did not change meanwhile. A response is stored in the first
+ * free, expired or matching slot of its window, or else replaces the entry
+ * of the window that expires first, which counts as an eviction. At most
+ * <i>capacity</i> responses of at most <i>maxResponseLength</i> bytes are
+ * held, so the memory used is bounded, and storing one allocates nothing.
+ * Expired entries are cleared by a timing wheel that the storing threads
+ * advance, one bucket per 1/32 of the time to live; a bucket is a bitmap of
+ * the slots due then, so the wheel takes a fixed size too.
+ */
+public final class ResponseCache {
+	public final static int DEFAULT_CAPACITY = 16384;
+	public final static int DEFAULT_MAX_RESPONSE_LENGTH = 548;
+	// the last retransmission of a client gives up after 39.5 s
+	public final static long DEFAULT_TTL_SECONDS = 40;
+	final static int MAX_PROBES = 8;
+	private final static int TICKS_PER_TTL = 32;
+	private final static int WHEEL_SIZE = 64;
+	// the address halves of an IPv4 address, as ::ffff:a.b.c.d
+	private final static long IPV4_MAPPED = 0xFFFFL << 32;
+
+	// the longs describing a slot: its key, when it expires, and the error
+	// code and length of its response, the length being 0 in a free slot
+	private final static int ADDRESS_HIGH = 0;
+	private final static int ADDRESS_LOW = 1;
+	private final static int ID_HIGH = 2;
+	private final static int PORT_ID_LOW = 3;
+	private final static int EXPIRES = 4;
+	private final static int ERROR_LENGTH = 5;
+	private final static int META = 6;
+
+	private final long[] meta;
+	private final byte[] slab;
+	private final AtomicLongArray versions;
+	private final int mask;
+	private final int maxResponseLength;
+	private final long ttlNanos;
+	private final long tickNanos;
+	private final AtomicLongArray[] wheel;
+	// the last tick swept
+	private final AtomicLong tick = new AtomicLong();
+	private final long origin = System.nanoTime();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder oversized = new LongAdder();
+
+	public ResponseCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_RESPONSE_LENGTH, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param capacity			the number of responses held, a power of two
+	 * @param maxResponseLength	the length beyond which responses are not cached
+	 * @param ttl				how long a response is kept
+	 * @param unit				the unit of <b>ttl</b>
+	 */
+	public ResponseCache(int capacity, int maxResponseLength, long ttl, TimeUnit unit) {
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		if (ttl <= 0)
+			throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+		if ((maxResponseLength <= 0) || ((long) capacity * maxResponseLength > Integer.MAX_VALUE))
+			throw new IllegalArgumentException("Invalid maximum response length: " + maxResponseLength);
+		meta = new long[capacity * META];
+		slab = new byte[capacity * maxResponseLength];
+		versions = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+		this.maxResponseLength = maxResponseLength;
+		ttlNanos = unit.toNanos(ttl);
+		tickNanos = Math.max(1, ttlNanos / TICKS_PER_TTL);
+		wheel = new AtomicLongArray[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			wheel[i] = new AtomicLongArray((capacity + 63) / 64);
+	}
+
+	private long now() {
+		return System.nanoTime() - origin;
+	}
+
+	/**
+	 * @param hit	a value returned by {@link #get(ByteBuffer, int, InetAddress, int, ByteBuffer, int)}
+	 * @return the length of the cached response
+	 */
+	static int lengthOf(long hit) {
+		return (int) hit;
+	}
+
+	/**
+	 * @param hit	a value returned by {@link #get(ByteBuffer, int, InetAddress, int, ByteBuffer, int)}
+	 * @return the code of the cached error response, 0 if it is a success
+	 */
+	static int errorCodeOf(long hit) {
+		return (int) (hit >>> 32);
+	}
+
+	/**
+	 * Looks up the response to a retransmission, and writes it at
+	 * <b>responseOffset</b>, leaving the position of <b>response</b>
+	 * untouched. The bytes there are undefined on a miss.
+	 *
+	 * @param request	the buffer containing the request
+	 * @param idOffset	the absolute index of its Transaction ID
+	 * @param address	the source address of the request
+	 * @param port		the source port of the request
+	 * @return -1 on a miss, or the error code and length of the response,
+	 *         read with {@link #errorCodeOf(long)} and {@link #lengthOf(long)}
+	 */
+	long get(ByteBuffer request, int idOffset, InetAddress address, int port, ByteBuffer response,
+			int responseOffset) {
+		return get(request, idOffset, address, port, response, responseOffset, now());
+	}
+
+	long get(ByteBuffer request, int idOffset, InetAddress address, int port, ByteBuffer response,
+			int responseOffset, long now) {
+		long addressHigh = addressHigh(address);
+		long addressLow = addressLow(address);
+		long idHigh = Utility.getLong(request, idOffset);
+		long portIdLow = ((long) port << 32) | Utility.getUnsignedInt(request, idOffset + 8);
+		int hash = hash(addressHigh, addressLow, idHigh, portIdLow);
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int slot = (hash + probe) & mask;
+			long version = versions.get(slot);
+			// being written, by another request than a retransmission if
+			// the response is not in the cache yet
+			if ((version & 1) != 0)
+				continue;
+			int base = slot * META;
+			if (!matches(base, addressHigh, addressLow, idHigh, portIdLow))
+				continue;
+			long expires = meta[base + EXPIRES];
+			long errorLength = meta[base + ERROR_LENGTH];
+			int length = (int) errorLength;
+			if ((length > 0) && (length <= maxResponseLength) && (expires - now > 0))
+				response.put(responseOffset, slab, slot * maxResponseLength, length);
+			VarHandle.acquireFence();
+			if (versions.get(slot) != version)
+				continue;
+			if ((length == 0) || (expires - now <= 0))
+				break;
+			hits.increment();
+			return errorLength;
+		}
+		misses.increment();
+		return -1;
+	}
+
+	/**
+	 * Caches the response of <b>length</b> bytes at <b>responseOffset</b>
+	 * in <b>response</b>.
+	 *
+	 * @param errorCode	the code of an error response, 0 otherwise
+	 */
+	void put(ByteBuffer request, int idOffset, InetAddress address, int port, ByteBuffer response,
+			int responseOffset, int length, int errorCode) {
+		put(request, idOffset, address, port, response, responseOffset, length, errorCode, now());
+	}
+
+	void put(ByteBuffer request, int idOffset, InetAddress address, int port, ByteBuffer response,
+			int responseOffset, int length, int errorCode, long now) {
+		if (length > maxResponseLength) {
+			oversized.increment();
+			return;
+		}
+		advance(now);
+
+		long addressHigh = addressHigh(address);
+		long addressLow = addressLow(address);
+		long idHigh = Utility.getLong(request, idOffset);
+		long portIdLow = ((long) port << 32) | Utility.getUnsignedInt(request, idOffset + 8);
+		int hash = hash(addressHigh, addressLow, idHigh, portIdLow);
+		int victim = -1;
+		long victimVersion = 0;
+		long oldest = 0;
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int slot = (hash + probe) & mask;
+			long version = versions.get(slot);
+			if ((version & 1) != 0)
+				continue;
+			int base = slot * META;
+			// racy reads, the claim below tells whether they were current
+			long expires = meta[base + EXPIRES];
+			if (((int) meta[base + ERROR_LENGTH] == 0) || (expires - now <= 0)
+					|| matches(base, addressHigh, addressLow, idHigh, portIdLow)) {
+				if (versions.compareAndSet(slot, version, version + 1)) {
+					write(slot, version, addressHigh, addressLow, idHigh, portIdLow, response, responseOffset,
+							length, errorCode, now);
+					return;
+				}
+				continue;
+			}
+			if ((victim < 0) || (expires - oldest < 0)) {
+				oldest = expires;
+				victim = slot;
+				victimVersion = version;
+			}
+		}
+		if ((victim >= 0) && versions.compareAndSet(victim, victimVersion, victimVersion + 1)) {
+			evictions.increment();
+			write(victim, victimVersion, addressHigh, addressLow, idHigh, portIdLow, response, responseOffset,
+					length, errorCode, now);
+		}
+	}
+
+	/**
+	 * Fills the slot claimed at <b>version</b> + 1, and publishes it.
+	 */
+	private void write(int slot, long version, long addressHigh, long addressLow, long idHigh, long portIdLow,
+			ByteBuffer response, int responseOffset, int length, int errorCode, long now) {
+		int base = slot * META;
+		long expires = now + ttlNanos;
+		meta[base + ADDRESS_HIGH] = addressHigh;
+		meta[base + ADDRESS_LOW] = addressLow;
+		meta[base + ID_HIGH] = idHigh;
+		meta[base + PORT_ID_LOW] = portIdLow;
+		meta[base + EXPIRES] = expires;
+		meta[base + ERROR_LENGTH] = ((long) errorCode << 32) | length;
+		response.get(responseOffset, slab, slot * maxResponseLength, length);
+		versions.setRelease(slot, version + 2);
+		schedule(expires, slot);
+	}
+
+	private boolean matches(int base, long addressHigh, long addressLow, long idHigh, long portIdLow) {
+		return (meta[base + ID_HIGH] == idHigh) && (meta[base + PORT_ID_LOW] == portIdLow)
+				&& (meta[base + ADDRESS_LOW] == addressLow) && (meta[base + ADDRESS_HIGH] == addressHigh);
+	}
+
+	private void schedule(long expires, int slot) {
+		// the first tick at which the entry has expired
+		long due = (expires + tickNanos - 1) / tickNanos;
+		AtomicLongArray bucket = wheel[(int) (due % WHEEL_SIZE)];
+		long bit = 1L << slot;
+		long bits;
+		while (((bits = bucket.get(slot >>> 6)) & bit) == 0)
+			if (bucket.compareAndSet(slot >>> 6, bits, bits | bit))
+				break;
+	}
+
+	/**
+	 * Clears the entries due up to <b>now</b>. Only the thread moving the
+	 * wheel forward sweeps it.
+	 */
+	private void advance(long now) {
+		long current = now / tickNanos;
+		long last = tick.get();
+		if ((current <= last) || !tick.compareAndSet(last, current))
+			return;
+		for (long t = Math.max(last + 1, current - WHEEL_SIZE + 1); t <= current; t++) {
+			AtomicLongArray bucket = wheel[(int) (t % WHEEL_SIZE)];
+			for (int word = 0; word < bucket.length(); word++) {
+				long bits = bucket.getAndSet(word, 0);
+				while (bits != 0) {
+					int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					// the slot may have been given to a newer entry since,
+					// or be being written
+					long version = versions.get(slot);
+					int base = slot * META;
+					if (((version & 1) == 0) && ((int) meta[base + ERROR_LENGTH] != 0)
+							&& (meta[base + EXPIRES] - now <= 0)
+							&& versions.compareAndSet(slot, version, version + 1)) {
+						meta[base + ERROR_LENGTH] = 0;
+						versions.setRelease(slot, version + 2);
+						expirations.increment();
+					}
+				}
+			}
+		}
+	}
+
+	private static long addressHigh(InetAddress address) {
+		return (address instanceof Inet4Address) ? 0 : Utility.getLong(address.getAddress(), 0);
+	}
+
+	private static long addressLow(InetAddress address) {
+		if (address instanceof Inet4Address)
+			return IPV4_MAPPED | (IPv4Address.toInt((Inet4Address) address) & 0xFFFFFFFFL);
+		return Utility.getLong(address.getAddress(), 8);
+	}
+
+	private static int hash(long addressHigh, long addressLow, long idHigh, long portIdLow) {
+		long h = (idHigh ^ (addressLow * 0x9E3779B97F4A7C15L)) + (addressHigh * 31) + portIdLow;
+		h *= 0xBF58476D1CE4E5B9L;
+		return (int) (h ^ (h >>> 31));
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the share of the lookups answered from the cache, or 0 if
+	 *         there were none
+	 */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+
+	/**
+	 * @return the live entries replaced for lack of room
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the entries cleared by the timing wheel
+	 */
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	/**
+	 * @return the responses too long to be cached
+	 */
+	public long getOversized() {
+		return oversized.sum();
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Serves the same endpoints from several {@link NioStunServer} shards, each
+ * with its own SO_REUSEPORT sockets, event loop thread and buffers.
+ * <p>
+ * The kernel spreads the datagrams among the sockets bound to an endpoint by
+ * hashing the flow, so a client always reaches the same shard. The shards
+ * share the immutable {@link BindingResponseTemplates}, and whichever of the
+ * thread-safe {@link RateLimiter}, {@link TrafficMonitor},
+ * {@link ServerMetrics}, {@link ResponseCache}, {@link CredentialStore}
+ * and {@link NonceManager} are set; their handlers, buffers and event loops
+ * are their own. Throughput scales with the number of cores, up to the
+ * number of shards.
+ * <p>
+ * Where SO_REUSEPORT is not supported, a single shard is started.
+ */
+public class ReusePortStunServer {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.server.ReusePortStunServer");
+
+	private final List<InetSocketAddress> endpoints;
+	private final BindingResponseTemplates templates;
+	private final int shardCount;
+	private int receiveBufferSize = NioStunServer.DEFAULT_SOCKET_BUFFER_SIZE;
+	private int sendBufferSize = NioStunServer.DEFAULT_SOCKET_BUFFER_SIZE;
+	private int maxDatagramsPerWakeup = NioStunServer.DEFAULT_MAX_DATAGRAMS_PER_WAKEUP;
+	private RateLimiter rateLimiter;
+	private TrafficMonitor trafficMonitor;
+	private ServerMetrics metrics;
+	private ResponseCache responseCache;
+	private CredentialStore credentials;
+	private NonceManager nonceManager;
+	private boolean fingerprintRequired;
+
+	private final List<NioStunServer> shards = new ArrayList<NioStunServer>();
+
+	/**
+	 * @param endpoints	the endpoints, bound by every shard
+	 * @param templates	the response templates, shared by the shards
+	 * @param shards	the number of shards, typically the number of cores
+	 */
+	public ReusePortStunServer(List<InetSocketAddress> endpoints, BindingResponseTemplates templates,
+			int shards) {
+		if (shards <= 0)
+			throw new IllegalArgumentException("Invalid number of shards " + shards);
+		this.endpoints = new ArrayList<InetSocketAddress>(endpoints);
+		this.templates = templates;
+		this.shardCount = shards;
+	}
+
+	/**
+	 * Sets the SO_RCVBUF of every socket. Must be called before {@link #start()}.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets the SO_SNDBUF of every socket. Must be called before {@link #start()}.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Sets how many datagrams each shard reads from a socket per wakeup at
+	 * most. Must be called before {@link #start()}.
+	 *
+	 * @see NioStunServer#setMaxDatagramsPerWakeup(int)
+	 */
+	public void setMaxDatagramsPerWakeup(int maxDatagramsPerWakeup) {
+		if (maxDatagramsPerWakeup < 1)
+			throw new IllegalArgumentException("At least one datagram per wakeup: " + maxDatagramsPerWakeup);
+		this.maxDatagramsPerWakeup = maxDatagramsPerWakeup;
+	}
+
+	/**
+	 * Sets the limiter shared by every shard, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the monitor shared by every shard, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setTrafficMonitor(TrafficMonitor trafficMonitor) {
+		this.trafficMonitor = trafficMonitor;
+	}
+
+	/**
+	 * Sets the metrics shared by every shard, or null for none. The shards
+	 * share the metrics of each endpoint too. Must be called before
+	 * {@link #start()}.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the cache shared by every shard, or null for none, so that a
+	 * retransmission is answered whichever shard receives it. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * Sets the keys requests must be signed with on every shard, or null for
+	 * none. Must be called before {@link #start()}.
+	 */
+	public void setCredentials(CredentialStore credentials) {
+		this.credentials = credentials;
+	}
+
+	/**
+	 * Makes the credentials long-term ones, of the realm and nonces of
+	 * <b>nonceManager</b>, on every shard. Must be called before {@link #start()}.
+	 */
+	public void setNonceManager(NonceManager nonceManager) {
+		this.nonceManager = nonceManager;
+	}
+
+	/**
+	 * Drops the datagrams without a valid FINGERPRINT on every shard, e.g.
+	 * when media shares the port. Must be called before {@link #start()}.
+	 */
+	public void setFingerprintRequired(boolean fingerprintRequired) {
+		this.fingerprintRequired = fingerprintRequired;
+	}
+
+	public synchronized void start() throws IOException {
+		if (!shards.isEmpty())
+			throw new IllegalStateException("Already started");
+
+		int count = shardCount;
+		boolean reusePort = NioStunServer.isReusePortSupported();
+		if (!reusePort && (count > 1)) {
+			logger.warning("SO_REUSEPORT is not supported, starting a single shard");
+			count = 1;
+		}
+
+		List<InetSocketAddress> bound = endpoints;
+		try {
+			for (int i = 0; i < count; i++) {
+				NioStunServer shard = new NioStunServer(bound, templates);
+				shard.setReusePort(reusePort);
+				shard.setReceiveBufferSize(receiveBufferSize);
+				shard.setSendBufferSize(sendBufferSize);
+				shard.setMaxDatagramsPerWakeup(maxDatagramsPerWakeup);
+				shard.setRateLimiter(rateLimiter);
+				shard.setTrafficMonitor(trafficMonitor);
+				shard.setMetrics(metrics);
+				shard.setResponseCache(responseCache);
+				shard.setCredentials(credentials);
+				shard.setNonceManager(nonceManager);
+				shard.setFingerprintRequired(fingerprintRequired);
+				shard.setName("stun-shard-" + i);
+				shard.start();
+				shards.add(shard);
+
+				// the next shards bind the ports picked for ephemeral endpoints
+				if (i == 0) {
+					bound = new ArrayList<InetSocketAddress>();
+					for (int j = 0; j < endpoints.size(); j++)
+						bound.add(shard.getLocalAddress(j));
+				}
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+		logger.config(count + " shards serving " + bound);
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	public NioStunServer getShard(int index) {
+		return shards.get(index);
+	}
+
+	/**
+	 * @return the local address of the <b>index</b>-th endpoint
+	 */
+	public InetSocketAddress getLocalAddress(int index) throws IOException {
+		return shards.get(0).getLocalAddress(index);
+	}
+
+	/**
+	 * @return whether every shard is running
+	 */
+	public boolean isAlive() {
+		if (shards.isEmpty())
+			return false;
+		for (NioStunServer shard : shards)
+			if (!shard.isAlive())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the responses dropped by all the shards
+	 */
+	public long getDroppedResponses() {
+		long dropped = 0;
+		for (NioStunServer shard : shards)
+			dropped += shard.getDroppedResponses();
+		return dropped;
+	}
+
+	public synchronized void close() {
+		for (NioStunServer shard : shards)
+			shard.close();
+		shards.clear();
+	}
+}
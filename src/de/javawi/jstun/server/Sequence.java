@@ -0,0 +1,70 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A counter written by one stage of a {@link DatagramRing} and read by the
+ * others. It is padded so that the sequences of different threads do not
+ * share a cache line.
+ */
+final class Sequence {
+	private final static VarHandle VALUE;
+
+	static {
+		try {
+			VALUE = MethodHandles.lookup().findVarHandle(Sequence.class, "value", long.class);
+		} catch (ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+	private final static int SPINS = 100;
+	private final static int YIELDS = 100;
+	private final static long PARK_NANOS = 50000;
+
+	long p1, p2, p3, p4, p5, p6, p7;
+	private volatile long value = -1;
+	long q1, q2, q3, q4, q5, q6, q7;
+
+	long get() {
+		return value;
+	}
+
+	/**
+	 * Publishes <b>value</b>: the writes made before are visible to the
+	 * threads reading it.
+	 */
+	void set(long value) {
+		VALUE.setRelease(this, value);
+	}
+
+	/**
+	 * Backs off while a stage has nothing to do: spins first, then yields,
+	 * then sleeps, so that an idle pipeline does not burn its cores.
+	 *
+	 * @param idle	the number of times the caller has backed off in a row
+	 * @return the new count
+	 */
+	static int backOff(int idle) {
+		if (idle < SPINS)
+			Thread.onSpinWait();
+		else if (idle < SPINS + YIELDS)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(PARK_NANOS);
+		return idle + 1;
+	}
+}
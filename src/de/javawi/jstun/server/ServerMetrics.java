@@ -0,0 +1,270 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The counters of a STUN server, shared by all its threads, and the
+ * {@link ListenerMetrics} of each of its sockets.
+ * <p>
+ * Requests and responses are counted per message type and class, error
+ * responses per code and dropped datagrams per {@link DropReason}. The
+ * counters are {@link LongAdder}s, created the first time a type or code
+ * is seen and found by index afterwards, so counting neither locks nor
+ * allocates. Once {@link #register(String)} is called, the server and its
+ * listeners are exported as MXBeans under the "de.javawi.jstun" domain.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+	public final static String DOMAIN = "de.javawi.jstun";
+
+	/**
+	 * Why a datagram got no response.
+	 */
+	public enum DropReason {
+		/** not a well-formed STUN message */
+		MALFORMED,
+		/** no valid FINGERPRINT where one is required, e.g. media */
+		NOT_STUN,
+		/** a message other than a Binding Request */
+		UNSUPPORTED,
+		/** the source went over its rate limit */
+		RATE_LIMITED,
+		/** the response did not fit in the buffer */
+		OVERFLOW,
+		/** the response could not be queued or sent */
+		SEND_FAILED,
+		/** handling the request failed, e.g. the credential store threw */
+		INTERNAL_ERROR
+	}
+
+	// message types are 14 bits, error codes 300 to 699
+	private final static int TYPES = 1 << 14;
+	private final static int CODES = 700;
+	private final static String[] CLASSES = { "request", "indication", "success", "error" };
+
+	private final Counters requests = new Counters(TYPES);
+	private final LongAdder[] requestClasses = new LongAdder[CLASSES.length];
+	private final Counters responses = new Counters(TYPES);
+	private final Counters errors = new Counters(CODES);
+	private final LongAdder[] drops = new LongAdder[DropReason.values().length];
+
+	private final List<ListenerMetrics> listeners = new CopyOnWriteArrayList<ListenerMetrics>();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+	private String name;
+
+	/**
+	 * LongAdders indexed by a small int, created on first use.
+	 */
+	private static final class Counters {
+		private final AtomicReferenceArray<LongAdder> counters;
+
+		Counters(int size) {
+			counters = new AtomicReferenceArray<LongAdder>(size);
+		}
+
+		void increment(int index) {
+			if ((index < 0) || (index >= counters.length()))
+				return;
+			LongAdder counter = counters.get(index);
+			if (counter == null) {
+				counters.compareAndSet(index, null, new LongAdder());
+				counter = counters.get(index);
+			}
+			counter.increment();
+		}
+
+		long get(int index) {
+			LongAdder counter = counters.get(index);
+			return (counter == null) ? 0 : counter.sum();
+		}
+
+		Map<String, Long> toMap(IntFunction<String> key) {
+			Map<String, Long> map = new TreeMap<String, Long>();
+			for (int i = 0; i < counters.length(); i++) {
+				LongAdder counter = counters.get(i);
+				if (counter != null)
+					map.put(key.apply(i), counter.sum());
+			}
+			return map;
+		}
+	}
+
+	public ServerMetrics() {
+		for (int i = 0; i < requestClasses.length; i++)
+			requestClasses[i] = new LongAdder();
+		for (int i = 0; i < drops.length; i++)
+			drops[i] = new LongAdder();
+	}
+
+	/**
+	 * Counts a received message of type <b>type</b>.
+	 */
+	public void countRequest(int type) {
+		requests.increment(type);
+		requestClasses[messageClass(type)].increment();
+	}
+
+	/**
+	 * Counts a response of type <b>type</b>, and its <b>errorCode</b> if it
+	 * is an error response.
+	 */
+	public void countResponse(int type, int errorCode) {
+		responses.increment(type);
+		if (messageClass(type) == 3)
+			errors.increment(errorCode);
+	}
+
+	public void countDrop(DropReason reason) {
+		drops[reason.ordinal()].increment();
+	}
+
+	// the C1 and C0 bits of the type, RFC 5389 section 6
+	private static int messageClass(int type) {
+		return ((type >>> 7) & 2) | ((type >>> 4) & 1);
+	}
+
+	/**
+	 * Returns the metrics of the socket bound to <b>address</b>, created
+	 * and exported along with the server's on first use. Sockets sharing an
+	 * address through SO_REUSEPORT share their metrics.
+	 */
+	public synchronized ListenerMetrics getListener(InetSocketAddress address) {
+		for (ListenerMetrics listener : listeners)
+			if (listener.getSocketAddress().equals(address))
+				return listener;
+
+		ListenerMetrics listener = new ListenerMetrics(address);
+		listeners.add(listener);
+		if (name != null) {
+			try {
+				registerListener(listener);
+			} catch (JMException jme) {
+				// the server works without JMX
+			}
+		}
+		return listener;
+	}
+
+	public List<ListenerMetrics> getListeners() {
+		return Collections.unmodifiableList(listeners);
+	}
+
+	public long getRequests(int type) {
+		return requests.get(type);
+	}
+
+	public long getResponses(int type) {
+		return responses.get(type);
+	}
+
+	public long getErrors(int code) {
+		return errors.get(code);
+	}
+
+	public long getDrops(DropReason reason) {
+		return drops[reason.ordinal()].sum();
+	}
+
+	private static String typeName(int type) {
+		return String.format("0x%04x", type);
+	}
+
+	public Map<String, Long> getRequestsByType() {
+		return requests.toMap(ServerMetrics::typeName);
+	}
+
+	public Map<String, Long> getRequestsByClass() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (int i = 0; i < CLASSES.length; i++)
+			map.put(CLASSES[i], requestClasses[i].sum());
+		return map;
+	}
+
+	public Map<String, Long> getResponsesByType() {
+		return responses.toMap(ServerMetrics::typeName);
+	}
+
+	public Map<String, Long> getErrorsByCode() {
+		return errors.toMap(Integer::toString);
+	}
+
+	public Map<String, Long> getDropsByReason() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (DropReason reason : DropReason.values())
+			map.put(reason.name(), drops[reason.ordinal()].sum());
+		return map;
+	}
+
+	public long getDropped() {
+		long dropped = 0;
+		for (LongAdder drop : drops)
+			dropped += drop.sum();
+		return dropped;
+	}
+
+	/**
+	 * Exports the server, and its present and future listeners, to the
+	 * platform MBean server as "de.javawi.jstun:type=Server,name=<b>name</b>".
+	 *
+	 * @throws JMException if the beans cannot be registered, e.g. because
+	 *             the name is already taken
+	 */
+	public synchronized void register(String name) throws JMException {
+		if (this.name != null)
+			throw new IllegalStateException("Already registered as " + this.name);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=Server,name=" + ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		registered.add(objectName);
+		this.name = name;
+		for (ListenerMetrics listener : listeners)
+			registerListener(listener);
+	}
+
+	private void registerListener(ListenerMetrics listener) throws JMException {
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=Listener,server=" + ObjectName.quote(name)
+				+ ",address=" + ObjectName.quote(listener.getAddress()));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(listener, objectName);
+		registered.add(objectName);
+	}
+
+	/**
+	 * Removes the beans exported by {@link #register(String)}.
+	 */
+	public synchronized void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException jme) {
+				// already gone
+			}
+		}
+		registered.clear();
+		name = null;
+	}
+}
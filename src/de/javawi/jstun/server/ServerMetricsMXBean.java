@@ -0,0 +1,32 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link ServerMetrics}. Message types are keyed by their
+ * hexadecimal encoding, e.g. "0x0001" for a Binding Request.
+ */
+public interface ServerMetricsMXBean {
+	Map<String, Long> getRequestsByType();
+
+	Map<String, Long> getRequestsByClass();
+
+	Map<String, Long> getResponsesByType();
+
+	Map<String, Long> getErrorsByCode();
+
+	Map<String, Long> getDropsByReason();
+
+	long getDropped();
+}
@@ -0,0 +1,460 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jdk.jfr.EventType;
+
+import de.javawi.jstun.attribute.ErrorCode;
+import de.javawi.jstun.attribute.Fingerprint;
+import de.javawi.jstun.attribute.MessageIntegrity;
+import de.javawi.jstun.attribute.Nonce;
+import de.javawi.jstun.attribute.Realm;
+import de.javawi.jstun.attribute.UnknownAttribute;
+import de.javawi.jstun.attribute.Username;
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.attribute.exception.MessageAttributeException;
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderDecoder;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+import de.javawi.jstun.header.exception.MessageHeaderParsingException;
+import de.javawi.jstun.jfr.StunAuthFailureEvent;
+import de.javawi.jstun.jfr.StunParseFailureEvent;
+import de.javawi.jstun.jfr.StunRequestEvent;
+import de.javawi.jstun.jfr.StunResponseEvent;
+import de.javawi.jstun.server.ServerMetrics.DropReason;
+import de.javawi.jstun.trace.TraceEvent;
+import de.javawi.jstun.trace.Tracer;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * Turns a received datagram into the response to send back, whatever the
+ * I/O model of the server.
+ * <p>
+ * Binding requests are answered from the {@link BindingResponseTemplates},
+ * without allocating. Requests carrying unknown comprehension-required
+ * attributes get a 420 error response, and anything else is dropped.
+ * An optional {@link RateLimiter}, checked before the datagram is even
+ * parsed, drops or rejects the requests of the sources over their limit,
+ * and an optional {@link TrafficMonitor} sees every request, limited or not.
+ * With a {@link ResponseCache}, a retransmitted request is answered with
+ * the response sent the first time, without being handled again.
+ * With a {@link CredentialStore}, requests must carry a USERNAME and a
+ * MESSAGE-INTEGRITY or MESSAGE-INTEGRITY-SHA256 computed with its key,
+ * and get a 400 or 401 error response otherwise; responses are then
+ * signed the same way. With a {@link NonceManager} too, the credentials
+ * are long-term ones: requests must also carry the REALM and a NONCE it
+ * issued, and are challenged with both in 401 and 438 error responses.
+ * When a FINGERPRINT is required, a datagram not ending in a valid one,
+ * e.g. media sharing the port, is dropped before anything else is done,
+ * and responses carry one too.
+ * Each request and response, and each malformed datagram, is also a JFR
+ * event of the {@link de.javawi.jstun.jfr} package when that is enabled.
+ * <p>
+ * A handler keeps per-request state, so each thread needs its own; the
+ * templates can be shared.
+ */
+public class StunRequestHandler {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.server.StunRequestHandler");
+
+	private final static int UNKNOWN_ATTRIBUTE_CLASS = 4;
+	private final static int UNKNOWN_ATTRIBUTE_NUMBER = 20;
+	private final static int BAD_REQUEST_CLASS = 4;
+	private final static int BAD_REQUEST_NUMBER = 0;
+	private final static int UNAUTHORIZED_CLASS = 4;
+	private final static int UNAUTHORIZED_NUMBER = 1;
+	private final static int STALE_NONCE_CLASS = 4;
+	private final static int STALE_NONCE_NUMBER = 38;
+	private final static int SERVER_ERROR_CLASS = 5;
+	private final static int SERVER_ERROR_NUMBER = 0;
+
+	// read before allocating an event, so that none is while JFR is off
+	private final static EventType REQUEST_EVENT = EventType.getEventType(StunRequestEvent.class);
+	private final static EventType RESPONSE_EVENT = EventType.getEventType(StunResponseEvent.class);
+	private final static EventType AUTH_FAILURE_EVENT = EventType.getEventType(StunAuthFailureEvent.class);
+
+	private final BindingResponseTemplates templates;
+	private final MessageHeaderDecoder decoder = new MessageHeaderDecoder();
+	private RateLimiter rateLimiter;
+	private TrafficMonitor trafficMonitor;
+	private ServerMetrics metrics;
+	private ResponseCache responseCache;
+	private CredentialStore credentials;
+	private NonceManager nonceManager;
+	private boolean fingerprintRequired;
+	private final CRC32 crc = new CRC32();
+	// the outcome of authenticate(), per request
+	private byte[] key;
+	private MessageAttributeType integrityType;
+	private int authErrorCode;
+	private boolean challenge;
+
+	public StunRequestHandler(BindingResponseTemplates templates) {
+		this.templates = templates;
+	}
+
+	public BindingResponseTemplates getTemplates() {
+		return templates;
+	}
+
+	/**
+	 * Sets the limiter checked for every datagram, which may be shared by
+	 * several handlers; null disables rate limiting.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the monitor updated for every datagram, which may be shared by
+	 * several handlers; null disables monitoring.
+	 */
+	public void setTrafficMonitor(TrafficMonitor trafficMonitor) {
+		this.trafficMonitor = trafficMonitor;
+	}
+
+	public TrafficMonitor getTrafficMonitor() {
+		return trafficMonitor;
+	}
+
+	/**
+	 * Sets the metrics counting requests, responses and drops, which may be
+	 * shared by several handlers; null disables them.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the cache answering retransmitted requests, which may be shared
+	 * by several handlers; null disables caching.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets the keys the requests must be signed with, which may be shared by
+	 * several handlers; null lets any request in.
+	 */
+	public void setCredentials(CredentialStore credentials) {
+		this.credentials = credentials;
+	}
+
+	public CredentialStore getCredentials() {
+		return credentials;
+	}
+
+	/**
+	 * Sets the realm and nonces of long-term credentials, which may be
+	 * shared by several handlers; the keys of the {@link CredentialStore}
+	 * are then {@link MessageIntegrity#longTermKey(String, String, String)}
+	 * ones. Null uses short-term credentials.
+	 */
+	public void setNonceManager(NonceManager nonceManager) {
+		this.nonceManager = nonceManager;
+	}
+
+	public NonceManager getNonceManager() {
+		return nonceManager;
+	}
+
+	/**
+	 * Drops the datagrams without a valid FINGERPRINT, as a STUN server
+	 * multiplexed with other protocols must, and adds one to responses.
+	 * Disabled by default.
+	 */
+	public void setFingerprintRequired(boolean fingerprintRequired) {
+		this.fingerprintRequired = fingerprintRequired;
+	}
+
+	public boolean isFingerprintRequired() {
+		return fingerprintRequired;
+	}
+
+	/**
+	 * Handles the datagram stored at <b>offset</b> in <b>request</b>, and
+	 * writes the response at <b>responseOffset</b>. The positions of the
+	 * buffers are left untouched.
+	 *
+	 * @param request			the buffer containing the datagram
+	 * @param offset			the absolute index of the first datagram byte
+	 * @param length			the datagram length
+	 * @param address			the client address
+	 * @param port				the client port
+	 * @param response			the buffer to write to, at least
+	 *            				{@link BindingResponseTemplates#getMaxLength()} bytes long, and
+	 *            				44 more to be signed and fingerprinted
+	 * @param responseOffset	the absolute index of the first response byte
+	 * @return the response length, or 0 if there is nothing to send
+	 */
+	public int handle(ByteBuffer request, int offset, int length, InetAddress address, int port,
+			ByteBuffer response, int responseOffset) {
+		StunRequestEvent requestEvent = null;
+		StunResponseEvent responseEvent = null;
+		if (REQUEST_EVENT.isEnabled()) {
+			requestEvent = new StunRequestEvent();
+			requestEvent.begin();
+		}
+		if (RESPONSE_EVENT.isEnabled()) {
+			responseEvent = new StunResponseEvent();
+			responseEvent.begin();
+		}
+		try {
+			if (fingerprintRequired && !Fingerprint.check(request, offset, length, crc))
+				return drop(DropReason.NOT_STUN);
+			if (trafficMonitor != null)
+				trafficMonitor.recordSource(address);
+			boolean limited = (rateLimiter != null) && !rateLimiter.tryAcquire(address);
+			if (limited && (rateLimiter.getAction() == RateLimiter.Action.DROP))
+				return drop(DropReason.RATE_LIMITED);
+
+			long parsing = (responseEvent != null) ? System.nanoTime() : 0;
+			decoder.wrap(request, offset, length);
+			long parsed = (responseEvent != null) ? System.nanoTime() : 0;
+			int type = decoder.getTypeEncoding();
+			if (metrics != null)
+				metrics.countRequest(type);
+			int unknown = -1;
+			if ((type == MessageHeaderInterface.BINDINGREQUEST) && !limited)
+				unknown = decoder.findUnknownMandatoryAttribute();
+			if (requestEvent != null) {
+				requestEvent.end();
+				if (requestEvent.shouldCommit())
+					commitRequest(requestEvent, type, length, address, port);
+			}
+			if (type != MessageHeaderInterface.BINDINGREQUEST)
+				return drop(DropReason.UNSUPPORTED);
+			if (trafficMonitor != null)
+				trafficMonitor.recordTransaction(request, decoder.getTransactionIDOffset());
+
+			long encoding = (responseEvent != null) ? System.nanoTime() : 0;
+			int responseLength;
+			int errorCode;
+			long cached = -1;
+			if (limited) {
+				errorCode = SERVER_ERROR_CLASS * 100 + SERVER_ERROR_NUMBER;
+				responseLength = encodeErrorResponse(SERVER_ERROR_CLASS, SERVER_ERROR_NUMBER, -1, null, response,
+						responseOffset);
+				if (fingerprintRequired)
+					responseLength = Fingerprint.append(response, responseOffset, responseLength, crc);
+			} else if ((responseCache != null) && ((cached = responseCache.get(request,
+					decoder.getTransactionIDOffset(), address, port, response, responseOffset)) >= 0)) {
+				errorCode = ResponseCache.errorCodeOf(cached);
+				responseLength = ResponseCache.lengthOf(cached);
+				if (metrics != null)
+					metrics.countResponse(Utility.getUnsignedShort(response, responseOffset), errorCode);
+			} else {
+				if ((credentials != null) && !authenticate(request, address, port)) {
+					errorCode = authErrorCode;
+					responseLength = encodeErrorResponse(errorCode / 100, errorCode % 100, -1, challenge ? address
+							: null, response, responseOffset);
+				} else if (unknown >= 0) {
+					errorCode = UNKNOWN_ATTRIBUTE_CLASS * 100 + UNKNOWN_ATTRIBUTE_NUMBER;
+					responseLength = encodeErrorResponse(UNKNOWN_ATTRIBUTE_CLASS, UNKNOWN_ATTRIBUTE_NUMBER,
+							unknown, null, response, responseOffset);
+				} else {
+					errorCode = 0;
+					responseLength = templates.stamp(response, responseOffset, decoder, address, port);
+					if (metrics != null)
+						metrics.countResponse(MessageHeaderInterface.BINDINGRESPONSE, 0);
+				}
+				// only set once the request is authenticated
+				if ((credentials != null) && (key != null))
+					responseLength = MessageIntegrity.append(integrityType, key, response, responseOffset,
+							responseLength);
+				if (fingerprintRequired)
+					responseLength = Fingerprint.append(response, responseOffset, responseLength, crc);
+				if (responseCache != null)
+					responseCache.put(request, decoder.getTransactionIDOffset(), address, port, response,
+							responseOffset, responseLength, errorCode);
+			}
+			if (responseEvent != null) {
+				responseEvent.end();
+				if (responseEvent.shouldCommit()) {
+					responseEvent.parsingTime = parsed - parsing;
+					responseEvent.encodingTime = System.nanoTime() - encoding;
+					commitResponse(responseEvent, response, responseOffset, responseLength, errorCode, address,
+							port);
+				}
+			}
+			return responseLength;
+		} catch (MessageHeaderParsingException mhpe) {
+			Tracer.trace(TraceEvent.MALFORMED_MESSAGE, address, port, length);
+			StunParseFailureEvent.emit(StunParseFailureEvent.HEADER, mhpe.getMessage(), length, 0, address, port);
+			return drop(DropReason.MALFORMED);
+		} catch (MessageAttributeException mae) {
+			Tracer.trace(TraceEvent.MALFORMED_ATTRIBUTE, address, port, length);
+			StunParseFailureEvent.emit(StunParseFailureEvent.ATTRIBUTE, mae.getMessage(), length, 0, address,
+					port);
+			return drop(DropReason.MALFORMED);
+		} catch (BufferOverflowException boe) {
+			logger.warning("Response buffer too small");
+			return drop(DropReason.OVERFLOW);
+		}
+	}
+
+	// only called once the event is known to be recorded
+	private void commitRequest(StunRequestEvent event, int type, int length, InetAddress address, int port)
+			throws MessageAttributeParsingException {
+		event.address = address.getHostAddress();
+		event.port = port;
+		event.messageType = type;
+		event.transactionId = decoder.getTransactionID().toString();
+		event.length = length;
+		event.attributeCount = decoder.countAttributes();
+		event.commit();
+	}
+
+	private void commitResponse(StunResponseEvent event, ByteBuffer response, int responseOffset,
+			int responseLength, int errorCode, InetAddress address, int port) {
+		event.address = address.getHostAddress();
+		event.port = port;
+		event.messageType = Utility.getUnsignedShort(response, responseOffset);
+		event.transactionId = decoder.getTransactionID().toString();
+		event.length = responseLength;
+		event.errorCode = errorCode;
+		event.commit();
+	}
+
+	/**
+	 * Checks the credentials of the request, RFC 5389 sections 10.1.2 and
+	 * 10.2.2. On success, the key to sign the response with is left in
+	 * {@link #key}.
+	 *
+	 * @return false if the request must get the error response of
+	 *         {@link #authErrorCode}, with a REALM and a NONCE if
+	 *         {@link #challenge} is set
+	 */
+	private boolean authenticate(ByteBuffer request, InetAddress address, int port)
+			throws MessageAttributeParsingException {
+		key = null;
+		challenge = nonceManager != null;
+		integrityType = MessageAttributeType.MessageIntegritySHA256;
+		int integrity = decoder.findAttribute(integrityType.getEncoding());
+		if (integrity < 0) {
+			integrityType = MessageAttributeType.MessageIntegrity;
+			integrity = decoder.findAttribute(integrityType.getEncoding());
+		}
+		if ((integrity < 0) && (nonceManager != null))
+			return authFailed("Missing MESSAGE-INTEGRITY", UNAUTHORIZED_CLASS * 100 + UNAUTHORIZED_NUMBER,
+					address, port);
+		int username = decoder.findAttribute(MessageAttributeType.Username.getEncoding());
+		// only looked for with long-term credentials
+		int realm = 0;
+		int nonce = 0;
+		if (nonceManager != null) {
+			realm = decoder.findAttribute(MessageAttributeType.Realm.getEncoding());
+			nonce = decoder.findAttribute(MessageAttributeType.Nonce.getEncoding());
+		}
+		if ((integrity < 0) || (username < 0) || (realm < 0) || (nonce < 0)) {
+			challenge = false;
+			return authFailed("Missing USERNAME, REALM, NONCE or MESSAGE-INTEGRITY", BAD_REQUEST_CLASS * 100
+					+ BAD_REQUEST_NUMBER, address, port);
+		}
+
+		if (nonceManager != null) {
+			NonceManager.Status status = nonceManager.validate(request, nonce + 4, Utility.getUnsignedShort(
+					request, nonce + 2), address);
+			if (status != NonceManager.Status.VALID)
+				return authFailed((status == NonceManager.Status.STALE) ? "Stale nonce" : "Invalid nonce",
+						STALE_NONCE_CLASS * 100 + STALE_NONCE_NUMBER, address, port);
+		}
+		String name = new Username(request, username + 4, Utility.getUnsignedShort(request, username + 2))
+				.getUsername();
+		byte[] candidate = credentials.getKey(name);
+		if (candidate == null)
+			return authFailed("Unknown username", UNAUTHORIZED_CLASS * 100 + UNAUTHORIZED_NUMBER, address,
+					port);
+		if (!MessageIntegrity.verify(request, decoder.getOffset(), integrity, candidate))
+			return authFailed("Wrong message integrity", UNAUTHORIZED_CLASS * 100 + UNAUTHORIZED_NUMBER,
+					address, port);
+		key = candidate;
+		return true;
+	}
+
+	private boolean authFailed(String reason, int errorCode, InetAddress address, int port) {
+		authErrorCode = errorCode;
+		if (!AUTH_FAILURE_EVENT.isEnabled())
+			return false;
+		StunAuthFailureEvent event = new StunAuthFailureEvent();
+		if (event.shouldCommit()) {
+			event.reason = reason;
+			event.errorCode = errorCode;
+			event.messageType = decoder.getTypeEncoding();
+			event.transactionId = decoder.getTransactionID().toString();
+			event.address = address.getHostAddress();
+			event.port = port;
+			event.commit();
+		}
+		return false;
+	}
+
+	private int drop(DropReason reason) {
+		if (metrics != null)
+			metrics.countDrop(reason);
+		return 0;
+	}
+
+	/**
+	 * Encodes an error response, listing <b>unknown</b> in an UNKNOWN-ATTRIBUTE
+	 * attribute unless it is negative, and giving the REALM and a fresh NONCE
+	 * to <b>challenged</b> unless it is null.
+	 */
+	private int encodeErrorResponse(int errorClass, int number, int unknown, InetAddress challenged,
+			ByteBuffer response, int responseOffset) throws MessageAttributeException {
+		// the ID of the request, no new one is drawn
+		MessageHeader sendMH = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.ERRORRESPONSE)).initHeader(decoder.getTransactionID());
+
+		ErrorCode ec = new ErrorCode();
+		ec.setResponseCode(errorClass, number);
+		sendMH.addMessageAttribute(ec);
+		if (unknown >= 0) {
+			UnknownAttribute ua = new UnknownAttribute();
+			ua.addAttribute(unknown);
+			sendMH.addMessageAttribute(ua);
+		}
+		if (challenged != null) {
+			sendMH.addMessageAttribute(new Realm(nonceManager.getRealm()));
+			sendMH.addMessageAttribute(new Nonce(nonceManager.issue(challenged)));
+		}
+
+		int position = response.position();
+		response.position(responseOffset);
+		sendMH.encodeTo(response);
+		response.position(position);
+		if (metrics != null)
+			metrics.countResponse(MessageHeaderInterface.BINDINGERRORRESPONSE, errorClass * 100 + number);
+		return sendMH.getLength();
+	}
+}
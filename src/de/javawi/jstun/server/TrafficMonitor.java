@@ -0,0 +1,109 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.javawi.jstun.header.TransactionId;
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * Reports who is hammering the server: the sources sending the most
+ * datagrams, and the transaction IDs seen more often than retransmissions
+ * explain, as sent by broken clients or flooding tools.
+ * <p>
+ * Both are tracked by {@link HeavyHitters} over a sliding window, in
+ * constant memory whatever the number of clients, and updated by every
+ * worker thread.
+ */
+public final class TrafficMonitor {
+	public final static int DEFAULT_TOP = 10;
+	public final static long DEFAULT_WINDOW_SECONDS = 60;
+
+	// RFC 5389 section 7.2.1: the request is sent at most Rc = 7 times
+	final static int MAX_TRANSMISSIONS = 7;
+
+	private final static int DEPTH = 4;
+	private final static int WIDTH = 4096;
+	private final static int SLICES = 6;
+
+	private final HeavyHitters sources;
+	private final HeavyHitters transactions;
+
+	public TrafficMonitor() {
+		this(DEFAULT_TOP, DEFAULT_WINDOW_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param top		the number of sources and transactions reported
+	 * @param window	the length of the sliding window
+	 * @param unit		the unit of <b>window</b>
+	 */
+	public TrafficMonitor(int top, long window, TimeUnit unit) {
+		sources = new HeavyHitters(new CountMinSketch(DEPTH, WIDTH, SLICES, window, unit), top);
+		transactions = new HeavyHitters(new CountMinSketch(DEPTH, WIDTH, SLICES, window, unit), top);
+	}
+
+	/**
+	 * Counts a datagram from <b>address</b>.
+	 */
+	public void recordSource(InetAddress address) {
+		long key;
+		if (address instanceof Inet4Address) {
+			// no copy of the address
+			key = (1L << 32) | (IPv4Address.toInt((Inet4Address) address) & 0xFFFFFFFFL);
+		} else {
+			byte[] bytes = address.getAddress();
+			key = (Utility.getLong(bytes, 0) * 0x9E3779B97F4A7C15L) ^ Utility.getLong(bytes, 8);
+		}
+		long count = sources.add(key);
+		if (sources.isCandidate(key, count))
+			sources.offer(key, count, address);
+	}
+
+	/**
+	 * Counts a request with the transaction ID found at <b>offset</b>.
+	 */
+	public void recordTransaction(ByteBuffer data, int offset) {
+		long key = Utility.getLong(data, offset) ^ Utility.getUnsignedInt(data, offset + 8);
+		long count = transactions.add(key);
+		// a first transmission is the norm, not worth a label
+		if ((count > 1) && transactions.isCandidate(key, count))
+			transactions.offer(key, count, TransactionId.read(data, offset));
+	}
+
+	/**
+	 * @return the sources with the most datagrams in the window, the
+	 *         heaviest first, labelled with their InetAddress
+	 */
+	public List<HeavyHitters.Entry> getTopSources() {
+		return sources.getTop();
+	}
+
+	/**
+	 * @return the transaction IDs seen more than {@link #MAX_TRANSMISSIONS}
+	 *         times in the window, labelled with their TransactionId
+	 */
+	public List<HeavyHitters.Entry> getReusedTransactions() {
+		List<HeavyHitters.Entry> reused = new ArrayList<HeavyHitters.Entry>();
+		for (HeavyHitters.Entry entry : transactions.getTop())
+			if (entry.getCount() > MAX_TRANSMISSIONS)
+				reused.add(entry);
+		return reused;
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.javawi.jstun.util.StripedPool;
+
+/**
+ * A STUN server that receives on a few platform threads and handles each
+ * request on its own virtual thread.
+ * <p>
+ * Handlers may block, e.g. on a credential store, without stalling the
+ * sockets: only the virtual thread waits. The number of requests in
+ * flight is capped by a semaphore; once it is reached the receivers stop
+ * reading and the kernel buffers absorb, then drop, the excess.
+ * <p>
+ * Virtual threads are looked up at runtime, so the class also runs on
+ * JDKs without them, where a cached pool of platform threads is used
+ * instead; see {@link #isVirtual()}.
+ * <p>
+ * Nothing costly is cached per thread on the request path: the handlers
+ * and their direct buffers, like the Macs of MESSAGE-INTEGRITY and of the
+ * {@link NonceManager}, are pooled, so a virtual thread living for one
+ * request reuses them too. A runtime exception thrown while handling a
+ * request, e.g. by the credential store, is logged and the request
+ * dropped.
+ */
+public class VirtualThreadStunServer {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.server.VirtualThreadStunServer");
+
+	public final static int DEFAULT_MAX_CONCURRENT_REQUESTS = 10000;
+	// without virtual threads every request in flight holds a platform thread
+	public final static int DEFAULT_MAX_CONCURRENT_PLATFORM_REQUESTS = 256;
+
+	private final List<InetSocketAddress> endpoints;
+	private final BindingResponseTemplates templates;
+	private int receiveBufferSize = NioStunServer.DEFAULT_SOCKET_BUFFER_SIZE;
+	private int sendBufferSize = NioStunServer.DEFAULT_SOCKET_BUFFER_SIZE;
+	private int receiversPerEndpoint = 1;
+	private int maxConcurrentRequests = -1;
+	private RateLimiter rateLimiter;
+	private TrafficMonitor trafficMonitor;
+	private ServerMetrics metrics;
+	private ResponseCache responseCache;
+	private CredentialStore credentials;
+	private NonceManager nonceManager;
+	private boolean fingerprintRequired;
+
+	private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+	private final List<Thread> receivers = new ArrayList<Thread>();
+	private ExecutorService executor;
+	private StripedPool<Exchange> exchanges;
+	private boolean virtual;
+	private Semaphore permits;
+	private volatile boolean running;
+
+	/**
+	 * A handler and the buffers of one request, borrowed by a receiver and
+	 * released by the thread handling the request.
+	 */
+	private static final class Exchange {
+		final StunRequestHandler handler;
+		final ByteBuffer request = ByteBuffer.allocateDirect(NioStunServer.DATAGRAM_BUFFER_SIZE);
+		final ByteBuffer response = ByteBuffer.allocateDirect(NioStunServer.DATAGRAM_BUFFER_SIZE);
+
+		Exchange(StunRequestHandler handler) {
+			this.handler = handler;
+		}
+	}
+
+	public VirtualThreadStunServer(List<InetSocketAddress> endpoints, BindingResponseTemplates templates) {
+		this.endpoints = new ArrayList<InetSocketAddress>(endpoints);
+		this.templates = templates;
+	}
+
+	/**
+	 * Sets the SO_RCVBUF of every socket. Must be called before {@link #start()}.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets the SO_SNDBUF of every socket. Must be called before {@link #start()}.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Sets the number of platform threads receiving on each endpoint. Must
+	 * be called before {@link #start()}.
+	 */
+	public void setReceiversPerEndpoint(int receiversPerEndpoint) {
+		this.receiversPerEndpoint = receiversPerEndpoint;
+	}
+
+	/**
+	 * Caps the requests being handled at once. Defaults to
+	 * {@link #DEFAULT_MAX_CONCURRENT_REQUESTS} with virtual threads, and
+	 * {@link #DEFAULT_MAX_CONCURRENT_PLATFORM_REQUESTS} without. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Sets the limiter shared by every request, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Sets the monitor shared by every request, or null for none. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setTrafficMonitor(TrafficMonitor trafficMonitor) {
+		this.trafficMonitor = trafficMonitor;
+	}
+
+	/**
+	 * Sets the metrics updated by every request, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the cache shared by every request, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * Sets the keys requests must be signed with, or null for none. Must be
+	 * called before {@link #start()}.
+	 */
+	public void setCredentials(CredentialStore credentials) {
+		this.credentials = credentials;
+	}
+
+	/**
+	 * Makes the credentials long-term ones, of the realm and nonces of
+	 * <b>nonceManager</b>. Must be called before {@link #start()}.
+	 */
+	public void setNonceManager(NonceManager nonceManager) {
+		this.nonceManager = nonceManager;
+	}
+
+	/**
+	 * Drops the datagrams without a valid FINGERPRINT, e.g. when media
+	 * shares the ports. Must be called before {@link #start()}.
+	 */
+	public void setFingerprintRequired(boolean fingerprintRequired) {
+		this.fingerprintRequired = fingerprintRequired;
+	}
+
+	/**
+	 * @return true if requests run on virtual threads, false if the JDK
+	 *         lacks them and platform threads are used
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return the number of requests being handled
+	 */
+	public int getRequestsInFlight() {
+		return (permits == null) ? 0 : maxConcurrentRequests - permits.availablePermits();
+	}
+
+	public synchronized void start() throws IOException {
+		if (running)
+			throw new IllegalStateException("Already started");
+
+		executor = newVirtualThreadPerTaskExecutor();
+		virtual = (executor != null);
+		if (!virtual) {
+			logger.warning("Virtual threads are not available, handling requests on platform threads");
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "stun-handler");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		if (maxConcurrentRequests <= 0)
+			maxConcurrentRequests = virtual ? DEFAULT_MAX_CONCURRENT_REQUESTS
+					: DEFAULT_MAX_CONCURRENT_PLATFORM_REQUESTS;
+		permits = new Semaphore(maxConcurrentRequests);
+		exchanges = new StripedPool<Exchange>(this::newExchange);
+
+		try {
+			for (InetSocketAddress endpoint : endpoints) {
+				DatagramChannel channel = DatagramChannel.open();
+				channels.add(channel);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+				channel.bind(endpoint);
+				logger.config("Listening on " + channel.getLocalAddress());
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+
+		running = true;
+		for (int i = 0; i < channels.size(); i++) {
+			DatagramChannel channel = channels.get(i);
+			ListenerMetrics listener = (metrics == null) ? null : metrics
+					.getListener((InetSocketAddress) channel.getLocalAddress());
+			for (int j = 0; j < receiversPerEndpoint; j++) {
+				Thread receiver = new Thread(() -> receive(channel, listener), "stun-receiver-" + i + "-"
+						+ j);
+				receivers.add(receiver);
+				receiver.start();
+			}
+		}
+	}
+
+	/**
+	 * @return Executors.newVirtualThreadPerTaskExecutor(), or null if the
+	 *         JDK does not have virtual threads
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			// missing, or a preview feature that is not enabled
+			return null;
+		} catch (UnsupportedOperationException uoe) {
+			return null;
+		}
+	}
+
+	private Exchange newExchange() {
+		StunRequestHandler handler = new StunRequestHandler(templates);
+		handler.setRateLimiter(rateLimiter);
+		handler.setTrafficMonitor(trafficMonitor);
+		handler.setMetrics(metrics);
+		handler.setResponseCache(responseCache);
+		handler.setCredentials(credentials);
+		handler.setNonceManager(nonceManager);
+		handler.setFingerprintRequired(fingerprintRequired);
+		return new Exchange(handler);
+	}
+
+	private void receive(DatagramChannel channel, ListenerMetrics listener) {
+		while (running) {
+			try {
+				permits.acquire();
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			boolean submitted = false;
+			// handed over to the handler thread, which releases it
+			Exchange exchange = exchanges.borrow();
+			try {
+				exchange.request.clear();
+				InetSocketAddress source = (InetSocketAddress) channel.receive(exchange.request);
+				long received = 0;
+				if (listener != null) {
+					received = System.nanoTime();
+					listener.countReceived();
+				}
+				long receivedNanos = received;
+				executor.execute(() -> handle(channel, listener, exchange, source, receivedNanos));
+				submitted = true;
+			} catch (ClosedChannelException cce) {
+				return;
+			} catch (RejectedExecutionException ree) {
+				return;
+			} catch (IOException ioe) {
+				logger.warning("I/O error on " + channel + ": " + ioe);
+			} finally {
+				if (!submitted) {
+					exchanges.release(exchange);
+					permits.release();
+				}
+			}
+		}
+	}
+
+	private void handle(DatagramChannel channel, ListenerMetrics listener, Exchange exchange,
+			InetSocketAddress source, long received) {
+		try {
+			ByteBuffer request = exchange.request;
+			ByteBuffer response = exchange.response;
+			response.clear();
+			int length = exchange.handler.handle(request, 0, request.position(), source.getAddress(),
+					source.getPort(), response, 0);
+			if (length > 0) {
+				response.limit(length);
+				channel.send(response, source);
+				if (listener != null)
+					listener.countSent(received);
+			}
+		} catch (IOException ioe) {
+			if (metrics != null)
+				metrics.countDrop(ServerMetrics.DropReason.SEND_FAILED);
+			if (running)
+				logger.warning("Cannot send to " + source + ": " + ioe);
+		} catch (RuntimeException re) {
+			// not handed to the uncaught exception handler of the thread
+			if (metrics != null)
+				metrics.countDrop(ServerMetrics.DropReason.INTERNAL_ERROR);
+			logger.log(Level.WARNING, "Error handling a request from " + source, re);
+		} finally {
+			exchanges.release(exchange);
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return whether every receiver thread is running
+	 */
+	public boolean isAlive() {
+		if (receivers.isEmpty())
+			return false;
+		for (Thread thread : receivers)
+			if (!thread.isAlive())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the local address of the <b>index</b>-th endpoint
+	 */
+	public InetSocketAddress getLocalAddress(int index) throws IOException {
+		return (InetSocketAddress) channels.get(index).getLocalAddress();
+	}
+
+	/**
+	 * Closes the sockets and waits a few seconds for the requests in flight.
+	 */
+	public synchronized void close() {
+		running = false;
+		try {
+			for (DatagramChannel channel : channels)
+				channel.close();
+			for (Thread receiver : receivers)
+				receiver.join();
+			if (executor != null) {
+				executor.shutdown();
+				executor.awaitTermination(5, TimeUnit.SECONDS);
+			}
+		} catch (IOException ioe) {
+			logger.warning("Error while closing: " + ioe);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -11,7 +11,6 @@ import de.javawi.jstun.attribute.AbstractMappedAddress;
 import de.javawi.jstun.attribute.ErrorCode;
 import de.javawi.jstun.attribute.Software;
 import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
-import de.javawi.jstun.attribute.exception.AttributeReflectionException;
 import de.javawi.jstun.attribute.exception.MessageAttributeException;
 import de.javawi.jstun.header.MessageHeader;
 import de.javawi.jstun.header.MessageHeaderInterface;
@@ -39,7 +38,7 @@ public class BindingRequestTest {
 	}
 	
 	public boolean test() throws UtilityException, MessageHeaderParsingException,
-	MessageAttributeException, IOException, MessageTypeException, AttributeReflectionException {
+	MessageAttributeException, IOException, MessageTypeException {
 		s1 = new DatagramSocket();
 		
 		s1.connect(stunServer, port);
@@ -14,10 +14,13 @@ package de.javawi.jstun.test;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
@@ -25,32 +28,91 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
-import de.javawi.jstun.attribute.AbstractMappedAddress;
-import de.javawi.jstun.attribute.MappedAddress;
-import de.javawi.jstun.attribute.UnknownAttribute;
-import de.javawi.jstun.attribute.XORMappedAddress;
-import de.javawi.jstun.attribute.exception.AttributeReflectionException;
-import de.javawi.jstun.attribute.exception.MessageAttributeException;
-import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
-import de.javawi.jstun.attribute.exception.UnknownMessageAttributeException;
-import de.javawi.jstun.header.MessageHeader;
-import de.javawi.jstun.header.MessageHeaderInterface;
-import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
-import de.javawi.jstun.header.exception.MessageHeaderParsingException;
-import de.javawi.jstun.header.messagetype.method.Binding;
-import de.javawi.jstun.util.IPv4Address;
-import de.javawi.jstun.util.UtilityException;
+import javax.management.JMException;
+
+import de.javawi.jstun.server.AdminHttpServer;
+import de.javawi.jstun.server.BindingResponseTemplates;
+import de.javawi.jstun.server.CredentialStore;
+import de.javawi.jstun.server.DatagramRing;
+import de.javawi.jstun.server.ListenerMetrics;
+import de.javawi.jstun.server.NioStunServer;
+import de.javawi.jstun.server.NonceManager;
+import de.javawi.jstun.server.PipelinedStunServer;
+import de.javawi.jstun.server.RateLimiter;
+import de.javawi.jstun.server.ResponseCache;
+import de.javawi.jstun.server.ReusePortStunServer;
+import de.javawi.jstun.server.ServerMetrics;
+import de.javawi.jstun.server.StunRequestHandler;
+import de.javawi.jstun.server.TrafficMonitor;
+import de.javawi.jstun.server.VirtualThreadStunServer;
+import de.javawi.jstun.trace.TraceEvent;
+import de.javawi.jstun.trace.Tracer;
 
 /*
  * This class implements a STUN server as described in RFC 3489.
  * The server requires a machine that is dual-homed to be functional.
  */
 public class StunServer {
-	private static Logger logger = Logger.getLogger("de.javawi.stun.test.StunServer");
+
+	/**
+	 * How the sockets are served.
+	 */
+	public enum Mode {
+		/** one blocking DatagramSocket and thread per endpoint */
+		CLASSIC,
+		/** every endpoint in a single non-blocking event loop, see {@link NioStunServer} */
+		NIO,
+		/** one event loop per core, sharing the endpoints, see {@link ReusePortStunServer} */
+		REUSEPORT,
+		/** a virtual thread per request, see {@link VirtualThreadStunServer} */
+		VIRTUAL,
+		/** receive, process and send threads joined by rings, see {@link PipelinedStunServer} */
+		PIPELINED
+	}
+
+	private final Mode mode;
 	Vector<DatagramSocket> sockets;
+	private final List<Thread> receivers = new ArrayList<Thread>();
+	private NioStunServer nio;
+	private ReusePortStunServer sharded;
+	private VirtualThreadStunServer virtual;
+	private PipelinedStunServer pipelined;
+	private RateLimiter rateLimiter;
+	private TrafficMonitor trafficMonitor;
+	private ServerMetrics metrics;
+	private ResponseCache responseCache;
+	private CredentialStore credentials;
+	private NonceManager nonceManager;
+	private boolean fingerprintRequired;
+	// immutable, shared by the receiver threads
+	final BindingResponseTemplates templates = new BindingResponseTemplates(true);
 
 	public StunServer(int primaryPort, InetAddress primary, int secondaryPort,
 			InetAddress secondary) throws SocketException {
+		this(primaryPort, primary, secondaryPort, secondary, Mode.CLASSIC);
+	}
+
+	public StunServer(int primaryPort, InetAddress primary, int secondaryPort,
+			InetAddress secondary, Mode mode) throws SocketException {
+		this.mode = mode;
+		if (mode != Mode.CLASSIC) {
+			List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+			endpoints.add(new InetSocketAddress(primary, primaryPort));
+			endpoints.add(new InetSocketAddress(primary, secondaryPort));
+			endpoints.add(new InetSocketAddress(secondary, primaryPort));
+			endpoints.add(new InetSocketAddress(secondary, secondaryPort));
+			if (mode == Mode.NIO)
+				nio = new NioStunServer(endpoints, templates);
+			else if (mode == Mode.VIRTUAL)
+				virtual = new VirtualThreadStunServer(endpoints, templates);
+			else if (mode == Mode.PIPELINED)
+				pipelined = new PipelinedStunServer(endpoints, templates);
+			else
+				sharded = new ReusePortStunServer(endpoints, templates, Runtime.getRuntime()
+						.availableProcessors());
+			return;
+		}
+
 		sockets = new Vector<DatagramSocket>();
 		sockets.add(new DatagramSocket(primaryPort, primary));
 		sockets.add(new DatagramSocket(secondaryPort, primary));
@@ -58,14 +120,201 @@ public class StunServer {
 		sockets.add(new DatagramSocket(secondaryPort, secondary));
 	}
 
-	public void start() throws SocketException {
+	/**
+	 * Limits the requests answered to each source, whatever the mode. Must
+	 * be called before {@link #start()}.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		if (nio != null)
+			nio.setRateLimiter(rateLimiter);
+		if (sharded != null)
+			sharded.setRateLimiter(rateLimiter);
+		if (virtual != null)
+			virtual.setRateLimiter(rateLimiter);
+		if (pipelined != null)
+			pipelined.setRateLimiter(rateLimiter);
+	}
+
+	/**
+	 * Reports the heaviest sources, whatever the mode. Must be called
+	 * before {@link #start()}.
+	 */
+	public void setTrafficMonitor(TrafficMonitor trafficMonitor) {
+		this.trafficMonitor = trafficMonitor;
+		if (nio != null)
+			nio.setTrafficMonitor(trafficMonitor);
+		if (sharded != null)
+			sharded.setTrafficMonitor(trafficMonitor);
+		if (virtual != null)
+			virtual.setTrafficMonitor(trafficMonitor);
+		if (pipelined != null)
+			pipelined.setTrafficMonitor(trafficMonitor);
+	}
+
+	/**
+	 * Counts requests, responses, drops and latencies, whatever the mode.
+	 * Must be called before {@link #start()}.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+		if (nio != null)
+			nio.setMetrics(metrics);
+		if (sharded != null)
+			sharded.setMetrics(metrics);
+		if (virtual != null)
+			virtual.setMetrics(metrics);
+		if (pipelined != null)
+			pipelined.setMetrics(metrics);
+	}
+
+	/**
+	 * Answers retransmitted requests from <b>responseCache</b>, whatever the
+	 * mode. Must be called before {@link #start()}.
+	 */
+	public void setResponseCache(ResponseCache responseCache) {
+		this.responseCache = responseCache;
+		if (nio != null)
+			nio.setResponseCache(responseCache);
+		if (sharded != null)
+			sharded.setResponseCache(responseCache);
+		if (virtual != null)
+			virtual.setResponseCache(responseCache);
+		if (pipelined != null)
+			pipelined.setResponseCache(responseCache);
+	}
+
+	/**
+	 * Requires requests to be signed with the keys of <b>credentials</b>,
+	 * whatever the mode. Must be called before {@link #start()}.
+	 */
+	public void setCredentials(CredentialStore credentials) {
+		this.credentials = credentials;
+		if (nio != null)
+			nio.setCredentials(credentials);
+		if (sharded != null)
+			sharded.setCredentials(credentials);
+		if (virtual != null)
+			virtual.setCredentials(credentials);
+		if (pipelined != null)
+			pipelined.setCredentials(credentials);
+	}
+
+	/**
+	 * Makes the credentials long-term ones, of the realm and nonces of
+	 * <b>nonceManager</b>, whatever the mode. Must be called before
+	 * {@link #start()}.
+	 */
+	public void setNonceManager(NonceManager nonceManager) {
+		this.nonceManager = nonceManager;
+		if (nio != null)
+			nio.setNonceManager(nonceManager);
+		if (sharded != null)
+			sharded.setNonceManager(nonceManager);
+		if (virtual != null)
+			virtual.setNonceManager(nonceManager);
+		if (pipelined != null)
+			pipelined.setNonceManager(nonceManager);
+	}
+
+	/**
+	 * Drops the datagrams without a valid FINGERPRINT, whatever the mode,
+	 * e.g. when media shares the ports. Must be called before
+	 * {@link #start()}.
+	 */
+	public void setFingerprintRequired(boolean fingerprintRequired) {
+		this.fingerprintRequired = fingerprintRequired;
+		if (nio != null)
+			nio.setFingerprintRequired(fingerprintRequired);
+		if (sharded != null)
+			sharded.setFingerprintRequired(fingerprintRequired);
+		if (virtual != null)
+			virtual.setFingerprintRequired(fingerprintRequired);
+		if (pipelined != null)
+			pipelined.setFingerprintRequired(fingerprintRequired);
+	}
+
+	public void start() throws IOException {
+		if (mode == Mode.NIO) {
+			nio.start();
+			return;
+		} else if (mode == Mode.REUSEPORT) {
+			sharded.start();
+			return;
+		} else if (mode == Mode.VIRTUAL) {
+			virtual.start();
+			return;
+		} else if (mode == Mode.PIPELINED) {
+			pipelined.start();
+			return;
+		}
+
 		for (DatagramSocket socket : sockets) {
 			socket.setReceiveBufferSize(2000);
 			StunServerReceiverThread ssrt = new StunServerReceiverThread(socket);
+			receivers.add(ssrt);
 			ssrt.start();
 		}
 	}
 
+	/**
+	 * @return whether every thread serving the sockets is running
+	 */
+	public boolean isAlive() {
+		switch (mode) {
+		case NIO:
+			return nio.isAlive();
+		case REUSEPORT:
+			return sharded.isAlive();
+		case VIRTUAL:
+			return virtual.isAlive();
+		case PIPELINED:
+			return pipelined.isAlive();
+		default:
+			if (receivers.isEmpty())
+				return false;
+			for (Thread receiver : receivers)
+				if (!receiver.isAlive())
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Adds the liveness of the server to /healthz, and the queue depths of
+	 * the mode to /metrics. Must be called after {@link #start()}.
+	 */
+	public void exportTo(AdminHttpServer admin) {
+		admin.addHealthCheck("receivers", this::isAlive);
+		if (mode == Mode.NIO) {
+			admin.addGauge("stun_pending_dropped_total", "Responses dropped on a full send queue.", null,
+					nio::getDroppedResponses);
+		} else if (mode == Mode.REUSEPORT) {
+			admin.addGauge("stun_pending_dropped_total", "Responses dropped on a full send queue.", null,
+					sharded::getDroppedResponses);
+		} else if (mode == Mode.VIRTUAL) {
+			admin.addGauge("stun_requests_in_flight", "Requests being handled.", null,
+					virtual::getRequestsInFlight);
+		} else if (mode == Mode.PIPELINED) {
+			for (int i = 0; i < pipelined.getRingCount(); i++) {
+				DatagramRing ring = pipelined.getRing(i);
+				String labels = "ring=\"" + i + "\"";
+				admin.addGauge("stun_ring_depth", "Datagrams received but not sent yet.", labels,
+						ring::getDepth);
+				admin.addGauge("stun_ring_full_stalls_total", "Times the receiver waited for a full ring.",
+						labels, ring::getFullStalls);
+			}
+		}
+		if (responseCache != null) {
+			admin.addGauge("stun_response_cache_hits_total", "Retransmissions answered from the cache.", null,
+					responseCache::getHits);
+			admin.addGauge("stun_response_cache_misses_total", "Requests not found in the cache.", null,
+					responseCache::getMisses);
+			admin.addGauge("stun_response_cache_evictions_total", "Live responses evicted for lack of room.",
+					null, responseCache::getEvictions);
+		}
+	}
+
 	/*
 	 * Inner class to handle incoming packets and react accordingly.
 	 * I decided not to start a thread for every received Binding Request, because the time
@@ -75,115 +324,57 @@ public class StunServer {
 	 */
 	class StunServerReceiverThread extends Thread {
 		private final DatagramSocket receiverSocket;
-//		private DatagramSocket changedPort;
-//		private DatagramSocket changedIP;
-		private DatagramSocket changedPortIP;
 
 		StunServerReceiverThread(DatagramSocket datagramSocket) {
 			receiverSocket = datagramSocket;
-//			for (DatagramSocket socket : sockets) {
-//				if ((socket.getLocalPort() != receiverSocket.getLocalPort())
-//						&& (socket.getLocalAddress().equals(receiverSocket.getLocalAddress())))
-//					changedPort = socket;
-//				if ((socket.getLocalPort() == receiverSocket.getLocalPort())
-//						&& (!socket.getLocalAddress().equals(receiverSocket.getLocalAddress())))
-//					changedIP = socket;
-//				if ((socket.getLocalPort() != receiverSocket.getLocalPort())
-//						&& (!socket.getLocalAddress().equals(receiverSocket.getLocalAddress())))
-//					changedPortIP = socket;
-//			}
 		}
 
 		public void run() {
+			// reused for every datagram
+			byte[] receiveData = new byte[200];
+			DatagramPacket receive = new DatagramPacket(receiveData, receiveData.length);
+			ByteBuffer request = ByteBuffer.wrap(receiveData);
+			StunRequestHandler handler = new StunRequestHandler(templates);
+			handler.setRateLimiter(rateLimiter);
+			handler.setTrafficMonitor(trafficMonitor);
+			handler.setMetrics(metrics);
+			handler.setResponseCache(responseCache);
+			handler.setCredentials(credentials);
+			handler.setNonceManager(nonceManager);
+			handler.setFingerprintRequired(fingerprintRequired);
+			ListenerMetrics listener = (metrics == null) ? null : metrics
+					.getListener((InetSocketAddress) receiverSocket.getLocalSocketAddress());
+			byte[] sendData = new byte[512];
+			ByteBuffer response = ByteBuffer.wrap(sendData);
+			DatagramPacket send = new DatagramPacket(sendData, sendData.length);
+			int localPort = receiverSocket.getLocalPort();
+
 			while (true) {
 				try {
-					DatagramPacket receive = new DatagramPacket(new byte[200], 200);
+					receive.setLength(receiveData.length);
 					receiverSocket.receive(receive);
-					logger.finest(receiverSocket.getLocalAddress().getHostAddress() + ":"
-							+ receiverSocket.getLocalPort() + " datagram received from "
-							+ receive.getAddress().getHostAddress() + ":" + receive.getPort());
-					
-					MessageHeader receiveMH = new MessageHeader(receive.getData());
-
-					try {
-						boolean stun2;
-
-						/* TODO backwards compatibility checks
-						 * check for unknown attributes
-						 */
-						stun2 = receiveMH.equalMagicCookie();
-							/* TODO if it's stun1 :
-							 * SHOULD not use multiplexing
-							 */
-
-
-						// TODO check for unknown attributes
-						receiveMH.parseAttributes(receive.getData()); // TODO doesn't work
-
-						if (receiveMH.getType().getEncoding() == MessageHeaderInterface.BINDINGREQUEST) {
-							logger.config(receiverSocket.getLocalAddress().getHostAddress()
-									+ ":" + receiverSocket.getLocalPort()
-									+ " Binding Request received from "
-									+ receive.getAddress().getHostAddress() + ":"
-									+ receive.getPort());
-
-							MessageHeader sendMH = new MessageHeader(new Binding(MessageHeaderClass.SUCCESSRESPONSE));
-							sendMH.setTransactionID(receiveMH.getTransactionID());
-
-							AbstractMappedAddress ma;
-							// (XOR)Mapped address attribute
-							if (stun2)
-								ma = new XORMappedAddress();
-							else
-								ma = new MappedAddress();
-
-							// TODO make it work independently of the IP version
-							ma.setAddress(new IPv4Address((Inet4Address) receive.getAddress()));
-							ma.setPort(receive.getPort());
-							sendMH.addMessageAttribute(ma);
-						}
-						else {
-							/* TODO there are no other cases for now,
-							 * as there is one single method defined in the RFC.
-							 * what should we do here?
-							 */
-						}
-					} catch (UnknownMessageAttributeException umae) {
-						umae.printStackTrace();
-						// Generate Binding error response
-						MessageHeader sendMH = new MessageHeader(new Binding(MessageHeaderClass.ERRORRESPONSE));
-						sendMH.setTransactionID(receiveMH.getTransactionID());
-
-						// Unknown attributes
-						UnknownAttribute ua = new UnknownAttribute();
-						// TODO rework here, non e' normale che al primo unknown spedisce il pacchetto
-						ua.addAttribute(umae.getType());
-						sendMH.addMessageAttribute(ua);
-
-						byte[] data = sendMH.getBytes();
-						DatagramPacket send = new DatagramPacket(data, data.length);
-						send.setPort(receive.getPort());
-						send.setAddress(receive.getAddress());
-						receiverSocket.send(send);
-						logger.config(changedPortIP.getLocalAddress().getHostAddress() + ":"
-								+ changedPortIP.getLocalPort()
-								+ " send Binding Error Response to "
-								+ send.getAddress().getHostAddress() + ":" + send.getPort());
+					long received = 0;
+					if (listener != null) {
+						received = System.nanoTime();
+						listener.countReceived();
 					}
+					Tracer.trace(TraceEvent.DATAGRAM_RECEIVED, receive.getAddress(), receive.getPort(),
+							localPort);
+
+					int length = handler.handle(request, 0, receive.getLength(), receive.getAddress(),
+							receive.getPort(), response, 0);
+					if (length == 0)
+						continue;
+
+					send.setData(sendData, 0, length);
+					send.setAddress(receive.getAddress());
+					send.setPort(receive.getPort());
+					receiverSocket.send(send);
+					if (listener != null)
+						listener.countSent(received);
+					Tracer.trace(TraceEvent.RESPONSE_SENT, send.getAddress(), send.getPort(), length);
 				} catch (IOException ioe) {
 					ioe.printStackTrace();
-				} catch (MessageAttributeParsingException mape) {
-					mape.printStackTrace();
-				} catch (MessageAttributeException mae) {
-					mae.printStackTrace();
-				} catch (MessageHeaderParsingException mhpe) {
-					mhpe.printStackTrace();
-				} catch (UtilityException ue) {
-					ue.printStackTrace();
-				} catch (ArrayIndexOutOfBoundsException aioobe) {
-					aioobe.printStackTrace();
-				} catch (AttributeReflectionException e) {
-					e.printStackTrace();
 				}
 			}
 		}
@@ -194,29 +385,45 @@ public class StunServer {
 	 */
 	public static void main(String args[]) {
 		try {
-			if (args.length != 4) {
-				System.out.println("usage: java de.javawi.jstun.test.demo.StunServer PORT1 IP1 PORT2 IP2");
+			if ((args.length < 4) || (args.length > 6)) {
+				System.out.println("usage: java de.javawi.jstun.test.demo.StunServer PORT1 IP1 PORT2 IP2 [MODE [ADMINPORT]]");
 				System.out.println();
 				System.out.println(" PORT1 - the first port that should be used by the server");
 				System.out.println("   IP1 - the first ip address that should be used by the server");
 				System.out.println(" PORT2 - the second port that should be used by the server");
 				System.out.println("   IP2 - the second ip address that should be used by the server");
+				System.out.println("  MODE - classic (default), nio, reuseport, virtual or pipelined");
+				System.out.println(" ADMINPORT - the loopback port serving /metrics and /healthz, if any");
 				System.exit(0);
 			}
 			Handler fh = new FileHandler("logging_server.txt");
 			fh.setFormatter(new SimpleFormatter());
 			Logger.getLogger("de.javawi.stun").addHandler(fh);
 			Logger.getLogger("de.javawi.stun").setLevel(Level.ALL);
+			Tracer.start();
+			Mode mode = (args.length >= 5) ? Mode.valueOf(args[4].toUpperCase()) : Mode.CLASSIC;
 			StunServer ss = new StunServer(Integer.parseInt(args[0]), InetAddress
 					.getByName(args[1]), Integer.parseInt(args[2]), InetAddress
-					.getByName(args[3]));
+					.getByName(args[3]), mode);
+			ServerMetrics metrics = new ServerMetrics();
+			ss.setMetrics(metrics);
+			ss.setResponseCache(new ResponseCache());
+			metrics.register("StunServer");
 			ss.start();
+			if (args.length == 6) {
+				AdminHttpServer admin = new AdminHttpServer(new InetSocketAddress(InetAddress
+						.getLoopbackAddress(), Integer.parseInt(args[5])), metrics);
+				ss.exportTo(admin);
+				admin.start();
+			}
 		} catch (SocketException se) {
 			se.printStackTrace();
 		} catch (UnknownHostException uhe) {
 			uhe.printStackTrace();
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
+		} catch (JMException jme) {
+			jme.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.trace;
+
+/**
+ * What a trace record is about, and how its value is printed.
+ */
+public enum TraceEvent {
+	/** a datagram was received; the value is the local port */
+	DATAGRAM_RECEIVED("port", false),
+	/** a response was sent; the value is its length */
+	RESPONSE_SENT("length", false),
+	/** a message header was parsed; the value is the message type */
+	HEADER_PARSED("type", true),
+	/** an unknown comprehension-optional attribute was skipped; the value is its type */
+	UNKNOWN_OPTIONAL_ATTRIBUTE("type", true),
+	/** a malformed message was dropped; the value is the datagram length */
+	MALFORMED_MESSAGE("length", false),
+	/** a message with a malformed attribute was dropped; the value is the datagram length */
+	MALFORMED_ATTRIBUTE("length", false);
+
+	private final String valueName;
+	private final boolean hex;
+
+	private TraceEvent(String valueName, boolean hex) {
+		this.valueName = valueName;
+		this.hex = hex;
+	}
+
+	void formatValue(StringBuilder line, int value) {
+		line.append(valueName).append('=');
+		if (hex)
+			line.append(String.format("0x%04x", value));
+		else
+			line.append(value);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.trace;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The records of one thread, waiting to be drained. The owner thread is
+ * the only writer and the drainer the only reader, so a slot is handed
+ * over with a release store of the written count, and handed back with a
+ * release store of the read count. A record that does not fit is dropped
+ * rather than waited for.
+ */
+final class TraceRing {
+	// the time, the header, and the two halves of the address
+	final static int LONGS = 4;
+
+	private final static VarHandle WRITTEN;
+	private final static VarHandle READ;
+	private final static VarHandle DROPPED;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			WRITTEN = lookup.findVarHandle(TraceRing.class, "written", long.class);
+			READ = lookup.findVarHandle(TraceRing.class, "read", long.class);
+			DROPPED = lookup.findVarHandle(TraceRing.class, "dropped", long.class);
+		} catch (ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+	final Thread owner;
+	final String threadName;
+	final long[] records;
+	private final int mask;
+	private long written;
+	private long read;
+	private long dropped;
+
+	/**
+	 * @param size	the number of records, a power of two
+	 */
+	TraceRing(Thread owner, int size) {
+		this.owner = owner;
+		this.threadName = owner.getName();
+		this.records = new long[size * LONGS];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Called by the owner thread only.
+	 */
+	void write(long time, long header, long high, long low) {
+		long w = written;
+		if (w - (long) READ.getAcquire(this) > mask) {
+			DROPPED.setOpaque(this, dropped + 1);
+			return;
+		}
+		int i = (int) (w & mask) * LONGS;
+		records[i] = time;
+		records[i + 1] = header;
+		records[i + 2] = high;
+		records[i + 3] = low;
+		WRITTEN.setRelease(this, w + 1);
+	}
+
+	/**
+	 * @return the count of records written so far, whose slots may be read
+	 */
+	long getWritten() {
+		return (long) WRITTEN.getAcquire(this);
+	}
+
+	long getRead() {
+		return read;
+	}
+
+	/**
+	 * Hands the slots up to <b>read</b> back to the owner. Called by the
+	 * drainer only.
+	 */
+	void setRead(long read) {
+		READ.setRelease(this, read);
+	}
+
+	/**
+	 * @return the index in {@link #records} of record number <b>sequence</b>
+	 */
+	int index(long sequence) {
+		return (int) (sequence & mask) * LONGS;
+	}
+
+	long getDropped() {
+		return (long) DROPPED.getOpaque(this);
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.trace;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.javawi.jstun.util.IPv4Address;
+import de.javawi.jstun.util.Utility;
+
+/**
+ * Tracing for the packet path, in place of building log messages there.
+ * <p>
+ * {@link #trace} writes a fixed-size binary record, a timestamp, a
+ * {@link TraceEvent}, an int value and optionally a peer address and
+ * port, into a ring of the calling thread. The first record of a thread
+ * allocates its ring; after that nothing is formatted, allocated or
+ * locked, and a full ring drops the record instead of waiting. Virtual
+ * threads, which are too many and too short-lived to each own a ring, go
+ * untraced and their records count as dropped, as do those of threads
+ * beyond {@link #MAX_RINGS}. A daemon thread drains the rings, formats
+ * one record in every {@link #setSampling(TraceEvent, int) n} of each
+ * event, and logs it to the "de.javawi.stun.trace" logger at INFO.
+ * <p>
+ * Until {@link #start()} is called, tracing costs a volatile read.
+ */
+public final class Tracer {
+	private static Logger logger = Logger.getLogger("de.javawi.stun.trace");
+
+	public final static int DEFAULT_RING_SIZE = 1024;
+	// beyond this, threads go untraced
+	final static int MAX_RINGS = 256;
+	// Thread.isVirtual(), or null before Java 21
+	private final static MethodHandle IS_VIRTUAL = findIsVirtual();
+	private final static long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// the address halves of an IPv4 address, as ::ffff:a.b.c.d
+	private final static long IPV4_MAPPED = 0xFFFFL << 32;
+	private final static TraceEvent[] EVENTS = TraceEvent.values();
+
+	private static volatile boolean enabled;
+	private static volatile int ringSize = DEFAULT_RING_SIZE;
+	private final static ThreadLocal<TraceRing> local = new ThreadLocal<TraceRing>();
+	private final static List<TraceRing> rings = new CopyOnWriteArrayList<TraceRing>();
+	private final static AtomicInteger ringCount = new AtomicInteger();
+	private final static LongAdder untraced = new LongAdder();
+	private final static AtomicIntegerArray sampling = new AtomicIntegerArray(EVENTS.length);
+	// guarded by the drain lock
+	private final static long[] seen = new long[EVENTS.length];
+	private static long removedDropped;
+	private final static Object drainLock = new Object();
+	private static Thread drainer;
+
+	// to turn System.nanoTime() into wall-clock time
+	private final static long startNanos = System.nanoTime();
+	private final static long startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+	static {
+		for (int i = 0; i < EVENTS.length; i++)
+			sampling.set(i, 1);
+	}
+
+	private Tracer() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void trace(TraceEvent event, int value) {
+		if (enabled)
+			record(event, value, 0, 0, 0);
+	}
+
+	/**
+	 * @param address	the peer address
+	 * @param port		the peer port
+	 */
+	public static void trace(TraceEvent event, InetAddress address, int port, int value) {
+		if (!enabled)
+			return;
+		if (address instanceof Inet4Address) {
+			record(event, value, port, 0, IPV4_MAPPED | (IPv4Address.toInt((Inet4Address) address) & 0xFFFFFFFFL));
+		} else {
+			byte[] bytes = address.getAddress();
+			record(event, value, port, Utility.getLong(bytes, 0), Utility.getLong(bytes, 8));
+		}
+	}
+
+	private static void record(TraceEvent event, int value, int port, long high, long low) {
+		TraceRing ring = local.get();
+		if ((ring == null) && ((ring = register()) == null)) {
+			untraced.increment();
+			return;
+		}
+		long header = ((long) event.ordinal() << 48) | ((long) (port & 0xFFFF) << 32) | (value & 0xFFFFFFFFL);
+		ring.write(System.nanoTime(), header, high, low);
+	}
+
+	private static TraceRing register() {
+		if (isVirtual(Thread.currentThread()))
+			return null;
+		int count;
+		do {
+			count = ringCount.get();
+			if (count >= MAX_RINGS)
+				return null;
+		} while (!ringCount.compareAndSet(count, count + 1));
+		TraceRing ring = new TraceRing(Thread.currentThread(), ringSize);
+		rings.add(ring);
+		local.set(ring);
+		return ring;
+	}
+
+	private static MethodHandle findIsVirtual() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+					MethodType.methodType(boolean.class));
+		} catch (ReflectiveOperationException roe) {
+			return null;
+		}
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(thread);
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Formats only one record in every <b>every</b> of <b>event</b>; the
+	 * others are drained unread. Defaults to 1.
+	 */
+	public static void setSampling(TraceEvent event, int every) {
+		if (every < 1)
+			throw new IllegalArgumentException("Sampling must be at least 1: " + every);
+		sampling.set(event.ordinal(), every);
+	}
+
+	public static void start() {
+		start(DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Enables tracing and starts the drainer.
+	 *
+	 * @param size	the records of the ring of each thread, a power of two;
+	 *            	rings already created keep their size
+	 */
+	public static synchronized void start(int size) {
+		if (Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("Ring size must be a power of two: " + size);
+		if (drainer != null)
+			throw new IllegalStateException("Already started");
+		ringSize = size;
+		drainer = new Thread(Tracer::drainLoop, "stun-trace");
+		drainer.setDaemon(true);
+		enabled = true;
+		drainer.start();
+	}
+
+	/**
+	 * Disables tracing, stops the drainer and drains what is left.
+	 */
+	public static synchronized void stop() {
+		if (drainer == null)
+			return;
+		enabled = false;
+		drainer.interrupt();
+		try {
+			drainer.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		drainer = null;
+		drain();
+	}
+
+	private static void drainLoop() {
+		while (!Thread.currentThread().isInterrupted())
+			if (drain() == 0)
+				LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+	}
+
+	/**
+	 * Drains every ring once, formatting the sampled records.
+	 *
+	 * @return the number of records drained
+	 */
+	static int drain() {
+		synchronized (drainLock) {
+			boolean loggable = logger.isLoggable(Level.INFO);
+			int count = 0;
+			for (TraceRing ring : rings) {
+				boolean alive = ring.owner.isAlive();
+				long end = ring.getWritten();
+				for (long sequence = ring.getRead(); sequence < end; sequence++) {
+					int i = ring.index(sequence);
+					int event = (int) (ring.records[i + 1] >>> 48);
+					if (loggable && (seen[event]++ % sampling.get(event) == 0))
+						logger.info(format(ring, i));
+				}
+				count += (int) (end - ring.getRead());
+				ring.setRead(end);
+				// a dead thread writes no more
+				if (!alive) {
+					rings.remove(ring);
+					ringCount.decrementAndGet();
+					removedDropped += ring.getDropped();
+				}
+			}
+			return count;
+		}
+	}
+
+	private static String format(TraceRing ring, int i) {
+		long[] records = ring.records;
+		long header = records[i + 1];
+		TraceEvent event = EVENTS[(int) (header >>> 48)];
+		StringBuilder line = new StringBuilder(96);
+		line.append(Instant.ofEpochSecond(0, startEpochNanos + records[i] - startNanos));
+		line.append(' ').append(ring.threadName);
+		line.append(' ').append(event.name().toLowerCase());
+		if ((records[i + 2] != 0) || (records[i + 3] != 0))
+			line.append(" peer=").append(formatAddress(records[i + 2], records[i + 3])).append(':')
+					.append((header >>> 32) & 0xFFFF);
+		line.append(' ');
+		event.formatValue(line, (int) header);
+		return line.toString();
+	}
+
+	private static String formatAddress(long high, long low) {
+		byte[] bytes = new byte[16];
+		Utility.putLong(bytes, 0, high);
+		Utility.putLong(bytes, 8, low);
+		try {
+			// a mapped address comes back as an Inet4Address
+			return InetAddress.getByAddress(bytes).getHostAddress();
+		} catch (UnknownHostException uhe) {
+			return "?";
+		}
+	}
+
+	/**
+	 * @return the records lost to a full ring, to a virtual thread, or to a
+	 *         thread beyond {@link #MAX_RINGS}
+	 */
+	public static long getDropped() {
+		long dropped = untraced.sum();
+		for (TraceRing ring : rings)
+			dropped += ring.getDropped();
+		synchronized (drainLock) {
+			return dropped + removedDropped;
+		}
+	}
+}
@@ -13,6 +13,7 @@ package de.javawi.jstun.util;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 public interface Address {
 
@@ -40,6 +41,17 @@ public interface Address {
 
 	public byte[] getBytes() throws UtilityException;
 
+	public Family getFamily();
+
+	/**
+	 * Writes the address in network order at <b>offset</b>, without
+	 * moving the position of <b>data</b>.
+	 *
+	 * @param data		the buffer to write to
+	 * @param offset	the absolute index of the first byte
+	 */
+	public void writeTo(ByteBuffer data, int offset);
+
 	public InetAddress getInetAddress() throws UtilityException, UnknownHostException;
 
 	public int hashCode();
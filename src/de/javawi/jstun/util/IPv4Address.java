@@ -1,9 +1,9 @@
 /*
  * This file is part of JSTUN.
- * 
+ *
  * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
  * reserved.
- * 
+ *
  * This software is licensed under either the GNU Public License (GPL),
  * or the Apache 2.0 license. Copies of both license agreements are
  * included in this distribution.
@@ -13,15 +13,24 @@ package de.javawi.jstun.util;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
 
+/**
+ * An IPv4 address packed in a single int, in network order.
+ * <p>
+ * Instances are immutable and {@link #equals(Object)} and {@link #hashCode()}
+ * allocate nothing, so they can be used as keys of per-client tables.
+ */
 public class IPv4Address implements Address {
 
-	int firstOctet;
-	int secondOctet;
-	int thirdOctet;
-	int fourthOctet;
+	final static int LENGTH = 4;
+	// whether Inet4Address.hashCode() is the address, as in every JDK so far
+	private final static boolean HASH_IS_ADDRESS = hashIsAddress();
+
+	private final int address;
 
 	public IPv4Address(int firstOctet, int secondOctet, int thirdOctet, int fourthOctet)
 			throws UtilityException {
@@ -30,10 +39,14 @@ public class IPv4Address implements Address {
 				|| (fourthOctet > 255)) {
 			throw new UtilityException("Address is malformed.");
 		}
-		this.firstOctet = firstOctet;
-		this.secondOctet = secondOctet;
-		this.thirdOctet = thirdOctet;
-		this.fourthOctet = fourthOctet;
+		this.address = (firstOctet << 24) | (secondOctet << 16) | (thirdOctet << 8) | fourthOctet;
+	}
+
+	/**
+	 * @param address	the 4 octets, the first one in the highest byte
+	 */
+	public IPv4Address(int address) {
+		this.address = address;
 	}
 
 	public IPv4Address(String address) throws UtilityException {
@@ -41,105 +54,138 @@ public class IPv4Address implements Address {
 		if (st.countTokens() != 4) {
 			throw new UtilityException("4 octets in address string are required.");
 		}
-		int i = 0;
+		int result = 0;
 		while (st.hasMoreTokens()) {
-			int temp = Integer.parseInt(st.nextToken());
-			if ((temp < 0) || (temp > 255)) {
+			int temp;
+			try {
+				temp = Integer.parseInt(st.nextToken());
+			} catch (NumberFormatException nfe) {
 				throw new UtilityException("Address is in incorrect format.");
 			}
-			switch (i) {
-				case 0 :
-					firstOctet = temp;
-					++i;
-					break;
-				case 1 :
-					secondOctet = temp;
-					++i;
-					break;
-				case 2 :
-					thirdOctet = temp;
-					++i;
-					break;
-				case 3 :
-					fourthOctet = temp;
-					++i;
-					break;
+			if ((temp < 0) || (temp > 255)) {
+				throw new UtilityException("Address is in incorrect format.");
 			}
+			result = (result << 8) | temp;
 		}
+		this.address = result;
 	}
 
 	public IPv4Address(byte[] address) throws UtilityException {
-		if (address.length < 4) {
+		if (address.length < LENGTH) {
 			throw new UtilityException("4 bytes are required.");
 		}
-		firstOctet = Utility.oneByteToInteger(address[0]);
-		secondOctet = Utility.oneByteToInteger(address[1]);
-		thirdOctet = Utility.oneByteToInteger(address[2]);
-		fourthOctet = Utility.oneByteToInteger(address[3]);
+		this.address = (int) Utility.getUnsignedInt(address, 0);
+	}
+
+	/**
+	 * Reads the 4 bytes at <b>offset</b>, without moving the position of <b>data</b>.
+	 */
+	public IPv4Address(ByteBuffer data, int offset) {
+		this.address = (int) Utility.getUnsignedInt(data, offset);
+	}
+
+	public IPv4Address(Inet4Address address) {
+		this.address = toInt(address);
+	}
+
+	public IPv4Address(InetSocketAddress address) throws UtilityException {
+		InetAddress inet = address.getAddress();
+		if (!(inet instanceof Inet4Address)) {
+			throw new UtilityException(address + " is not an IPv4 socket address.");
+		}
+		this.address = toInt((Inet4Address) inet);
+	}
+
+	private static boolean hashIsAddress() {
+		int[] samples = { 0, 0x7F000001, 0xC0000201, 0x80FF00FE, 0xFFFFFFFF };
+		try {
+			for (int sample : samples) {
+				byte[] bytes = { (byte) (sample >>> 24), (byte) (sample >>> 16), (byte) (sample >>> 8),
+						(byte) sample };
+				if (InetAddress.getByAddress(bytes).hashCode() != sample)
+					return false;
+			}
+			return true;
+		} catch (UnknownHostException uhe) {
+			return false;
+		}
 	}
 
-	public IPv4Address(Inet4Address address) throws UtilityException {
-		byte[] addressByte = address.getAddress();
-		firstOctet = Utility.oneByteToInteger(addressByte[0]);
-		secondOctet = Utility.oneByteToInteger(addressByte[1]);
-		thirdOctet = Utility.oneByteToInteger(addressByte[2]);
-		fourthOctet = Utility.oneByteToInteger(addressByte[3]);
+	/**
+	 * Packs <b>address</b> in an int without copying it, unlike
+	 * {@link InetAddress#getAddress()}. This relies on
+	 * {@link Inet4Address#hashCode()} being the address, which the JDK does
+	 * not specify but has always done; that is checked once, and the address
+	 * copied if it does not hold.
+	 *
+	 * @return the 4 octets, the first one in the highest byte
+	 */
+	public static int toInt(Inet4Address address) {
+		if (HASH_IS_ADDRESS)
+			return address.hashCode();
+		byte[] bytes = address.getAddress();
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8)
+				| (bytes[3] & 0xFF);
+	}
+
+	/**
+	 * @return the 4 octets, the first one in the highest byte
+	 */
+	public int toInt() {
+		return address;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.javawi.jstun.util.Address#toString()
 	 */
 	public String toString() {
-		return firstOctet + "." + secondOctet + "." + thirdOctet + "." + fourthOctet;
+		return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF)
+				+ "." + (address & 0xFF);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.javawi.jstun.util.Address#getBytes()
 	 */
 	public byte[] getBytes() throws UtilityException {
-		byte[] result = new byte[4];
-		result[0] = Utility.integerToOneByte(firstOctet);
-		result[1] = Utility.integerToOneByte(secondOctet);
-		result[2] = Utility.integerToOneByte(thirdOctet);
-		result[3] = Utility.integerToOneByte(fourthOctet);
+		byte[] result = new byte[LENGTH];
+		Utility.putUnsignedInt(result, 0, address);
 		return result;
 	}
 
+	public Family getFamily() {
+		return Family.IPv4;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.javawi.jstun.util.Address#writeTo(java.nio.ByteBuffer, int)
+	 */
+	public void writeTo(ByteBuffer data, int offset) {
+		Utility.putUnsignedInt(data, offset, address);
+	}
+
 	/* (non-Javadoc)
 	 * @see com.javawi.jstun.util.Address#getInetAddress()
 	 */
 	public InetAddress getInetAddress() throws UtilityException, UnknownHostException {
-		byte[] address = new byte[4];
-		address[0] = Utility.integerToOneByte(firstOctet);
-		address[1] = Utility.integerToOneByte(secondOctet);
-		address[2] = Utility.integerToOneByte(thirdOctet);
-		address[3] = Utility.integerToOneByte(fourthOctet);
-		return InetAddress.getByAddress(address);
+		return InetAddress.getByAddress(getBytes());
 	}
 
 	/* (non-Javadoc)
 	 * @see com.javawi.jstun.util.Address#equals(java.lang.Object)
 	 */
 	public boolean equals(Object obj) {
-		if (obj == null)
+		if (obj == this)
+			return true;
+		if (!(obj instanceof IPv4Address))
 			return false;
-		try {
-			byte[] data1 = getBytes();
-			byte[] data2 = ((Address) obj).getBytes();
-			if ((data1[0] == data2[0]) && (data1[1] == data2[1]) && (data1[2] == data2[2])
-					&& (data1[3] == data2[3]))
-				return true;
-			return false;
-		} catch (UtilityException ue) {
-			return false;
-		}
+		return address == ((IPv4Address) obj).address;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.javawi.jstun.util.Address#hashCode()
 	 */
 	public int hashCode() {
-		return (firstOctet << 24) + (secondOctet << 16) + (thirdOctet << 8) + fourthOctet;
+		return address;
 	}
 
 }
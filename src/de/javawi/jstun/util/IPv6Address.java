@@ -1,25 +1,164 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
 package de.javawi.jstun.util;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * An IPv6 address packed in two longs, in network order.
+ * <p>
+ * Instances are immutable and {@link #equals(Object)} and {@link #hashCode()}
+ * allocate nothing, so they can be used as keys of per-client tables. The
+ * scope of link-local addresses is not kept.
+ */
+public class IPv6Address implements Address {
+
+	final static int LENGTH = 16;
+
+	private final long high; // first 8 bytes
+	private final long low; // last 8 bytes
 
-public class IPv6Address implements Address { // TODO implementare IPv6
+	public IPv6Address(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
 
+	/**
+	 * Parses a textual IPv6 address. Host names are not resolved.
+	 */
 	public IPv6Address(String address) throws UtilityException {
-		// TODO Auto-generated constructor stub
+		if (address.indexOf(':') < 0) {
+			throw new UtilityException("Address " + address + " is not an IPv6 literal.");
+		}
+		byte[] bytes;
+		try {
+			// a literal containing ':' is parsed without any lookup
+			bytes = InetAddress.getByName(address).getAddress();
+		} catch (UnknownHostException uhe) {
+			throw new UtilityException("Address " + address + " is in incorrect format.");
+		}
+		if (bytes.length != LENGTH) {
+			// IPv4-mapped literals are converted to IPv4 addresses by InetAddress
+			bytes = toMapped(bytes);
+		}
+		this.high = Utility.getLong(bytes, 0);
+		this.low = Utility.getLong(bytes, 8);
 	}
 
 	public IPv6Address(byte[] address) throws UtilityException {
-		// TODO Auto-generated constructor stub
+		if (address.length < LENGTH) {
+			throw new UtilityException("16 bytes are required.");
+		}
+		this.high = Utility.getLong(address, 0);
+		this.low = Utility.getLong(address, 8);
+	}
+
+	/**
+	 * Reads the 16 bytes at <b>offset</b>, without moving the position of <b>data</b>.
+	 */
+	public IPv6Address(ByteBuffer data, int offset) {
+		this.high = Utility.getLong(data, offset);
+		this.low = Utility.getLong(data, offset + 8);
+	}
+
+	public IPv6Address(Inet6Address address) {
+		// unlike Inet4Address there is no way to avoid the copy
+		byte[] bytes = address.getAddress();
+		this.high = Utility.getLong(bytes, 0);
+		this.low = Utility.getLong(bytes, 8);
+	}
+
+	public IPv6Address(InetSocketAddress address) throws UtilityException {
+		this(toInet6Address(address));
+	}
+
+	private static Inet6Address toInet6Address(InetSocketAddress address) throws UtilityException {
+		InetAddress inet = address.getAddress();
+		if (!(inet instanceof Inet6Address)) {
+			throw new UtilityException(address + " is not an IPv6 socket address.");
+		}
+		return (Inet6Address) inet;
+	}
+
+	private static byte[] toMapped(byte[] ipv4) {
+		byte[] result = new byte[LENGTH];
+		result[10] = (byte) 0xFF;
+		result[11] = (byte) 0xFF;
+		System.arraycopy(ipv4, 0, result, 12, ipv4.length);
+		return result;
+	}
+
+	/**
+	 * @return the first 8 bytes of the address
+	 */
+	public long getHigh() {
+		return high;
+	}
+
+	/**
+	 * @return the last 8 bytes of the address
+	 */
+	public long getLow() {
+		return low;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder(39);
+		for (int i = 0; i < 8; i++) {
+			long half = (i < 4) ? high : low;
+			if (i > 0)
+				sb.append(':');
+			sb.append(Integer.toHexString((int) (half >>> (48 - 16 * (i & 3))) & 0xFFFF));
+		}
+		return sb.toString();
 	}
 
 	public byte[] getBytes() throws UtilityException {
-		return null;
+		byte[] result = new byte[LENGTH];
+		Utility.putLong(result, 0, high);
+		Utility.putLong(result, 8, low);
+		return result;
+	}
+
+	public Family getFamily() {
+		return Family.IPv6;
+	}
+
+	public void writeTo(ByteBuffer data, int offset) {
+		Utility.putLong(data, offset, high);
+		Utility.putLong(data, offset + 8, low);
+	}
+
+	public InetAddress getInetAddress() throws UtilityException, UnknownHostException {
+		// keeps IPv4-mapped addresses in the IPv6 family
+		return Inet6Address.getByAddress(null, getBytes(), -1);
+	}
+
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof IPv6Address))
+			return false;
+		IPv6Address other = (IPv6Address) obj;
+		return (high == other.high) && (low == other.low);
 	}
 
-	public InetAddress getInetAddress() throws UtilityException,
-			UnknownHostException {
-		return null;
+	public int hashCode() {
+		long h = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
 	}
 
 }
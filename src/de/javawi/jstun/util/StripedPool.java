@@ -0,0 +1,85 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+
+package de.javawi.jstun.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A bounded set of reusable objects, e.g. costly to create ones like a
+ * {@link javax.crypto.Mac}, borrowed for one call and released right
+ * after.
+ * <p>
+ * Unlike a ThreadLocal, the objects outlive the threads using them, so a
+ * server handling each request on a new virtual thread reuses them as well
+ * as one with a few long-lived threads. Each thread starts looking for an
+ * object in the slot its id hashes to, so that threads rarely contend for
+ * one; when every slot is empty a new object is created, and one released
+ * when every slot is full is dropped.
+ */
+public final class StripedPool<T> {
+	private final AtomicReferenceArray<T> slots;
+	private final int mask;
+	private final int shift;
+	private final Supplier<T> factory;
+
+	/**
+	 * Holds at least twice as many objects as there are processors.
+	 */
+	public StripedPool(Supplier<T> factory) {
+		this(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1), factory);
+	}
+
+	/**
+	 * @param size		the number of objects held, a power of two
+	 * @param factory	creates the objects when none is free
+	 */
+	public StripedPool(int size, Supplier<T> factory) {
+		if (Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("Size must be a power of two: " + size);
+		this.slots = new AtomicReferenceArray<T>(size);
+		this.mask = size - 1;
+		this.shift = 32 - Integer.numberOfTrailingZeros(size);
+		this.factory = factory;
+	}
+
+	private int start() {
+		return (shift == 32) ? 0 : (System.identityHashCode(Thread.currentThread()) * 0x9E3779B9) >>> shift;
+	}
+
+	/**
+	 * @return a free object, or a new one if there is none
+	 */
+	public T borrow() {
+		int start = start();
+		for (int i = 0; i <= mask; i++) {
+			int slot = (start + i) & mask;
+			T object;
+			if ((slots.get(slot) != null) && ((object = slots.getAndSet(slot, null)) != null))
+				return object;
+		}
+		return factory.get();
+	}
+
+	/**
+	 * Hands back an object borrowed, which the caller must no longer use.
+	 */
+	public void release(T object) {
+		int start = start();
+		for (int i = 0; i <= mask; i++) {
+			int slot = (start + i) & mask;
+			if ((slots.get(slot) == null) && slots.compareAndSet(slot, null, object))
+				return;
+		}
+	}
+}
@@ -11,9 +11,18 @@
 
 package de.javawi.jstun.util;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class Utility {
 
 	// loses the 3 highest bytes
+	/**
+	 * @deprecated Use {@link #putUnsignedByte(byte[], int, int)} instead
+	 */
+	@Deprecated
 	public static final byte integerToOneByte(int value)
 			throws UtilityException {
 //		if ((value > Math.pow(2, 7)) || (value < 0)) {
@@ -25,6 +34,10 @@ public class Utility {
 
 	// converts to Big-Endian
 	// Only takes the 2 lower bytes of the int
+	/**
+	 * @deprecated Use {@link #putUnsignedShort(byte[], int, int)} instead
+	 */
+	@Deprecated
 	public static final byte[] integerToTwoBytes(int value)
 			throws UtilityException {
 		byte[] result = new byte[2];
@@ -37,6 +50,10 @@ public class Utility {
 		return result;
 	}
 
+	/**
+	 * @deprecated Use {@link #putUnsignedInt(byte[], int, long)} instead
+	 */
+	@Deprecated
 	public static final byte[] integerToFourBytes(int value)
 			throws UtilityException {
 		byte[] result = new byte[4];
@@ -47,11 +64,19 @@ public class Utility {
 		return result;
 	}
 
+	/**
+	 * @deprecated Use {@link #getUnsignedByte(byte[], int)} instead
+	 */
+	@Deprecated
 	public static final int oneByteToInteger(byte value)
 			throws UtilityException {
 		return (int) value & 0xFF;
 	}
 
+	/**
+	 * @deprecated Use {@link #getUnsignedShort(byte[], int)} instead
+	 */
+	@Deprecated
 	public static final int twoBytesToInteger(byte[] value)
 			throws UtilityException {
 		if (value.length < 2) {
@@ -62,6 +87,10 @@ public class Utility {
 		return ((temp0 << 8) + temp1);
 	}
 
+	/**
+	 * @deprecated Use {@link #getUnsignedInt(byte[], int)} instead
+	 */
+	@Deprecated
 	public static final long fourBytesToLong(byte[] value)
 			throws UtilityException { // TODO should be int?
 		if (value.length < 4) {
@@ -74,6 +103,116 @@ public class Utility {
 		return ((((long) temp0 << 24) + (temp1 << 16) + (temp2 << 8) + temp3) & 0xFFFFFFFFL);
 	}
 
+	/*
+	 * Big-endian primitives at an absolute offset, for byte[] and ByteBuffer.
+	 *
+	 * They are backed by VarHandles, which the JIT compiles to single,
+	 * possibly unaligned, loads and stores. The position and the byte order
+	 * of a ByteBuffer are ignored and left untouched, and nothing is
+	 * allocated. Out of range offsets throw IndexOutOfBoundsException.
+	 */
+
+	private static final VarHandle SHORT_ARRAY = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INT_ARRAY = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG_ARRAY = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle SHORT_BUFFER = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INT_BUFFER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG_BUFFER = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	public static final int getUnsignedByte(byte[] data, int offset) {
+		return data[offset] & 0xFF;
+	}
+
+	public static final int getUnsignedByte(ByteBuffer data, int offset) {
+		return data.get(offset) & 0xFF;
+	}
+
+	/**
+	 * @return the unsigned 16 bit value at <b>offset</b>, in the range 0..0xFFFF
+	 */
+	public static final int getUnsignedShort(byte[] data, int offset) {
+		return (short) SHORT_ARRAY.get(data, offset) & 0xFFFF;
+	}
+
+	/**
+	 * @return the unsigned 16 bit value at <b>offset</b>, in the range 0..0xFFFF
+	 */
+	public static final int getUnsignedShort(ByteBuffer data, int offset) {
+		return (short) SHORT_BUFFER.get(data, offset) & 0xFFFF;
+	}
+
+	/**
+	 * @return the unsigned 32 bit value at <b>offset</b>, in the range 0..0xFFFFFFFF
+	 */
+	public static final long getUnsignedInt(byte[] data, int offset) {
+		return (int) INT_ARRAY.get(data, offset) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return the unsigned 32 bit value at <b>offset</b>, in the range 0..0xFFFFFFFF
+	 */
+	public static final long getUnsignedInt(ByteBuffer data, int offset) {
+		return (int) INT_BUFFER.get(data, offset) & 0xFFFFFFFFL;
+	}
+
+	public static final long getLong(byte[] data, int offset) {
+		return (long) LONG_ARRAY.get(data, offset);
+	}
+
+	public static final long getLong(ByteBuffer data, int offset) {
+		return (long) LONG_BUFFER.get(data, offset);
+	}
+
+	/**
+	 * Writes the lowest byte of <b>value</b> at <b>offset</b>.
+	 */
+	public static final void putUnsignedByte(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+	}
+
+	/**
+	 * Writes the lowest byte of <b>value</b> at <b>offset</b>.
+	 */
+	public static final void putUnsignedByte(ByteBuffer data, int offset, int value) {
+		data.put(offset, (byte) value);
+	}
+
+	/**
+	 * Writes the 2 lower bytes of <b>value</b> at <b>offset</b>.
+	 */
+	public static final void putUnsignedShort(byte[] data, int offset, int value) {
+		SHORT_ARRAY.set(data, offset, (short) value);
+	}
+
+	/**
+	 * Writes the 2 lower bytes of <b>value</b> at <b>offset</b>.
+	 */
+	public static final void putUnsignedShort(ByteBuffer data, int offset, int value) {
+		SHORT_BUFFER.set(data, offset, (short) value);
+	}
+
+	/**
+	 * Writes the 4 lower bytes of <b>value</b> at <b>offset</b>.
+	 */
+	public static final void putUnsignedInt(byte[] data, int offset, long value) {
+		INT_ARRAY.set(data, offset, (int) value);
+	}
+
+	/**
+	 * Writes the 4 lower bytes of <b>value</b> at <b>offset</b>.
+	 */
+	public static final void putUnsignedInt(ByteBuffer data, int offset, long value) {
+		INT_BUFFER.set(data, offset, (int) value);
+	}
+
+	public static final void putLong(byte[] data, int offset, long value) {
+		LONG_ARRAY.set(data, offset, value);
+	}
+
+	public static final void putLong(ByteBuffer data, int offset, long value) {
+		LONG_BUFFER.set(data, offset, value);
+	}
+
 	// TODO it's not so deprecated after all
 	/**
 	 * <p>
@@ -15,13 +15,35 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import de.javawi.jstun.util.*;
 import de.javawi.jstun.attribute.*;
+import de.javawi.jstun.header.*;
+import de.javawi.jstun.server.*;
+import de.javawi.jstun.jfr.*;
+import de.javawi.jstun.trace.*;
 
 public class AllTests {
 
 	public static Test suite() {
 		TestSuite suite = new TestSuite("Test for de.javawi.jstun");
 		suite.addTestSuite(AddressTest.class);
+		suite.addTestSuite(StripedPoolTest.class);
+		suite.addTestSuite(UtilityTest.class);
 		suite.addTestSuite(MappedAddressTest.class);
+		suite.addTestSuite(MessageIntegrityTest.class);
+		suite.addTestSuite(FingerprintTest.class);
+		suite.addTestSuite(MessageHeaderTest.class);
+		suite.addTestSuite(TransactionIdTest.class);
+		suite.addTestSuite(TransactionIdGeneratorTest.class);
+		suite.addTestSuite(BindingResponseTemplateTest.class);
+		suite.addTestSuite(NioStunServerTest.class);
+		suite.addTestSuite(RateLimiterTest.class);
+		suite.addTestSuite(HeavyHittersTest.class);
+		suite.addTestSuite(ServerMetricsTest.class);
+		suite.addTestSuite(AdminHttpServerTest.class);
+		suite.addTestSuite(ResponseCacheTest.class);
+		suite.addTestSuite(NonceManagerTest.class);
+		suite.addTestSuite(StunRequestHandlerTest.class);
+		suite.addTestSuite(StunEventsTest.class);
+		suite.addTestSuite(TracerTest.class);
 		return suite;
 	}
 
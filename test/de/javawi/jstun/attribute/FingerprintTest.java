@@ -0,0 +1,119 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderDecoder;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class FingerprintTest extends TestCase {
+
+	public FingerprintTest(String mesg) {
+		super(mesg);
+	}
+
+	private static MessageHeader request() throws Exception {
+		return new MessageHeader(new MessageType(MessageHeaderInterface.BINDING, MessageHeaderClass.REQUEST))
+				.initHeader();
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.Fingerprint.check(ByteBuffer, int, int)'
+	 */
+	@Test
+	public void testCheck() throws Exception {
+		ByteBuffer data = MessageIntegrityTest.sampleRequest();
+		int length = data.limit();
+		assertTrue(Fingerprint.check(data, 0, length));
+		assertEquals(0, data.position());
+		assertEquals(length, data.limit());
+
+		// not the whole datagram
+		assertFalse(Fingerprint.check(data, 0, length - 4));
+		data.put(30, (byte) 0);
+		assertFalse(Fingerprint.check(data, 0, length));
+
+		// an RTP packet of the same size
+		ByteBuffer rtp = ByteBuffer.allocate(length);
+		rtp.put(0, (byte) 0x80);
+		rtp.put(1, (byte) 0x60);
+		assertFalse(Fingerprint.check(rtp, 0, length));
+
+		// a STUN message without FINGERPRINT
+		MessageHeader request = request();
+		request.addMessageAttribute(new Username("user"));
+		ByteBuffer plain = ByteBuffer.wrap(request.getBytes());
+		assertFalse(Fingerprint.check(plain, 0, plain.limit()));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeader.encodeTo(ByteBuffer)'
+	 */
+	@Test
+	public void testEncodedLast() throws Exception {
+		byte[] key = MessageIntegrity.shortTermKey("secret");
+		MessageHeader request = request();
+		Fingerprint fingerprint = new Fingerprint();
+		request.addMessageAttribute(fingerprint);
+		request.addMessageAttribute(new Username("user"));
+		request.addMessageAttribute(new MessageIntegrity(MessageAttributeType.MessageIntegrity, key));
+		ByteBuffer data = ByteBuffer.allocate(128);
+		data.position(4);
+		request.encodeTo(data);
+		int length = data.position() - 4;
+
+		assertTrue(Fingerprint.check(data, 4, length));
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(data, 4, length);
+		int integrity = decoder.findAttribute(MessageAttributeType.MessageIntegrity.getEncoding());
+		assertEquals(4 + length - 8 - 24, integrity);
+		assertTrue(MessageIntegrity.verify(data, 4, integrity, key));
+
+		MessageHeader parsed = MessageHeader.parseHeader(decoder);
+		parsed.parseAttributes(decoder);
+		assertEquals(fingerprint.getValue(), ((Fingerprint) parsed
+				.getMessageAttribute(MessageAttributeType.Fingerprint)).getValue());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.Fingerprint.append(ByteBuffer, int, int)'
+	 */
+	@Test
+	public void testAppend() throws Exception {
+		MessageHeader request = request();
+		request.addMessageAttribute(new Username("user"));
+		byte[] bytes = request.getBytes();
+		ByteBuffer data = ByteBuffer.allocate(64);
+		data.put(bytes);
+
+		int length = Fingerprint.append(data, 0, bytes.length);
+		assertEquals(bytes.length + 8, length);
+		assertTrue(Fingerprint.check(data, 0, length));
+		assertEquals(bytes.length, data.position());
+
+		// a reused CRC32 gives the same value whatever its state
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		assertEquals(length, Fingerprint.append(data, 0, bytes.length, crc));
+		assertTrue(Fingerprint.check(data, 0, length, crc));
+		assertTrue(Fingerprint.check(data, 0, length, crc));
+	}
+}
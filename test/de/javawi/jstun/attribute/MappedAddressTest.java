@@ -11,16 +11,19 @@
 
 package de.javawi.jstun.attribute;
 
+import java.nio.ByteBuffer;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
 
-import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
 import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.TransactionId;
+import de.javawi.jstun.util.IPv6Address;
 import de.javawi.jstun.util.Utility;
 
 public class MappedAddressTest extends TestCase {
-	XORMappedAddress map;
+	MappedAddress map;
 	XORMappedAddress xor;
 	
 	int port = 63584;
@@ -45,9 +48,12 @@ public class MappedAddressTest extends TestCase {
 		data[5] = 56;
 		data[6] = -23;
 		data[7] = 76;
-		map = new XORMappedAddress(MessageAttributeType.MappedAddress, data);
-		
-		xor = new XORMappedAddress(data);
+		map = new MappedAddress(data);
+
+		byte[] xData = data.clone();
+		Utility.putUnsignedShort(xData, 2, port ^ (MessageHeaderInterface.MAGICCOOKIE >>> 16));
+		Utility.putUnsignedInt(xData, 4, address ^ MessageHeaderInterface.MAGICCOOKIE);
+		xor = new XORMappedAddress(xData);
 	}
 
 	/*
@@ -84,8 +90,10 @@ public class MappedAddressTest extends TestCase {
 			int xPort = port ^ MessageHeaderInterface.MAGICCOOKIE >>> 16;
 			int xAddr = address ^ MessageHeaderInterface.MAGICCOOKIE;
 			
-			byte[] portByte = Utility.integerToTwoBytes(xPort);
-			byte[] addressByte = Utility.integerToFourBytes(xAddr);
+			byte[] portByte = new byte[2];
+			Utility.putUnsignedShort(portByte, 0, xPort);
+			byte[] addressByte = new byte[4];
+			Utility.putUnsignedInt(addressByte, 0, xAddr);
 			
 			assertTrue(resultXor[0] == 0); // type
 			assertTrue(resultXor[1] == 0x20); // XORMapped type = 0x20
@@ -148,4 +156,39 @@ public class MappedAddressTest extends TestCase {
 
 	}
 
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.XORMappedAddress.XORMappedAddress(ByteBuffer, int, int, TransactionId)'
+	 */
+	@Test
+	public void testIPv6() throws Exception {
+		TransactionId id = new TransactionId(0xB7E7A701BC34D686L, 0xFA87DFAE);
+		IPv6Address addr6 = new IPv6Address("2001:db8:1234:5678:11:2233:4455:6677");
+
+		XORMappedAddress xor6 = new XORMappedAddress();
+		xor6.setAddress(addr6);
+		xor6.setPort(32853);
+		assertEquals(24, xor6.getLength());
+
+		// RFC 5769, 2.3
+		ByteBuffer buffer = ByteBuffer.allocate(24);
+		xor6.encodeTo(buffer, id);
+		byte[] expected = {
+				0x00, 0x20, 0x00, 0x14, 0x00, 0x02, (byte) 0xa1, 0x47,
+				0x01, 0x13, (byte) 0xa9, (byte) 0xfa, (byte) 0xa5, (byte) 0xd3, (byte) 0xf1, 0x79,
+				(byte) 0xbc, 0x25, (byte) 0xf4, (byte) 0xb5, (byte) 0xbe, (byte) 0xd2, (byte) 0xb9, (byte) 0xd9 };
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("byte " + i, expected[i], buffer.get(i));
+
+		XORMappedAddress parsed = new XORMappedAddress(buffer, 4, 20, id);
+		assertEquals(addr6, parsed.getAddress());
+		assertEquals(32853, parsed.getPort());
+
+		buffer.clear();
+		MappedAddress map6 = new MappedAddress();
+		map6.setAddress(addr6);
+		map6.setPort(32853);
+		map6.encodeTo(buffer);
+		assertEquals(addr6, new MappedAddress(buffer, 4, 20).getAddress());
+	}
+
 }
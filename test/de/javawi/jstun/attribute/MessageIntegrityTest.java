@@ -0,0 +1,150 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.attribute;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderDecoder;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class MessageIntegrityTest extends TestCase {
+	// the sample request of RFC 5769 section 2.1
+	final static int[] SAMPLE_REQUEST = { 0x00, 0x01, 0x00, 0x58, 0x21, 0x12, 0xa4, 0x42, 0xb7, 0xe7, 0xa7,
+			0x01, 0xbc, 0x34, 0xd6, 0x86, 0xfa, 0x87, 0xdf, 0xae, 0x80, 0x22, 0x00, 0x10, 0x53, 0x54, 0x55,
+			0x4e, 0x20, 0x74, 0x65, 0x73, 0x74, 0x20, 0x63, 0x6c, 0x69, 0x65, 0x6e, 0x74, 0x00, 0x24, 0x00,
+			0x04, 0x6e, 0x00, 0x01, 0xff, 0x80, 0x29, 0x00, 0x08, 0x93, 0x2f, 0xf9, 0xb1, 0x51, 0x26, 0x3b,
+			0x36, 0x00, 0x06, 0x00, 0x09, 0x65, 0x76, 0x74, 0x6a, 0x3a, 0x68, 0x36, 0x76, 0x59, 0x20, 0x20,
+			0x20, 0x00, 0x08, 0x00, 0x14, 0x9a, 0xea, 0xa7, 0x0c, 0xbf, 0xd8, 0xcb, 0x56, 0x78, 0x1e, 0xf2,
+			0xb5, 0xb2, 0xd3, 0xf2, 0x49, 0xc1, 0xb5, 0x71, 0xa2, 0x80, 0x28, 0x00, 0x04, 0xe5, 0x7a, 0x3b,
+			0xcf };
+	final static String SAMPLE_PASSWORD = "VOkJxbRl1RmTxUk/WvJxBt";
+
+	byte[] key;
+
+	public MessageIntegrityTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		key = MessageIntegrity.shortTermKey("secret");
+	}
+
+	static ByteBuffer sampleRequest() {
+		ByteBuffer data = ByteBuffer.allocate(SAMPLE_REQUEST.length);
+		for (int b : SAMPLE_REQUEST)
+			data.put((byte) b);
+		data.flip();
+		return data;
+	}
+
+	private static MessageHeader request() throws Exception {
+		return new MessageHeader(new MessageType(MessageHeaderInterface.BINDING, MessageHeaderClass.REQUEST))
+				.initHeader();
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.MessageIntegrity.verify(ByteBuffer, int, int, byte[])'
+	 */
+	@Test
+	public void testSampleRequest() throws Exception {
+		ByteBuffer data = sampleRequest();
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(data);
+		int integrity = decoder.findAttribute(MessageAttributeType.MessageIntegrity.getEncoding());
+		assertEquals(76, integrity);
+
+		// the FINGERPRINT after it is left out of the HMAC
+		assertTrue(MessageIntegrity.verify(data, 0, integrity, MessageIntegrity.shortTermKey(SAMPLE_PASSWORD)));
+		assertFalse(MessageIntegrity.verify(data, 0, integrity, key));
+		assertEquals(0, data.position());
+		assertEquals(SAMPLE_REQUEST.length, data.limit());
+		assertFalse(MessageIntegrity.verify(data, 0, 40, key));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.MessageIntegrity.encodeOver(ByteBuffer, int, int)'
+	 */
+	@Test
+	public void testEncode() throws Exception {
+		for (MessageAttributeType type : new MessageAttributeType[] { MessageAttributeType.MessageIntegrity,
+				MessageAttributeType.MessageIntegritySHA256 }) {
+			MessageHeader request = request();
+			request.addMessageAttribute(new Username("user"));
+			MessageIntegrity integrity = new MessageIntegrity(type, key);
+			request.addMessageAttribute(integrity);
+			ByteBuffer data = ByteBuffer.allocate(128);
+			data.position(8);
+			request.encodeTo(data);
+			data.flip();
+
+			MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(data, 8, data.limit() - 8);
+			int offset = decoder.findAttribute(type.getEncoding());
+			assertEquals(8 + MessageHeaderInterface.HEADERSIZE + 8, offset);
+			assertTrue(MessageIntegrity.verify(data, 8, offset, key));
+			assertFalse(MessageIntegrity.verify(data, 8, offset, MessageIntegrity.shortTermKey("other")));
+
+			MessageHeader parsed = MessageHeader.parseHeader(decoder);
+			parsed.parseAttributes(decoder);
+			MessageIntegrity received = (MessageIntegrity) parsed.getMessageAttribute(type);
+			assertTrue(Arrays.equals(integrity.getHmac(), received.getHmac()));
+
+			// any change to the message is detected
+			data.put(offset - 1, (byte) 'x');
+			assertFalse(MessageIntegrity.verify(data, 8, offset, key));
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.MessageIntegrity.append(MessageAttributeType, byte[], ByteBuffer, int, int)'
+	 */
+	@Test
+	public void testAppend() throws Exception {
+		MessageHeader request = request();
+		request.addMessageAttribute(new Username("user"));
+		byte[] bytes = request.getBytes();
+		ByteBuffer data = ByteBuffer.allocate(128);
+		data.put(bytes);
+
+		int length = MessageIntegrity.append(MessageAttributeType.MessageIntegritySHA256, key, data, 0,
+				bytes.length);
+		assertEquals(bytes.length + 4 + MessageIntegrity.SHA256_LENGTH, length);
+		assertEquals(length - MessageHeaderInterface.HEADERSIZE, data.getShort(2));
+		assertTrue(MessageIntegrity.verify(data, 0, bytes.length, key));
+
+		data.limit(length + 4);
+		try {
+			MessageIntegrity.append(MessageAttributeType.MessageIntegrity, key, data, 0, length);
+			fail("Appended beyond the limit");
+		} catch (BufferOverflowException boe) {
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.MessageIntegrity.longTermKey(String, String, String)'
+	 */
+	@Test
+	public void testLongTermKey() {
+		// MD5("user:realm:pass")
+		byte[] expected = { (byte) 0x84, (byte) 0x93, (byte) 0xfb, (byte) 0xc5, 0x3b, (byte) 0xa5, (byte) 0x82,
+				(byte) 0xfb, 0x4c, 0x04, 0x4c, 0x45, 0x6b, (byte) 0xdc, 0x40, (byte) 0xeb };
+		assertTrue(Arrays.equals(expected, MessageIntegrity.longTermKey("user", "realm", "pass")));
+	}
+}
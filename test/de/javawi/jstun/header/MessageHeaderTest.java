@@ -0,0 +1,246 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.AbstractMappedAddress;
+import de.javawi.jstun.attribute.AbstractMessageAttribute;
+import de.javawi.jstun.attribute.Dummy;
+import de.javawi.jstun.attribute.MessageAttributeRegistry;
+import de.javawi.jstun.attribute.Software;
+import de.javawi.jstun.attribute.XORMappedAddress;
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.attribute.exception.MessageAttributeParsingException;
+import de.javawi.jstun.attribute.exception.UnknownMessageAttributeException;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+import de.javawi.jstun.header.exception.MessageHeaderParsingException;
+import de.javawi.jstun.util.IPv4Address;
+
+public class MessageHeaderTest extends TestCase {
+	// Binding success response carrying a XOR-MAPPED-ADDRESS and an unknown optional attribute
+	byte[] data = {
+			0x01, 0x01, 0x00, 0x14, // type, length
+			0x21, 0x12, (byte) 0xA4, 0x42, // magic cookie
+			1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, // transaction id
+			0x00, 0x20, 0x00, 0x08, // XOR-MAPPED-ADDRESS
+			0x00, 0x01, (byte) 0xD9, 0x72, 0x75, 0x2A, 0x4D, 0x0E,
+			(byte) 0x80, 0x77, 0x00, 0x03, // unknown optional, padded
+			0x61, 0x62, 0x63, 0x00 };
+
+	public MessageHeaderTest(String mesg) {
+		super(mesg);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeaderDecoder.nextAttribute()'
+	 */
+	@Test
+	public void testDecoderWalk() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 3);
+		buffer.position(3);
+		buffer.put(data);
+		buffer.position(3);
+
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(buffer);
+		assertEquals(MessageHeaderInterface.BINDINGRESPONSE, decoder.getTypeEncoding());
+		assertEquals(20, decoder.getMessageLength());
+		assertTrue(decoder.equalMagicCookie());
+
+		assertTrue(decoder.nextAttribute());
+		assertEquals(0x0020, decoder.getAttributeType());
+		assertEquals(3 + 24, decoder.getAttributeValueOffset());
+		assertEquals(8, decoder.getAttributeValueLength());
+
+		assertTrue(decoder.nextAttribute());
+		assertEquals(0x8077, decoder.getAttributeType());
+		assertEquals(3, decoder.getAttributeValueLength());
+
+		assertFalse(decoder.nextAttribute());
+		assertEquals(3, buffer.position());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeader.MessageHeader(ByteBuffer)'
+	 */
+	@Test
+	public void testParseByteBuffer() throws Exception {
+		MessageHeader mh = new MessageHeader(ByteBuffer.wrap(data));
+
+		assertEquals(MessageHeaderInterface.BINDINGRESPONSE, mh.getType().getEncoding());
+		assertTrue(mh.equalMagicCookie());
+		assertEquals(new TransactionId(0x0102030405060708L, 0x090A0B0C), mh.getTransactionID());
+
+		AbstractMappedAddress ma = mh.getMappedAddress();
+		assertNotNull(ma);
+		// the unknown optional attribute keeps its type
+		AbstractMessageAttribute unknown = mh.getMessageAttribute(mh.indexOfMessageAttribute(0x8077, 0));
+		assertTrue(unknown instanceof Dummy);
+		assertEquals(0x8077, unknown.getTypeEncoding());
+		assertNull(mh.getMessageAttribute(MessageAttributeType.Dummy));
+	}
+
+	/**
+	 * An attribute MessageAttributeType lacks.
+	 */
+	static class Priority extends AbstractMessageAttribute {
+		final static int TYPE = 0x0024;
+		final int priority;
+
+		Priority(int priority) {
+			super(TYPE);
+			this.priority = priority;
+		}
+
+		@Override
+		public int getValueLength() {
+			return 4;
+		}
+
+		@Override
+		protected void encodeValue(ByteBuffer buffer, int offset) {
+			buffer.putInt(offset, priority);
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.attribute.MessageAttributeRegistry.register(int, MessageAttributeDecoder)'
+	 */
+	@Test
+	public void testCustomAttribute() throws Exception {
+		MessageAttributeRegistry.register(Priority.TYPE, (buffer, offset, length) -> new Priority(buffer
+				.getInt(offset)));
+		try {
+			MessageHeader mh = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+					MessageHeaderClass.REQUEST)).initHeader();
+			mh.addMessageAttribute(new Priority(0x6e0001ff));
+			byte[] encoded = mh.getBytes();
+			assertEquals(0x00, encoded[20]);
+			assertEquals(0x24, encoded[21]);
+
+			MessageHeader parsed = new MessageHeader(ByteBuffer.wrap(encoded));
+			int index = parsed.indexOfMessageAttribute(Priority.TYPE, 0);
+			assertEquals(0, index);
+			Priority priority = (Priority) parsed.getMessageAttribute(index);
+			assertNull(priority.getType());
+			assertEquals(0x6e0001ff, priority.priority);
+			assertTrue(Arrays.equals(encoded, parsed.getBytes()));
+		} finally {
+			MessageAttributeRegistry.register(Priority.TYPE, null);
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeader.encodeTo(ByteBuffer)'
+	 */
+	@Test
+	public void testEncodeTo() throws Exception {
+		MessageHeader mh = MessageHeader.parseHeader(ByteBuffer.wrap(data));
+		XORMappedAddress xor = new XORMappedAddress();
+		xor.setAddress(new IPv4Address("84.56.233.76"));
+		xor.setPort(63584);
+		mh.addMessageAttribute(xor);
+
+		assertEquals(12, xor.getLength());
+		assertEquals(32, mh.getLength());
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		buffer.position(5);
+		mh.encodeTo(buffer);
+		assertEquals(5 + 32, buffer.position());
+
+		byte[] expected = new byte[32];
+		System.arraycopy(data, 0, expected, 0, 32);
+		expected[3] = 0x0C; // no unknown attribute
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("byte " + i, expected[i], buffer.get(5 + i));
+		assertTrue(Arrays.equals(expected, mh.getBytes()));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeader.addMessageAttribute(AbstractMessageAttribute)'
+	 */
+	@Test
+	public void testWireOrder() throws Exception {
+		MessageHeader mh = MessageHeader.parseHeader(ByteBuffer.wrap(data));
+		Software first = new Software();
+		Software second = new Software();
+		XORMappedAddress xor = new XORMappedAddress();
+		xor.setAddress(new IPv4Address("84.56.233.76"));
+		mh.addMessageAttribute(first);
+		mh.addMessageAttribute(xor);
+		mh.addMessageAttribute(second);
+
+		assertEquals(3, mh.getMessageAttributeCount());
+		assertSame(first, mh.getMessageAttribute(MessageAttributeType.Software));
+		assertSame(xor, mh.getMessageAttribute(1));
+		assertEquals(2, mh.indexOfMessageAttribute(MessageAttributeType.Software, 1));
+		assertEquals(-1, mh.indexOfMessageAttribute(MessageAttributeType.ErrorCode, 0));
+
+		// XOR-MAPPED-ADDRESS is encoded between the two SOFTWARE attributes
+		byte[] encoded = mh.getBytes();
+		assertEquals(0x20, encoded[20 + first.getLength() + 1]);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeader.parseAttributesLazily(MessageHeaderDecoder)'
+	 */
+	@Test
+	public void testParseLazily() throws Exception {
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(ByteBuffer.wrap(data));
+		MessageHeader mh = MessageHeader.parseHeader(decoder);
+		mh.parseAttributesLazily(decoder);
+
+		assertEquals(2, mh.getMessageAttributeCount());
+		assertEquals(data.length, mh.getLength());
+		// the unknown attribute is never decoded, and copied as it is
+		assertTrue(Arrays.equals(data, mh.getBytes()));
+
+		AbstractMappedAddress ma = mh.getMappedAddress();
+		assertEquals(63584, ma.getPort());
+		assertEquals(new IPv4Address("84.56.233.76"), ma.getAddress());
+		assertSame(ma, mh.getMessageAttribute(0));
+
+		byte[] mandatory = data.clone();
+		mandatory[32] = 0x00; // unknown comprehension-required type 0x0077
+		try {
+			MessageHeader.parseHeader(ByteBuffer.wrap(mandatory)).parseAttributesLazily(ByteBuffer.wrap(mandatory));
+			fail("unknown mandatory attribute");
+		} catch (UnknownMessageAttributeException umae) {
+			assertEquals(0x0077, umae.getType());
+		}
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		try {
+			new MessageHeaderDecoder().wrap(ByteBuffer.wrap(data, 0, 30));
+			fail("length field exceeds the datagram");
+		} catch (MessageHeaderParsingException mhpe) {
+			// expected
+		}
+
+		byte[] truncated = data.clone();
+		truncated[23] = 0x40; // XOR-MAPPED-ADDRESS length
+		try {
+			new MessageHeader(truncated);
+			fail("attribute length exceeds the message");
+		} catch (MessageAttributeParsingException mape) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+
+package de.javawi.jstun.header;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TransactionIdGeneratorTest extends TestCase {
+
+	public TransactionIdGeneratorTest(String mesg) {
+		super(mesg);
+	}
+
+	private static void assertUnique(TransactionIdGenerator generator, int count, Set<TransactionId> seen) {
+		for (int i = 0; i < count; i++) {
+			TransactionId id = generator.next();
+			assertEquals(MessageHeaderInterface.TRANSACTIONIDSIZE, id.getBytes().length);
+			assertTrue("duplicate " + id, seen.add(id));
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.SecureTransactionIdGenerator.next()'
+	 */
+	@Test
+	public void testSecureRefills() {
+		// 250 bulk refills
+		assertUnique(new SecureTransactionIdGenerator(4), 1000, new HashSet<TransactionId>());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.SecureTransactionIdGenerator.next()'
+	 */
+	@Test
+	public void testSecureRefillBoundary() {
+		SecureTransactionIdGenerator generator = new SecureTransactionIdGenerator(2);
+		TransactionId first = generator.next();
+		TransactionId last = generator.next();
+		// drawn from the next batch, not the end of the previous one again
+		TransactionId refilled = generator.next();
+		assertFalse(refilled.equals(first));
+		assertFalse(refilled.equals(last));
+		assertFalse(refilled.equals(TransactionId.ZERO));
+
+		try {
+			new SecureTransactionIdGenerator(0);
+			fail("A batch of no ID accepted");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.SecureTransactionIdGenerator.next()'
+	 */
+	@Test
+	public void testSecureThreads() throws Exception {
+		// a shared batch would hand the same IDs to several threads
+		final SecureTransactionIdGenerator generator = new SecureTransactionIdGenerator(8);
+		final int threads = 4;
+		final int count = 2000;
+		final TransactionId[][] drawn = new TransactionId[threads][count];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final TransactionId[] ids = drawn[t];
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ie) {
+					return;
+				}
+				for (int i = 0; i < count; i++)
+					ids[i] = generator.next();
+			});
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+
+		Set<TransactionId> seen = new HashSet<TransactionId>();
+		for (TransactionId[] ids : drawn)
+			for (TransactionId id : ids)
+				assertTrue("duplicate " + id, seen.add(id));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.FastTransactionIdGenerator.next()'
+	 */
+	@Test
+	public void testFast() {
+		assertUnique(new FastTransactionIdGenerator(), 1000, new HashSet<TransactionId>());
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TransactionIdTest extends TestCase {
+	byte[] data = { (byte) 0xFF, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, (byte) 0x80 };
+	TransactionId id;
+
+	public TransactionIdTest(String mesg) {
+		super(mesg);
+	}
+
+	public void setUp() throws Exception {
+		id = TransactionId.read(data, 0);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.TransactionId.read(byte[], int)'
+	 */
+	@Test
+	public void testRead() {
+		assertEquals(0xFF01020304050607L, id.getHigh());
+		assertEquals(0x08090A80, id.getLow());
+		assertEquals("ff0102030405060708090a80", id.toString());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.TransactionId.matches(ByteBuffer, int)'
+	 */
+	@Test
+	public void testMatches() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(20);
+		buffer.position(8);
+		buffer.put(data);
+
+		assertTrue(id.matches(buffer, 8));
+		assertFalse(id.matches(buffer, 7));
+		buffer.put(19, (byte) 0x81);
+		assertFalse(id.matches(buffer, 8));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.TransactionId.writeTo(ByteBuffer, int)'
+	 */
+	@Test
+	public void testWriteTo() {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		id.writeTo(buffer, 4);
+		assertEquals(0, buffer.position());
+		for (int i = 0; i < data.length; i++)
+			assertEquals(data[i], buffer.get(4 + i));
+
+		byte[] bytes = id.getBytes();
+		assertTrue(Arrays.equals(data, bytes));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.TransactionId.equals(Object)'
+	 */
+	@Test
+	public void testEqualsObject() {
+		TransactionId same = new TransactionId(0xFF01020304050607L, 0x08090A80);
+		assertTrue(id.equals(same));
+		assertEquals(id.hashCode(), same.hashCode());
+		assertFalse(id.equals(new TransactionId(0xFF01020304050607L, 0x08090A81)));
+		assertFalse(id.equals(TransactionId.ZERO));
+	}
+}
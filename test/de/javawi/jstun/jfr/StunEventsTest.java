@@ -0,0 +1,153 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.jfr;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+import de.javawi.jstun.header.exception.MessageHeaderParsingException;
+import de.javawi.jstun.server.BindingResponseTemplates;
+import de.javawi.jstun.server.StunRequestHandler;
+
+public class StunEventsTest extends TestCase {
+
+	public StunEventsTest(String mesg) {
+		super(mesg);
+	}
+
+	private static RecordedEvent find(List<RecordedEvent> events, String name) {
+		for (RecordedEvent event : events)
+			if (event.getEventType().getName().equals(name))
+				return event;
+		fail(name + " not recorded");
+		return null;
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.handle(ByteBuffer, int, int, InetAddress, int, ByteBuffer, int)'
+	 */
+	@Test
+	public void testHandler() throws Exception {
+		StunRequestHandler handler = new StunRequestHandler(new BindingResponseTemplates(false));
+		InetAddress address = InetAddress.getByName("192.0.2.1");
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		ByteBuffer data = ByteBuffer.wrap(request.getBytes());
+		ByteBuffer response = ByteBuffer.allocate(512);
+		ByteBuffer garbage = ByteBuffer.allocate(7);
+
+		Path file = Files.createTempFile("jstun", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(StunRequestEvent.class).withoutThreshold();
+			recording.enable(StunResponseEvent.class).withoutThreshold();
+			recording.enable(StunParseFailureEvent.class);
+			recording.start();
+			int length = handler.handle(data, 0, data.limit(), address, 1234, response, 0);
+			assertTrue(length > 0);
+			assertEquals(0, handler.handle(garbage, 0, garbage.limit(), address, 1234, response, 0));
+			recording.stop();
+			recording.dump(file);
+
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+			RecordedEvent received = find(events, "de.javawi.jstun.Request");
+			assertEquals(MessageHeaderInterface.BINDINGREQUEST, received.getInt("messageType"));
+			assertEquals(data.limit(), received.getInt("length"));
+			assertEquals(0, received.getInt("attributeCount"));
+			assertEquals("192.0.2.1", received.getString("address"));
+			assertEquals(request.getTransactionID().toString(), received.getString("transactionId"));
+
+			RecordedEvent sent = find(events, "de.javawi.jstun.Response");
+			assertEquals(MessageHeaderInterface.BINDINGRESPONSE, sent.getInt("messageType"));
+			assertEquals(length, sent.getInt("length"));
+			assertEquals(0, sent.getInt("errorCode"));
+			assertEquals(received.getString("transactionId"), sent.getString("transactionId"));
+			assertTrue(sent.getLong("encodingTime") >= 0);
+
+			RecordedEvent failure = find(events, "de.javawi.jstun.ParseFailure");
+			assertEquals(StunParseFailureEvent.HEADER, failure.getString("stage"));
+			assertEquals(7, failure.getInt("length"));
+			assertEquals(1234, failure.getInt("port"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.header.MessageHeader.parseHeader(ByteBuffer)'
+	 */
+	@Test
+	public void testParseFailure() throws Exception {
+		Path file = Files.createTempFile("jstun", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(StunParseFailureEvent.class);
+			recording.start();
+			try {
+				MessageHeader.parseHeader(ByteBuffer.allocate(3));
+				fail("parsed a truncated header");
+			} catch (MessageHeaderParsingException mhpe) {
+				// expected
+			}
+			recording.stop();
+			recording.dump(file);
+
+			RecordedEvent failure = find(RecordingFile.readAllEvents(file), "de.javawi.jstun.ParseFailure");
+			assertEquals(3, failure.getInt("length"));
+			assertNull(failure.getString("address"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.handle(ByteBuffer, int, int, InetAddress, int, ByteBuffer, int)'
+	 */
+	@Test
+	public void testAuthFailure() throws Exception {
+		StunRequestHandler handler = new StunRequestHandler(new BindingResponseTemplates(false));
+		handler.setCredentials(username -> null);
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		ByteBuffer data = ByteBuffer.wrap(request.getBytes());
+		ByteBuffer response = ByteBuffer.allocate(512);
+
+		Path file = Files.createTempFile("jstun", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(StunAuthFailureEvent.class);
+			recording.start();
+			assertTrue(handler.handle(data, 0, data.limit(), InetAddress.getByName("192.0.2.1"), 1234, response,
+					0) > 0);
+			recording.stop();
+			recording.dump(file);
+
+			RecordedEvent failure = find(RecordingFile.readAllEvents(file), "de.javawi.jstun.AuthFailure");
+			assertEquals(400, failure.getInt("errorCode"));
+			assertEquals(request.getTransactionID().toString(), failure.getString("transactionId"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.header.MessageHeaderInterface;
+
+public class AdminHttpServerTest extends TestCase {
+	ServerMetrics metrics;
+	AdminHttpServer admin;
+	volatile boolean healthy = true;
+
+	public AdminHttpServerTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		metrics = new ServerMetrics();
+		admin = new AdminHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), metrics);
+		admin.addHealthCheck("test", () -> healthy);
+		admin.start();
+	}
+
+	protected void tearDown() throws Exception {
+		admin.close();
+	}
+
+	private String get(String path, int status) throws IOException {
+		InetSocketAddress address = admin.getAddress();
+		URL url = new URL("http", address.getAddress().getHostAddress(), address.getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		assertEquals(status, connection.getResponseCode());
+		InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			body.write(buffer, 0, read);
+		in.close();
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.AdminHttpServer.writeMetrics(StringBuilder)'
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		metrics.countRequest(MessageHeaderInterface.BINDINGREQUEST);
+		metrics.countResponse(MessageHeaderInterface.BINDINGERRORRESPONSE, 420);
+		metrics.countDrop(ServerMetrics.DropReason.RATE_LIMITED);
+		ListenerMetrics listener = metrics.getListener(new InetSocketAddress(InetAddress
+				.getByName("192.0.2.1"), 3478));
+		listener.countReceived();
+		listener.countSent(System.nanoTime());
+		admin.addGauge("stun_ring_depth", "Depth.", "ring=\"0\"", () -> 3);
+		admin.addGauge("stun_other", "Other.", null, () -> 1);
+		admin.addGauge("stun_ring_depth", "Depth.", "ring=\"1\"", () -> 5);
+
+		String text = get("/metrics", 200);
+		assertTrue(text.contains("stun_requests_total{type=\"0x0001\"} 1\n"));
+		assertTrue(text.contains("stun_requests_by_class_total{class=\"request\"} 1\n"));
+		assertTrue(text.contains("stun_error_responses_total{code=\"420\"} 1\n"));
+		assertTrue(text.contains("stun_dropped_total{reason=\"rate_limited\"} 1\n"));
+		assertTrue(text.contains("stun_listener_received_total{listener=\"192.0.2.1:3478\"} 1\n"));
+		assertTrue(text.contains("stun_latency_seconds_count{listener=\"192.0.2.1:3478\"} 1\n"));
+		assertTrue(text.contains("# TYPE stun_latency_seconds summary\n"));
+		assertTrue(text.contains("# TYPE stun_ring_depth gauge\nstun_ring_depth{ring=\"0\"} 3\n"
+				+ "stun_ring_depth{ring=\"1\"} 5\n"));
+		assertTrue(text.contains("stun_other 1\n"));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.AdminHttpServer.serveHealth(HttpExchange)'
+	 */
+	@Test
+	public void testHealth() throws Exception {
+		assertEquals("ok\n", get("/healthz", 200));
+		healthy = false;
+		assertEquals("test failed\n", get("/healthz", 503));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.AdminHttpServer.parseProcLine(String, Map)'
+	 */
+	@Test
+	public void testProcLine() {
+		Map<Integer, Long> drops = new HashMap<Integer, Long>();
+		AdminHttpServer.parseProcLine("   sl  local_address rem_address   st tx_queue rx_queue tr tm->when "
+				+ "retrnsmt   uid  timeout inode ref pointer drops", drops);
+		assertTrue(drops.isEmpty());
+		String line = "  12: 0100007F:0D96 00000000:0000 07 00000000:00000000 00:00000000 00000000"
+				+ "     0        0 4242 2 0000000000000000 17";
+		AdminHttpServer.parseProcLine(line, drops);
+		AdminHttpServer.parseProcLine(line, drops);
+		assertEquals(Long.valueOf(34), drops.get(3478));
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.AbstractMappedAddress;
+import de.javawi.jstun.attribute.MappedAddress;
+import de.javawi.jstun.attribute.Software;
+import de.javawi.jstun.attribute.XORMappedAddress;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderDecoder;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.TransactionId;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class BindingResponseTemplateTest extends TestCase {
+	BindingResponseTemplates templates;
+	ByteBuffer request;
+
+	public BindingResponseTemplateTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		templates = new BindingResponseTemplates(true);
+
+		MessageHeader mh = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		request = ByteBuffer.allocate(64);
+		request.position(7);
+		mh.encodeTo(request);
+		request.flip();
+		request.position(7);
+	}
+
+	private void assertStamped(String address, int port, boolean stun2) throws Exception {
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(request);
+		InetAddress inet = InetAddress.getByName(address);
+
+		ByteBuffer response = ByteBuffer.allocate(templates.getMaxLength() + 3);
+		int length = templates.stamp(response, 3, decoder, inet, port);
+		assertEquals(0, response.position());
+
+		// same bytes as a response built attribute by attribute
+		MessageHeader expected = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.SUCCESSRESPONSE)).initHeader();
+		expected.setTransactionID(decoder.getTransactionID());
+		AbstractMappedAddress ma = stun2 ? new XORMappedAddress() : new MappedAddress();
+		ma.setAddress(inet);
+		ma.setPort(port);
+		expected.addMessageAttribute(ma);
+		if (stun2)
+			expected.addMessageAttribute(new Software());
+		byte[] bytes = expected.getBytes();
+
+		// the whole 128 bit Transaction ID of STUN1 requests is echoed
+		for (int i = 4; i < 8; i++)
+			bytes[i] = request.get(7 + i);
+
+		assertEquals(bytes.length, length);
+		for (int i = 0; i < length; i++)
+			assertEquals("byte " + i, bytes[i], response.get(3 + i));
+
+		MessageHeader parsed = MessageHeader.parseHeader(response.duplicate().position(3));
+		parsed.parseAttributes(new MessageHeaderDecoder().wrap(response, 3, length));
+		assertEquals(port, parsed.getMappedAddress().getPort());
+		assertEquals(ma.getAddress(), parsed.getMappedAddress().getAddress());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.BindingResponseTemplates.stamp(ByteBuffer, int, MessageHeaderDecoder, InetAddress, int)'
+	 */
+	@Test
+	public void testStampIPv4() throws Exception {
+		assertStamped("84.56.233.76", 63584, true);
+	}
+
+	@Test
+	public void testStampIPv6() throws Exception {
+		assertStamped("2001:db8:1234:5678:11:2233:4455:6677", 32853, true);
+	}
+
+	@Test
+	public void testStampStun1() throws Exception {
+		// RFC3489 clients send a random 128 bit Transaction ID instead of the magic cookie
+		new TransactionId(0x0102030405060708L, 0x090A0B0C).writeTo(request, 7 + 4);
+		assertStamped("84.56.233.76", 63584, false);
+	}
+}
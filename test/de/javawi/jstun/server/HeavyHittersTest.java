@@ -0,0 +1,146 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class HeavyHittersTest extends TestCase {
+
+	public HeavyHittersTest(String mesg) {
+		super(mesg);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.CountMinSketch.add(long, long)'
+	 */
+	@Test
+	public void testSlidingWindow() {
+		// 4 slices of 1 second
+		CountMinSketch sketch = new CountMinSketch(4, 1024, 4, 4, TimeUnit.SECONDS);
+		long second = 1000000000L;
+		for (int i = 1; i <= 5; i++)
+			assertEquals(i, sketch.add(7, 0));
+		assertEquals(6, sketch.add(7, 2 * second));
+		assertEquals(6, sketch.estimate(7, 3 * second));
+		// the first slice is dropped
+		assertEquals(1, sketch.estimate(7, 4 * second));
+		assertEquals(0, sketch.estimate(7, 100 * second));
+		assertEquals(0, sketch.estimate(8, 100 * second));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.HeavyHitters.getTop()'
+	 */
+	@Test
+	public void testTop() {
+		HeavyHitters top = new HeavyHitters(new CountMinSketch(4, 1024, 1, 1, TimeUnit.HOURS), 3);
+		for (long key = 1; key <= 20; key++) {
+			// key n sends n events, spread over the stream
+			for (int i = 0; i < key; i++) {
+				long count = top.add(key);
+				if (top.isCandidate(key, count))
+					top.offer(key, count, "k" + key);
+			}
+		}
+		List<HeavyHitters.Entry> entries = top.getTop();
+		assertEquals(3, entries.size());
+		assertEquals("k20", entries.get(0).getLabel());
+		assertEquals(20, entries.get(0).getCount());
+		assertEquals(19, entries.get(1).getKey());
+		assertEquals(18, entries.get(2).getKey());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.HeavyHitters.isCandidate(long, long)'
+	 */
+	@Test
+	public void testConcurrentWorkers() throws Exception {
+		final HeavyHitters top = new HeavyHitters(new CountMinSketch(4, 4096, 1, 1, TimeUnit.HOURS), 3);
+		final int workers = 8;
+		final int events = 20000;
+		final AtomicInteger offers = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[workers];
+		for (int t = 0; t < workers; t++) {
+			final int worker = t;
+			threads[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ie) {
+					return;
+				}
+				for (int i = 0; i < events; i++) {
+					// three heavy keys, and one light key of this worker in four events
+					long key = ((i & 3) == 3) ? 1000 + worker * events + i : 1 + (i & 3);
+					long count = top.add(key);
+					if (top.isCandidate(key, count)) {
+						offers.incrementAndGet();
+						top.offer(key, count, "k" + key);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		List<HeavyHitters.Entry> entries = top.getTop();
+		assertEquals(3, entries.size());
+		for (HeavyHitters.Entry entry : entries) {
+			assertTrue(entry.toString(), (entry.getKey() >= 1) && (entry.getKey() <= 3));
+			assertTrue(entry.toString(), entry.getCount() >= workers * events / 4);
+		}
+		// the members, and the light keys once the stripes are full, take no lock
+		assertTrue("offers " + offers.get(), offers.get() < workers * events / 100);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.TrafficMonitor.recordSource(InetAddress)'
+	 */
+	@Test
+	public void testTrafficMonitor() throws Exception {
+		TrafficMonitor monitor = new TrafficMonitor();
+		InetAddress heavy = InetAddress.getByName("2001:db8::1");
+		for (int i = 0; i < 50; i++)
+			monitor.recordSource(heavy);
+		monitor.recordSource(InetAddress.getByName("192.0.2.1"));
+		List<HeavyHitters.Entry> sources = monitor.getTopSources();
+		assertEquals(heavy, sources.get(0).getLabel());
+		assertEquals(50, sources.get(0).getCount());
+
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		ByteBuffer retransmitted = ByteBuffer.wrap(request.getBytes());
+		for (int i = 0; i < TrafficMonitor.MAX_TRANSMISSIONS; i++)
+			monitor.recordTransaction(retransmitted, 8);
+		assertTrue(monitor.getReusedTransactions().isEmpty());
+		monitor.recordTransaction(retransmitted, 8);
+		List<HeavyHitters.Entry> reused = monitor.getReusedTransactions();
+		assertEquals(1, reused.size());
+		assertEquals(request.getTransactionID(), reused.get(0).getLabel());
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.AbstractMappedAddress;
+import de.javawi.jstun.attribute.ErrorCode;
+import de.javawi.jstun.attribute.MessageIntegrity;
+import de.javawi.jstun.attribute.Username;
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+import de.javawi.jstun.util.IPv4Address;
+
+public class NioStunServerTest extends TestCase {
+	NioStunServer server;
+	DatagramSocket client;
+
+	public NioStunServerTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		server = new NioStunServer(Collections.singletonList(new InetSocketAddress(loopback, 0)),
+				new BindingResponseTemplates(true));
+		server.start();
+		client = new DatagramSocket(0, loopback);
+		client.setSoTimeout(5000);
+	}
+
+	protected void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	private MessageHeader exchange(MessageHeader request) throws Exception {
+		byte[] data = request.getBytes();
+		client.send(new DatagramPacket(data, data.length, server.getLocalAddress(0)));
+
+		DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+		client.receive(receive);
+		MessageHeader response = MessageHeader.parseHeader(receive.getData());
+		response.parseAttributes(receive.getData());
+		assertEquals(request.getTransactionID(), response.getTransactionID());
+		return response;
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.NioStunServer.run()'
+	 */
+	@Test
+	public void testBindingRequest() throws Exception {
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+
+		for (int i = 0; i < 3; i++) {
+			MessageHeader response = exchange(request.initHeader());
+			assertEquals(MessageHeaderInterface.BINDINGRESPONSE, response.getType().getEncoding());
+			AbstractMappedAddress ma = response.getMappedAddress();
+			assertEquals(new IPv4Address("127.0.0.1"), ma.getAddress());
+			assertEquals(client.getLocalPort(), ma.getPort());
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.handle(...)'
+	 */
+	@Test
+	public void testUnknownAttribute() throws Exception {
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		byte[] data = request.getBytes();
+		byte[] withUnknown = new byte[data.length + 8];
+		System.arraycopy(data, 0, withUnknown, 0, data.length);
+		withUnknown[3] = 8; // message length
+		withUnknown[21] = 0x77; // comprehension-required type 0x0077
+		withUnknown[23] = 4;
+		client.send(new DatagramPacket(withUnknown, withUnknown.length, server.getLocalAddress(0)));
+
+		DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+		client.receive(receive);
+		MessageHeader response = MessageHeader.parseHeader(receive.getData());
+		response.parseAttributes(receive.getData());
+		assertEquals(MessageHeaderInterface.BINDINGERRORRESPONSE, response.getType().getEncoding());
+		ErrorCode ec = (ErrorCode) response.getMessageAttribute(MessageAttributeType.ErrorCode);
+		assertEquals(420, ec.getResponseCode());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.ReusePortStunServer.start()'
+	 */
+	@Test
+	public void testReusePort() throws Exception {
+		ReusePortStunServer sharded = new ReusePortStunServer(Collections.singletonList(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)),
+				new BindingResponseTemplates(false), 4);
+		sharded.start();
+		try {
+			InetSocketAddress local = sharded.getLocalAddress(0);
+			for (int i = 0; i < sharded.getShardCount(); i++)
+				assertEquals(local, sharded.getShard(i).getLocalAddress(0));
+
+			MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+					MessageHeaderClass.REQUEST)).initHeader();
+			byte[] data = request.getBytes();
+			client.send(new DatagramPacket(data, data.length, local));
+			DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+			client.receive(receive);
+			assertEquals(MessageHeaderInterface.BINDINGRESPONSE,
+					MessageHeader.parseHeader(receive.getData()).getType().getEncoding());
+		} finally {
+			sharded.close();
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.VirtualThreadStunServer.start()'
+	 */
+	@Test
+	public void testVirtualThreads() throws Exception {
+		VirtualThreadStunServer virtual = new VirtualThreadStunServer(Collections.singletonList(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)),
+				new BindingResponseTemplates(true));
+		virtual.setMaxConcurrentRequests(2);
+		virtual.start();
+		try {
+			MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+					MessageHeaderClass.REQUEST)).initHeader();
+			for (int i = 0; i < 5; i++) {
+				byte[] data = request.initHeader().getBytes();
+				client.send(new DatagramPacket(data, data.length, virtual.getLocalAddress(0)));
+				DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+				client.receive(receive);
+				MessageHeader response = MessageHeader.parseHeader(receive.getData());
+				response.parseAttributes(receive.getData());
+				assertEquals(request.getTransactionID(), response.getTransactionID());
+				assertEquals(client.getLocalPort(), response.getMappedAddress().getPort());
+			}
+		} finally {
+			virtual.close();
+		}
+		assertEquals(0, virtual.getRequestsInFlight());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.PipelinedStunServer.start()'
+	 */
+	@Test
+	public void testPipelined() throws Exception {
+		PipelinedStunServer pipelined = new PipelinedStunServer(Collections.singletonList(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)),
+				new BindingResponseTemplates(true));
+		pipelined.setRingSize(4);
+		pipelined.setProcessors(2);
+		pipelined.start();
+		try {
+			MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+					MessageHeaderClass.REQUEST)).initHeader();
+			// wraps around the ring twice, through both processors
+			for (int i = 0; i < 10; i++) {
+				byte[] data = request.initHeader().getBytes();
+				client.send(new DatagramPacket(data, data.length, pipelined.getLocalAddress(0)));
+				DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+				client.receive(receive);
+				MessageHeader response = MessageHeader.parseHeader(receive.getData());
+				assertEquals(request.getTransactionID(), response.getTransactionID());
+			}
+
+			DatagramRing ring = pipelined.getRing(0);
+			assertEquals(5, ring.getProcessorStats(0).getEvents());
+			assertEquals(5, ring.getProcessorStats(1).getEvents());
+			// the last slot is released just after its response is sent
+			for (int i = 0; (i < 100) && (ring.getDepth() > 0); i++)
+				Thread.sleep(10);
+			assertEquals(0, ring.getDepth());
+		} finally {
+			pipelined.close();
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.NioStunServer.process(SelectionKey)'
+	 */
+	@Test
+	public void testRuntimeException() throws Exception {
+		final byte[] key = MessageIntegrity.shortTermKey("secret");
+		NioStunServer broken = new NioStunServer(Collections.singletonList(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)),
+				new BindingResponseTemplates(false));
+		broken.setCredentials(username -> {
+			if (username.equals("broken"))
+				throw new IllegalStateException("broken store");
+			return key;
+		});
+		broken.setMaxDatagramsPerWakeup(1);
+		broken.start();
+		try {
+			byte[] data = signedRequest("broken", key).getBytes();
+			client.send(new DatagramPacket(data, data.length, broken.getLocalAddress(0)));
+
+			// both read on their own wakeup, the first one dropped
+			MessageHeader request = signedRequest("alice", key);
+			data = request.getBytes();
+			client.send(new DatagramPacket(data, data.length, broken.getLocalAddress(0)));
+			DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+			client.receive(receive);
+			MessageHeader response = MessageHeader.parseHeader(receive.getData());
+			assertEquals(request.getTransactionID(), response.getTransactionID());
+			assertEquals(MessageHeaderInterface.BINDINGRESPONSE, response.getType().getEncoding());
+			assertTrue(broken.isAlive());
+		} finally {
+			broken.close();
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.VirtualThreadStunServer.handle(...)'
+	 */
+	@Test
+	public void testVirtualThreadsRuntimeException() throws Exception {
+		final byte[] key = MessageIntegrity.shortTermKey("secret");
+		VirtualThreadStunServer virtual = new VirtualThreadStunServer(Collections.singletonList(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)),
+				new BindingResponseTemplates(false));
+		virtual.setCredentials(username -> {
+			if (username.equals("broken"))
+				throw new IllegalStateException("broken store");
+			return key;
+		});
+		ServerMetrics metrics = new ServerMetrics();
+		virtual.setMetrics(metrics);
+		virtual.start();
+		try {
+			byte[] data = signedRequest("broken", key).getBytes();
+			client.send(new DatagramPacket(data, data.length, virtual.getLocalAddress(0)));
+
+			// the same pooled handler and buffers, on another thread
+			for (int i = 0; i < 3; i++) {
+				MessageHeader request = signedRequest("alice", key);
+				data = request.getBytes();
+				client.send(new DatagramPacket(data, data.length, virtual.getLocalAddress(0)));
+				DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+				client.receive(receive);
+				MessageHeader response = MessageHeader.parseHeader(receive.getData());
+				assertEquals(request.getTransactionID(), response.getTransactionID());
+			}
+			// counted by its own thread, which may not be done yet
+			for (int i = 0; (i < 100) && (metrics.getDrops(ServerMetrics.DropReason.INTERNAL_ERROR) == 0); i++)
+				Thread.sleep(10);
+			assertEquals(1, metrics.getDrops(ServerMetrics.DropReason.INTERNAL_ERROR));
+		} finally {
+			virtual.close();
+		}
+		assertEquals(0, virtual.getRequestsInFlight());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.PipelinedStunServer.process(DatagramRing, int)'
+	 */
+	@Test
+	public void testPipelinedRuntimeException() throws Exception {
+		final byte[] key = MessageIntegrity.shortTermKey("secret");
+		PipelinedStunServer pipelined = new PipelinedStunServer(Collections.singletonList(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0)),
+				new BindingResponseTemplates(false));
+		pipelined.setCredentials(username -> {
+			if (username.equals("broken"))
+				throw new IllegalStateException("broken store");
+			return key;
+		});
+		ServerMetrics metrics = new ServerMetrics();
+		pipelined.setMetrics(metrics);
+		pipelined.start();
+		try {
+			byte[] data = signedRequest("broken", key).getBytes();
+			client.send(new DatagramPacket(data, data.length, pipelined.getLocalAddress(0)));
+
+			MessageHeader request = signedRequest("alice", key);
+			data = request.getBytes();
+			client.send(new DatagramPacket(data, data.length, pipelined.getLocalAddress(0)));
+			DatagramPacket receive = new DatagramPacket(new byte[512], 512);
+			client.receive(receive);
+			MessageHeader response = MessageHeader.parseHeader(receive.getData());
+			assertEquals(request.getTransactionID(), response.getTransactionID());
+			assertEquals(1, metrics.getDrops(ServerMetrics.DropReason.INTERNAL_ERROR));
+			assertTrue(pipelined.isAlive());
+
+			DatagramRing ring = pipelined.getRing(0);
+			for (int i = 0; (i < 100) && (ring.getDepth() > 0); i++)
+				Thread.sleep(10);
+			assertEquals(0, ring.getDepth());
+		} finally {
+			pipelined.close();
+		}
+	}
+
+	private static MessageHeader signedRequest(String username, byte[] key) throws Exception {
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		request.addMessageAttribute(new Username(username));
+		request.addMessageAttribute(new MessageIntegrity(MessageAttributeType.MessageIntegrity, key));
+		return request;
+	}
+}
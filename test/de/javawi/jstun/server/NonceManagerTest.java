@@ -0,0 +1,96 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class NonceManagerTest extends TestCase {
+	final static long MINUTE = TimeUnit.MINUTES.toMillis(1);
+	InetAddress address;
+	InetAddress other;
+	NonceManager nonces;
+	long now;
+
+	public NonceManagerTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		address = InetAddress.getByName("192.0.2.1");
+		other = InetAddress.getByName("2001:db8::1");
+		nonces = new NonceManager("example.org", 10, TimeUnit.MINUTES);
+		now = System.currentTimeMillis();
+	}
+
+	private NonceManager.Status validate(String nonce, InetAddress address, long now) {
+		// at an offset, as in a request
+		ByteBuffer data = ByteBuffer.allocate(nonce.length() + 8);
+		data.position(8);
+		data.put(nonce.getBytes(StandardCharsets.US_ASCII));
+		return nonces.validate(data, 8, nonce.length(), address, now);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.NonceManager.validate(ByteBuffer, int, int, InetAddress, long)'
+	 */
+	@Test
+	public void testValidate() {
+		String nonce = nonces.issue(address, now);
+		assertEquals(NonceManager.LENGTH, nonce.length());
+		assertEquals(NonceManager.Status.VALID, validate(nonce, address, now));
+		assertEquals(NonceManager.Status.VALID, validate(nonce, address, now + 9 * MINUTE));
+		assertEquals(NonceManager.Status.STALE, validate(nonce, address, now + 10 * MINUTE));
+		assertEquals(NonceManager.Status.INVALID, validate(nonce, other, now));
+
+		String v6 = nonces.issue(other, now);
+		assertEquals(NonceManager.Status.VALID, validate(v6, other, now));
+		assertEquals(NonceManager.Status.INVALID, validate(v6, address, now));
+
+		// a changed time or HMAC, or not a nonce at all
+		char[] forged = nonce.toCharArray();
+		forged[4] = (forged[4] == 'A') ? 'B' : 'A';
+		assertEquals(NonceManager.Status.INVALID, validate(new String(forged), address, now));
+		forged = nonce.toCharArray();
+		forged[31] = (forged[31] == 'A') ? 'B' : 'A';
+		assertEquals(NonceManager.Status.INVALID, validate(new String(forged), address, now));
+		assertEquals(NonceManager.Status.INVALID, validate(nonce.substring(4), address, now));
+		assertEquals(NonceManager.Status.INVALID, validate(nonce.replace(nonce.charAt(10), '='), address,
+				now));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.NonceManager.rotate()'
+	 */
+	@Test
+	public void testRotation() {
+		String first = nonces.issue(address, now);
+		nonces.rotate();
+		String second = nonces.issue(address, now);
+		assertFalse(first.substring(0, 2).equals(second.substring(0, 2)));
+		assertEquals(NonceManager.Status.VALID, validate(first, address, now));
+		assertEquals(NonceManager.Status.VALID, validate(second, address, now));
+
+		// the key is replaced by issuing once it is due, rotate() having
+		// stamped the current one with the clock, a little after now
+		String third = nonces.issue(address, now + 11 * MINUTE);
+		assertEquals(NonceManager.Status.VALID, validate(third, address, now + 11 * MINUTE));
+		assertEquals(NonceManager.Status.VALID, validate(second, address, now + 5 * MINUTE));
+		assertEquals(NonceManager.Status.STALE, validate(first, address, now + 5 * MINUTE));
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.ErrorCode;
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class RateLimiterTest extends TestCase {
+	// 10 requests per second, in bursts of 3
+	RateLimiter limiter;
+
+	public RateLimiterTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		limiter = new RateLimiter(64, 10, 3);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.RateLimiter.tryAcquire(long, long)'
+	 */
+	@Test
+	public void testBurstAndRefill() {
+		long key = 42;
+		assertTrue(limiter.tryAcquire(key, 0));
+		assertTrue(limiter.tryAcquire(key, 0));
+		assertTrue(limiter.tryAcquire(key, 0));
+		assertFalse(limiter.tryAcquire(key, 0));
+		assertTrue(limiter.tryAcquire(43, 0));
+
+		// a token every 100 ms
+		assertFalse(limiter.tryAcquire(key, 99999999));
+		assertTrue(limiter.tryAcquire(key, 100000000));
+		assertFalse(limiter.tryAcquire(key, 100000000));
+
+		// idle for long, the burst is back but not more
+		long later = 10000000000L;
+		for (int i = 0; i < 3; i++)
+			assertTrue(limiter.tryAcquire(key, later));
+		assertFalse(limiter.tryAcquire(key, later));
+
+		assertEquals(8, limiter.getAllowed());
+		assertEquals(4, limiter.getLimited());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.RateLimiter.tryAcquire(long, long)'
+	 */
+	@Test
+	public void testReuse() {
+		RateLimiter tiny = new RateLimiter(1, 10, 1);
+		assertTrue(tiny.tryAcquire(1, 0));
+		// the only entry is taken by a source with an empty bucket
+		assertTrue(tiny.tryAcquire(2, 0));
+		assertEquals(1, tiny.getUntracked());
+		// and reused once it has refilled
+		assertTrue(tiny.tryAcquire(2, 100000000));
+		assertFalse(tiny.tryAcquire(2, 100000000));
+		assertEquals(1, tiny.getUntracked());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.RateLimiter.setIPv4PrefixLength(int)'
+	 */
+	@Test
+	public void testPrefix() throws Exception {
+		limiter.setIPv4PrefixLength(24);
+		limiter.setIPv6PrefixLength(64);
+		for (int i = 1; i <= 3; i++)
+			assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2." + i)));
+		assertFalse(limiter.tryAcquire(InetAddress.getByName("192.0.2.4")));
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.3.1")));
+
+		for (int i = 1; i <= 3; i++)
+			assertTrue(limiter.tryAcquire(InetAddress.getByName("2001:db8::" + i)));
+		assertFalse(limiter.tryAcquire(InetAddress.getByName("2001:db8::ffff:4")));
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("2001:db8:0:1::1")));
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("::1")));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.handle(...)'
+	 */
+	@Test
+	public void testHandler() throws Exception {
+		StunRequestHandler handler = new StunRequestHandler(new BindingResponseTemplates(false));
+		RateLimiter single = new RateLimiter(64, 10, 1);
+		handler.setRateLimiter(single);
+		InetAddress address = InetAddress.getByName("192.0.2.1");
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		ByteBuffer data = ByteBuffer.wrap(request.getBytes());
+		ByteBuffer response = ByteBuffer.allocate(512);
+
+		assertTrue(handler.handle(data, 0, data.limit(), address, 1234, response, 0) > 0);
+		assertEquals(0, handler.handle(data, 0, data.limit(), address, 1234, response, 0));
+
+		single.setAction(RateLimiter.Action.ERROR);
+		int length = handler.handle(data, 0, data.limit(), address, 1234, response, 0);
+		assertTrue(length > 0);
+		byte[] bytes = new byte[length];
+		response.get(bytes);
+		MessageHeader error = MessageHeader.parseHeader(bytes);
+		error.parseAttributes(bytes);
+		assertEquals(MessageHeaderInterface.BINDINGERRORRESPONSE, error.getType().getEncoding());
+		assertEquals(500, ((ErrorCode) error.getMessageAttribute(MessageAttributeType.ErrorCode))
+				.getResponseCode());
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class ResponseCacheTest extends TestCase {
+	final static long SECOND = TimeUnit.SECONDS.toNanos(1);
+	InetAddress address;
+	ByteBuffer response;
+
+	public ResponseCacheTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		address = InetAddress.getByName("192.0.2.1");
+		response = ByteBuffer.allocate(64);
+		for (int i = 0; i < 64; i++)
+			response.put(i, (byte) i);
+	}
+
+	private static ByteBuffer request() throws Exception {
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		return ByteBuffer.wrap(request.getBytes());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.handle(ByteBuffer, int, int, InetAddress, int, ByteBuffer, int)'
+	 */
+	@Test
+	public void testRetransmission() throws Exception {
+		ResponseCache cache = new ResponseCache();
+		StunRequestHandler handler = new StunRequestHandler(new BindingResponseTemplates(false));
+		handler.setResponseCache(cache);
+		ServerMetrics metrics = new ServerMetrics();
+		handler.setMetrics(metrics);
+		ByteBuffer data = request();
+		ByteBuffer first = ByteBuffer.allocate(512);
+		ByteBuffer second = ByteBuffer.allocate(512);
+
+		int length = handler.handle(data, 0, data.limit(), address, 1234, first, 0);
+		assertTrue(length > 0);
+		assertEquals(length, handler.handle(data, 0, data.limit(), address, 1234, second, 0));
+		first.limit(length);
+		second.limit(length);
+		assertEquals(first, second);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, metrics.getResponses(MessageHeaderInterface.BINDINGRESPONSE));
+
+		// the same transaction from another port is another client
+		handler.handle(data, 0, data.limit(), address, 1235, second, 0);
+		assertEquals(1, cache.getHits());
+		assertTrue(cache.getHitRatio() > 0.3 && cache.getHitRatio() < 0.34);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.ResponseCache.get(ByteBuffer, int, InetAddress, int, ByteBuffer, int, long)'
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+		ResponseCache cache = new ResponseCache(16, 548, 40, TimeUnit.SECONDS);
+		ByteBuffer data = request();
+		cache.put(data, 8, address, 1234, response, 0, 20, 401, 0);
+		ByteBuffer copy = ByteBuffer.allocate(32);
+		long hit = cache.get(data, 8, address, 1234, copy, 4, 39 * SECOND);
+		assertEquals(20, ResponseCache.lengthOf(hit));
+		assertEquals(401, ResponseCache.errorCodeOf(hit));
+		assertEquals(19, copy.get(23));
+		assertEquals(0, copy.position());
+		assertEquals(-1, cache.get(data, 8, address, 1234, copy, 4, 41 * SECOND));
+
+		// the wheel clears the entry once it is due
+		cache.put(request(), 8, address, 1234, response, 0, 20, 0, 42 * SECOND);
+		assertEquals(1, cache.getExpirations());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.ResponseCache.put(ByteBuffer, int, InetAddress, int, ByteBuffer, int, int, int, long)'
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		// every key probes the whole table
+		ResponseCache cache = new ResponseCache(ResponseCache.MAX_PROBES, 32, 40, TimeUnit.SECONDS);
+		ByteBuffer oldest = request();
+		cache.put(oldest, 8, address, 1234, response, 0, 20, 0, 0);
+		for (int i = 1; i < ResponseCache.MAX_PROBES; i++)
+			cache.put(request(), 8, address, 1234, response, 0, 20, 0, i * SECOND);
+		assertEquals(0, cache.getEvictions());
+
+		cache.put(request(), 8, address, 1234, response, 0, 20, 0, 10 * SECOND);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(-1, cache.get(oldest, 8, address, 1234, ByteBuffer.allocate(32), 0, 10 * SECOND));
+
+		cache.put(request(), 8, address, 1234, response, 0, 33, 0, 10 * SECOND);
+		assertEquals(1, cache.getOversized());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.ResponseCache.get(ByteBuffer, int, InetAddress, int, ByteBuffer, int, long)'
+	 */
+	@Test
+	public void testConcurrentOverwrite() throws Exception {
+		final ResponseCache cache = new ResponseCache(16, 64, 40, TimeUnit.SECONDS);
+		final ByteBuffer data = request();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] writers = new Thread[2];
+		for (int w = 0; w < writers.length; w++) {
+			final int length = 16 + 32 * w;
+			final ByteBuffer written = ByteBuffer.allocate(length);
+			for (int i = 0; i < length; i++)
+				written.put(i, (byte) length);
+			writers[w] = new Thread(() -> {
+				while (!done.get())
+					cache.put(data, 8, address, 1234, written, 0, length, length, 0);
+			});
+			writers[w].start();
+		}
+		try {
+			// a response is only ever read whole, never mixed with another
+			ByteBuffer read = ByteBuffer.allocate(64);
+			int hits = 0;
+			for (int n = 0; n < 100000; n++) {
+				long hit = cache.get(data, 8, address, 1234, read, 0, SECOND);
+				if (hit < 0)
+					continue;
+				hits++;
+				int length = ResponseCache.lengthOf(hit);
+				assertEquals(length, ResponseCache.errorCodeOf(hit));
+				for (int i = 0; i < length; i++)
+					assertEquals(length, read.get(i));
+			}
+			assertTrue(hits > 0);
+		} finally {
+			done.set(true);
+			for (Thread writer : writers)
+				writer.join();
+		}
+	}
+}
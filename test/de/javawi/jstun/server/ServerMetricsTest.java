@@ -0,0 +1,122 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class ServerMetricsTest extends TestCase {
+
+	public ServerMetricsTest(String mesg) {
+		super(mesg);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.Histogram.getValueAtPercentile(double)'
+	 */
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (long i = 1; i <= 1000; i++)
+			histogram.record(i * 1000);
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertTrue(histogram.getMean() == 500500);
+
+		// within the 1/16 relative error of the buckets
+		long p50 = histogram.getValueAtPercentile(50);
+		assertTrue(p50 >= 500000 && p50 <= 500000 + 500000 / 16);
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 1000000);
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+		for (int bucket = 0; bucket < Histogram.BUCKETS - 1; bucket++) {
+			assertEquals(bucket, Histogram.bucket(Histogram.lowestValue(bucket)));
+			assertEquals(bucket, Histogram.bucket(Histogram.highestValue(bucket)));
+		}
+		assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.ServerMetrics.register(String)'
+	 */
+	@Test
+	public void testServer() throws Exception {
+		ServerMetrics metrics = new ServerMetrics();
+		metrics.register("test");
+		NioStunServer server = new NioStunServer(Collections.singletonList(new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), 0)), new BindingResponseTemplates(true));
+		server.setMetrics(metrics);
+		server.start();
+		DatagramSocket client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		client.setSoTimeout(5000);
+		try {
+			MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+					MessageHeaderClass.REQUEST)).initHeader();
+			byte[] data = request.getBytes();
+			for (int i = 0; i < 3; i++) {
+				client.send(new DatagramPacket(data, data.length, server.getLocalAddress(0)));
+				client.receive(new DatagramPacket(new byte[512], 512));
+			}
+			byte[] garbage = new byte[7];
+			client.send(new DatagramPacket(garbage, garbage.length, server.getLocalAddress(0)));
+			// answered after the garbage, so counted after it too
+			client.send(new DatagramPacket(data, data.length, server.getLocalAddress(0)));
+			client.receive(new DatagramPacket(new byte[512], 512));
+
+			assertEquals(4, metrics.getRequests(MessageHeaderInterface.BINDINGREQUEST));
+			assertEquals(4, metrics.getResponses(MessageHeaderInterface.BINDINGRESPONSE));
+			assertEquals(1, metrics.getDrops(ServerMetrics.DropReason.MALFORMED));
+
+			ListenerMetrics listener = metrics.getListener(server.getLocalAddress(0));
+			assertEquals(5, listener.getReceived());
+			for (int i = 0; (i < 100) && (listener.getSent() < 4); i++)
+				Thread.sleep(10);
+			assertEquals(4, listener.getSent());
+			assertEquals(4, listener.getLatencyCount());
+
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(ServerMetrics.DOMAIN + ":type=Server,name=\"test\"");
+			assertEquals(Long.valueOf(1), mbs.getAttribute(name, "Dropped"));
+			assertNotNull(mbs.getAttribute(name, "RequestsByType"));
+			Map<String, Long> byClass = metrics.getRequestsByClass();
+			assertEquals(Long.valueOf(4), byClass.get("request"));
+			assertEquals(1, mbs.queryNames(new ObjectName(ServerMetrics.DOMAIN + ":type=Listener,*"), null)
+					.size());
+		} finally {
+			client.close();
+			server.close();
+			metrics.unregister();
+		}
+	}
+}
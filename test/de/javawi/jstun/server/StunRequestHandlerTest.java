@@ -0,0 +1,211 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import de.javawi.jstun.attribute.ErrorCode;
+import de.javawi.jstun.attribute.Fingerprint;
+import de.javawi.jstun.attribute.MessageIntegrity;
+import de.javawi.jstun.attribute.Nonce;
+import de.javawi.jstun.attribute.Realm;
+import de.javawi.jstun.attribute.Username;
+import de.javawi.jstun.attribute.AbstractMessageAttribute.MessageAttributeType;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderDecoder;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.header.MessageType;
+import de.javawi.jstun.header.TransactionIdGenerator;
+import de.javawi.jstun.header.MessageHeaderInterface.MessageHeaderClass;
+
+public class StunRequestHandlerTest extends TestCase {
+	InetAddress address;
+	StunRequestHandler handler;
+	ByteBuffer response;
+	byte[] key;
+
+	public StunRequestHandlerTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		address = InetAddress.getByName("192.0.2.1");
+		handler = new StunRequestHandler(new BindingResponseTemplates(false));
+		response = ByteBuffer.allocate(512);
+		key = MessageIntegrity.shortTermKey("secret");
+	}
+
+	private static ByteBuffer request(String username, byte[] key) throws Exception {
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		if (username != null)
+			request.addMessageAttribute(new Username(username));
+		if (key != null)
+			request.addMessageAttribute(new MessageIntegrity(MessageAttributeType.MessageIntegrity, key));
+		return ByteBuffer.wrap(request.getBytes());
+	}
+
+	private MessageHeader handle(ByteBuffer request) throws Exception {
+		int length = handler.handle(request, 0, request.limit(), address, 1234, response, 0);
+		assertTrue(length > 0);
+		return new MessageHeader(ByteBuffer.wrap(response.array(), 0, length));
+	}
+
+	private static int errorCode(MessageHeader response) throws Exception {
+		return ((ErrorCode) response.getMessageAttribute(MessageAttributeType.ErrorCode)).getResponseCode();
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.setCredentials(CredentialStore)'
+	 */
+	@Test
+	public void testCredentials() throws Exception {
+		handler.setCredentials(username -> "alice".equals(username) ? key : null);
+
+		MessageHeader header = handle(request(null, null));
+		assertEquals(MessageHeaderInterface.BINDINGERRORRESPONSE, header.getType().getEncoding());
+		assertEquals(400, errorCode(header));
+		assertEquals(400, errorCode(handle(request("alice", null))));
+		assertEquals(401, errorCode(handle(request("bob", key))));
+		assertEquals(401, errorCode(handle(request("alice", MessageIntegrity.shortTermKey("wrong")))));
+
+		ByteBuffer request = request("alice", key);
+		int length = handler.handle(request, 0, request.limit(), address, 1234, response, 0);
+		response.limit(length);
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(response, 0, length);
+		assertEquals(MessageHeaderInterface.BINDINGRESPONSE, decoder.getTypeEncoding());
+		int integrity = decoder.findAttribute(MessageAttributeType.MessageIntegrity.getEncoding());
+		assertTrue(integrity > 0);
+		assertTrue(MessageIntegrity.verify(response, 0, integrity, key));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.setFingerprintRequired(boolean)'
+	 */
+	@Test
+	public void testFingerprintRequired() throws Exception {
+		ServerMetrics metrics = new ServerMetrics();
+		handler.setMetrics(metrics);
+		handler.setFingerprintRequired(true);
+
+		ByteBuffer plain = request(null, null);
+		assertEquals(0, handler.handle(plain, 0, plain.limit(), address, 1234, response, 0));
+		assertEquals(1, metrics.getDrops(ServerMetrics.DropReason.NOT_STUN));
+		assertEquals(0, metrics.getRequests(MessageHeaderInterface.BINDINGREQUEST));
+
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		request.addMessageAttribute(new Fingerprint());
+		ByteBuffer data = ByteBuffer.wrap(request.getBytes());
+		int length = handler.handle(data, 0, data.limit(), address, 1234, response, 0);
+		assertTrue(length > 0);
+		assertTrue(Fingerprint.check(response, 0, length));
+		assertEquals(MessageHeaderInterface.BINDINGRESPONSE, new MessageHeaderDecoder().wrap(response, 0,
+				length).getTypeEncoding());
+
+		// the 500 error response of a limited source too
+		RateLimiter limiter = new RateLimiter(64, 1, 1);
+		limiter.setAction(RateLimiter.Action.ERROR);
+		handler.setRateLimiter(limiter);
+		handler.handle(data, 0, data.limit(), address, 1234, response, 0);
+		length = handler.handle(data, 0, data.limit(), address, 1234, response, 0);
+		assertTrue(Fingerprint.check(response, 0, length));
+		assertEquals(MessageHeaderInterface.BINDINGERRORRESPONSE, new MessageHeaderDecoder().wrap(response, 0,
+				length).getTypeEncoding());
+		assertEquals(0, response.position());
+	}
+
+	private static ByteBuffer request(String username, String realm, String nonce, byte[] key)
+			throws Exception {
+		MessageHeader request = new MessageHeader(new MessageType(MessageHeaderInterface.BINDING,
+				MessageHeaderClass.REQUEST)).initHeader();
+		request.addMessageAttribute(new Username(username));
+		request.addMessageAttribute(new Realm(realm));
+		if (nonce != null)
+			request.addMessageAttribute(new Nonce(nonce));
+		request.addMessageAttribute(new MessageIntegrity(MessageAttributeType.MessageIntegritySHA256, key));
+		return ByteBuffer.wrap(request.getBytes());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.setNonceManager(NonceManager)'
+	 */
+	@Test
+	public void testLongTermCredentials() throws Exception {
+		NonceManager nonces = new NonceManager("example.org");
+		byte[] longTermKey = MessageIntegrity.longTermKey("alice", "example.org", "secret");
+		handler.setCredentials(username -> "alice".equals(username) ? longTermKey : null);
+		handler.setNonceManager(nonces);
+
+		// the first request is challenged
+		MessageHeader header = handle(request(null, null));
+		assertEquals(401, errorCode(header));
+		assertEquals("example.org", ((Realm) header.getMessageAttribute(MessageAttributeType.Realm)).getRealm());
+		String nonce = ((Nonce) header.getMessageAttribute(MessageAttributeType.Nonce)).getNonce();
+
+		assertEquals(400, errorCode(handle(request("alice", "example.org", null, longTermKey))));
+		header = handle(request("bob", "example.org", nonce, longTermKey));
+		assertEquals(401, errorCode(header));
+		assertNotNull(header.getMessageAttribute(MessageAttributeType.Nonce));
+		assertEquals(401, errorCode(handle(request("alice", "example.org", nonce, key))));
+
+		ByteBuffer request = request("alice", "example.org", nonce, longTermKey);
+		int length = handler.handle(request, 0, request.limit(), address, 1234, response, 0);
+		MessageHeaderDecoder decoder = new MessageHeaderDecoder().wrap(response, 0, length);
+		assertEquals(MessageHeaderInterface.BINDINGRESPONSE, decoder.getTypeEncoding());
+		int integrity = decoder.findAttribute(MessageAttributeType.MessageIntegritySHA256.getEncoding());
+		assertTrue(MessageIntegrity.verify(response, 0, integrity, longTermKey));
+
+		// a nonce from another client, or expired, is stale
+		String foreign = nonces.issue(InetAddress.getByName("192.0.2.2"));
+		header = handle(request("alice", "example.org", foreign, longTermKey));
+		assertEquals(438, errorCode(header));
+		String fresh = ((Nonce) header.getMessageAttribute(MessageAttributeType.Nonce)).getNonce();
+		String expired = nonces.issue(address, System.currentTimeMillis()
+				- TimeUnit.SECONDS.toMillis(NonceManager.DEFAULT_LIFETIME_SECONDS));
+		assertEquals(438, errorCode(handle(request("alice", "example.org", expired, longTermKey))));
+		request = request("alice", "example.org", fresh, longTermKey);
+		length = handler.handle(request, 0, request.limit(), address, 1234, response, 0);
+		assertEquals(MessageHeaderInterface.BINDINGRESPONSE, new MessageHeaderDecoder().wrap(response, 0,
+				length).getTypeEncoding());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.server.StunRequestHandler.encodeErrorResponse(int, int, int, InetAddress, ByteBuffer, int)'
+	 */
+	@Test
+	public void testErrorResponseTransactionId() throws Exception {
+		handler.setCredentials(username -> null);
+		ByteBuffer request = request(null, null);
+		TransactionIdGenerator generator = MessageHeader.getTransactionIdGenerator();
+		AtomicInteger drawn = new AtomicInteger();
+		MessageHeader.setTransactionIdGenerator(() -> {
+			drawn.incrementAndGet();
+			return generator.next();
+		});
+		try {
+			MessageHeader header = handle(request);
+			assertEquals(400, errorCode(header));
+			assertTrue(header.getTransactionID().matches(request, 8));
+			assertEquals(0, drawn.get());
+		} finally {
+			MessageHeader.setTransactionIdGenerator(generator);
+		}
+	}
+}
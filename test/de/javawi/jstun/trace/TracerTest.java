@@ -0,0 +1,100 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.trace;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TracerTest extends TestCase {
+	final List<String> lines = new CopyOnWriteArrayList<String>();
+	Logger logger = Logger.getLogger("de.javawi.stun.trace");
+	Handler handler = new Handler() {
+		public void publish(LogRecord record) {
+			lines.add(record.getMessage());
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	};
+
+	public TracerTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		logger.addHandler(handler);
+		logger.setUseParentHandlers(false);
+	}
+
+	protected void tearDown() throws Exception {
+		Tracer.stop();
+		Tracer.setSampling(TraceEvent.HEADER_PARSED, 1);
+		logger.removeHandler(handler);
+		logger.setUseParentHandlers(true);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.trace.Tracer.trace(TraceEvent, InetAddress, int, int)'
+	 */
+	@Test
+	public void testTrace() throws Exception {
+		Tracer.trace(TraceEvent.HEADER_PARSED, 0x0001);
+		Tracer.start();
+		assertTrue(Tracer.isEnabled());
+		Tracer.setSampling(TraceEvent.HEADER_PARSED, 2);
+		for (int i = 0; i < 4; i++)
+			Tracer.trace(TraceEvent.HEADER_PARSED, 0x0001);
+		Tracer.trace(TraceEvent.RESPONSE_SENT, InetAddress.getByName("192.0.2.1"), 1234, 32);
+		Tracer.trace(TraceEvent.DATAGRAM_RECEIVED, InetAddress.getByName("2001:db8::1"), 3478, 3479);
+		Tracer.stop();
+		assertFalse(Tracer.isEnabled());
+
+		int parsed = 0;
+		for (String line : lines)
+			if (line.contains(" header_parsed type=0x0001"))
+				parsed++;
+		assertEquals(2, parsed);
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(2).endsWith(" response_sent peer=192.0.2.1:1234 length=32"));
+		assertTrue(lines.get(3).endsWith(" datagram_received peer=2001:db8:0:0:0:0:0:1:3478 port=3479"));
+		assertTrue(lines.get(3).contains(" " + Thread.currentThread().getName() + " "));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.trace.TraceRing.write(long, long, long, long)'
+	 */
+	@Test
+	public void testRingFull() {
+		TraceRing ring = new TraceRing(Thread.currentThread(), 4);
+		for (int i = 0; i < 5; i++)
+			ring.write(i, i, 0, 0);
+		assertEquals(4, ring.getWritten());
+		assertEquals(1, ring.getDropped());
+
+		ring.setRead(2);
+		ring.write(5, 5, 0, 0);
+		assertEquals(5, ring.getWritten());
+		assertEquals(5, ring.records[ring.index(4) + 1]);
+		assertEquals(1, ring.getDropped());
+	}
+}
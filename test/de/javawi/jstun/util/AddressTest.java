@@ -11,6 +11,11 @@
 
 package de.javawi.jstun.util;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -26,7 +31,7 @@ public class AddressTest extends TestCase {
 
 	protected void setUp() throws Exception {
 		ipv4 = new IPv4Address("192.168.100.1");
-		ipv6 = new IPv6Address("de:ad:be:af");
+		ipv6 = new IPv6Address("de:ad:be:af::");
 		addr = new IPv4Address("192.168.1.1");
 	}
 
@@ -52,7 +57,7 @@ public class AddressTest extends TestCase {
 			Address comp = new IPv4Address("192.168.100.1");
 			assertTrue(ipv4.equals(comp));
 
-			comp = new IPv6Address("de:ad:be:af");
+			comp = new IPv6Address("de:ad:be:af::");
 			assertTrue(ipv6.equals(comp));
 		} catch (UtilityException ue) {
 			ue.printStackTrace();
@@ -131,4 +136,65 @@ public class AddressTest extends TestCase {
 		}
 	}
 
+	/*
+	 * Test method for 'de.javawi.jstun.util.IPv4Address.IPv4Address(InetSocketAddress)'
+	 */
+	@Test
+	public void testInetSocketAddress() throws Exception {
+		InetSocketAddress isa = new InetSocketAddress(InetAddress.getByName("192.168.100.1"), 3478);
+		Address comp = new IPv4Address(isa);
+		assertEquals(ipv4, comp);
+		assertEquals(ipv4.hashCode(), comp.hashCode());
+		assertEquals(0xC0A86401, ((IPv4Address) comp).toInt());
+		assertEquals("192.168.100.1", comp.toString());
+
+		isa = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 3478);
+		comp = new IPv6Address(isa);
+		assertEquals(new IPv6Address("2001:db8:0:0:0:0:0:1"), comp);
+		assertEquals(isa.getAddress(), comp.getInetAddress());
+		try {
+			new IPv4Address(isa);
+			fail("IPv6 socket address");
+		} catch (UtilityException ue) {
+			// expected
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.IPv6Address.writeTo(ByteBuffer, int)'
+	 */
+	@Test
+	public void testIPv6WriteTo() throws Exception {
+		IPv6Address addr6 = new IPv6Address("2001:db8::ff00:42:8329");
+		assertEquals(0x20010DB800000000L, addr6.getHigh());
+		assertEquals(0x0000FF0000428329L, addr6.getLow());
+		assertEquals("2001:db8:0:0:0:ff00:42:8329", addr6.toString());
+
+		ByteBuffer buffer = ByteBuffer.allocate(20);
+		addr6.writeTo(buffer, 3);
+		assertEquals(0, buffer.position());
+		assertEquals(addr6, new IPv6Address(buffer, 3));
+		assertFalse(addr6.equals(new IPv6Address(addr6.getHigh(), addr6.getLow() + 1)));
+
+		// IPv4-mapped literals stay in the IPv6 family
+		assertEquals(new IPv6Address(0L, 0x0000FFFFC0A86401L), new IPv6Address("::ffff:192.168.100.1"));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.IPv4Address.toInt(Inet4Address)'
+	 */
+	@Test
+	public void testToInt() throws Exception {
+		String[] addresses = { "0.0.0.0", "127.0.0.1", "192.168.100.1", "128.255.0.254", "255.255.255.255" };
+		for (String a : addresses) {
+			Inet4Address inet = (Inet4Address) InetAddress.getByName(a);
+			byte[] bytes = inet.getAddress();
+			int expected = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8)
+					| (bytes[3] & 0xFF);
+			assertEquals(a, expected, IPv4Address.toInt(inet));
+			assertEquals(a, new IPv4Address(a).toInt(), IPv4Address.toInt(inet));
+		}
+		// the JDK behaviour the fast path relies on
+		assertEquals(0xC0A86401, InetAddress.getByName("192.168.100.1").hashCode());
+	}
 }
@@ -0,0 +1,73 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+
+package de.javawi.jstun.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class StripedPoolTest extends TestCase {
+	AtomicInteger created;
+	StripedPool<Object> pool;
+
+	public StripedPoolTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		created = new AtomicInteger();
+		pool = new StripedPool<Object>(4, () -> Integer.valueOf(created.incrementAndGet()));
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.StripedPool.borrow()'
+	 */
+	@Test
+	public void testBorrow() {
+		Object first = pool.borrow();
+		Object second = pool.borrow();
+		assertFalse(first == second);
+		pool.release(first);
+		assertSame(first, pool.borrow());
+		assertEquals(2, created.get());
+
+		// a full pool drops what is released
+		Object[] borrowed = new Object[6];
+		for (int i = 0; i < borrowed.length; i++)
+			borrowed[i] = pool.borrow();
+		for (Object object : borrowed)
+			pool.release(object);
+		assertEquals(8, created.get());
+		for (int i = 0; i < 4; i++)
+			pool.borrow();
+		assertEquals(8, created.get());
+		pool.borrow();
+		assertEquals(9, created.get());
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.StripedPool.release(Object)'
+	 */
+	@Test
+	public void testShortLivedThreads() throws Exception {
+		// a thread per call, as a server using a virtual thread per request
+		for (int i = 0; i < 20; i++) {
+			Thread thread = new Thread(() -> pool.release(pool.borrow()));
+			thread.start();
+			thread.join();
+		}
+		assertEquals(1, created.get());
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+
+package de.javawi.jstun.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class UtilityTest extends TestCase {
+	byte[] array;
+	ByteBuffer heap;
+	ByteBuffer direct;
+
+	public UtilityTest(String mesg) {
+		super(mesg);
+	}
+
+	protected void setUp() throws Exception {
+		array = new byte[16];
+		heap = ByteBuffer.allocate(16);
+		direct = ByteBuffer.allocateDirect(16);
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.Utility.putUnsignedByte(byte[], int, int)'
+	 */
+	@Test
+	public void testUnsignedByte() {
+		Utility.putUnsignedByte(array, 3, 0xFF);
+		assertEquals((byte) 0xFF, array[3]);
+		assertEquals(0xFF, Utility.getUnsignedByte(array, 3));
+		assertEquals(0, Utility.getUnsignedByte(array, 2));
+		for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+			Utility.putUnsignedByte(buffer, 3, 0x1FF);
+			assertEquals((byte) 0xFF, buffer.get(3));
+			assertEquals(0xFF, Utility.getUnsignedByte(buffer, 3));
+			assertEquals(0, buffer.position());
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.Utility.putUnsignedShort(byte[], int, int)'
+	 */
+	@Test
+	public void testUnsignedShort() {
+		Utility.putUnsignedShort(array, 5, 0xFFFF);
+		assertEquals(0xFFFF, Utility.getUnsignedShort(array, 5));
+		Utility.putUnsignedShort(array, 1, 0x1234);
+		// network byte order
+		assertEquals(0x12, array[1]);
+		assertEquals(0x34, array[2]);
+		assertEquals(0x1234, Utility.getUnsignedShort(array, 1));
+		for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+			Utility.putUnsignedShort(buffer, 5, 0x1FFFF);
+			assertEquals(0xFFFF, Utility.getUnsignedShort(buffer, 5));
+			assertEquals(0, buffer.get(7));
+			Utility.putUnsignedShort(buffer, 1, 0x8001);
+			assertEquals((byte) 0x80, buffer.get(1));
+			assertEquals(0x8001, Utility.getUnsignedShort(buffer, 1));
+			assertEquals(0, buffer.position());
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.Utility.putUnsignedInt(byte[], int, long)'
+	 */
+	@Test
+	public void testUnsignedInt() {
+		Utility.putUnsignedInt(array, 7, 0xFFFFFFFFL);
+		assertEquals(0xFFFFFFFFL, Utility.getUnsignedInt(array, 7));
+		Utility.putUnsignedInt(array, 1, 0x2112A442);
+		assertEquals(0x21, array[1]);
+		assertEquals((byte) 0x42, array[4]);
+		assertEquals(0x2112A442L, Utility.getUnsignedInt(array, 1));
+		for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+			Utility.putUnsignedInt(buffer, 7, 0xFFFFFFFFL);
+			assertEquals(0xFFFFFFFFL, Utility.getUnsignedInt(buffer, 7));
+			assertEquals(0, buffer.get(11));
+			Utility.putUnsignedInt(buffer, 1, 0x80000001L);
+			assertEquals(0x80000001L, Utility.getUnsignedInt(buffer, 1));
+			assertEquals(0, buffer.position());
+		}
+	}
+
+	/*
+	 * Test method for 'de.javawi.jstun.util.Utility.putLong(byte[], int, long)'
+	 */
+	@Test
+	public void testLong() {
+		Utility.putLong(array, 3, 0x8001020304050607L);
+		assertEquals((byte) 0x80, array[3]);
+		assertEquals(7, array[10]);
+		assertEquals(0x8001020304050607L, Utility.getLong(array, 3));
+		Utility.putLong(array, 8, -1L);
+		assertEquals(-1L, Utility.getLong(array, 8));
+		for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+			Utility.putLong(buffer, 3, 0x8001020304050607L);
+			assertEquals(0x8001020304050607L, Utility.getLong(buffer, 3));
+			assertEquals(0xFFFFFFFFL & 0x04050607, Utility.getUnsignedInt(buffer, 7));
+			Utility.putLong(buffer, 8, -1L);
+			assertEquals(-1L, Utility.getLong(buffer, 8));
+			assertEquals(0, buffer.position());
+		}
+	}
+}